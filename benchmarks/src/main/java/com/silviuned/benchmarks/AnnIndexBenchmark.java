@@ -0,0 +1,99 @@
+package com.silviuned.benchmarks;
+
+import com.silviuned.benchmarks.SyntheticDataGenerator.Scale;
+import com.silviuned.service.algorithms.SvdAlgorithm;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.index.IvfPqIndex;
+import com.silviuned.service.index.MovieIndex;
+import com.silviuned.service.index.Neighbour;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the {@link IvfPqIndex} similarity queries over the trained SVD factors, against the brute-force scan.
+ * The recall@K of every configuration (the fraction of the exact top K that the approximate search returns) is
+ * measured on the query set during the setup, and printed in the benchmark's output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class AnnIndexBenchmark {
+
+    public enum Vectors {
+        MOVIES, USERS
+    }
+
+    private static final int K = 10;
+    private static final int NR_QUERIES = 1000;
+
+    @Param({"SMALL"})
+    public Scale scale;
+
+    @Param({"MOVIES", "USERS"})
+    public Vectors vectors;
+
+    @Param({"1", "4", "16"})
+    public int nrProbes;
+
+    @Param({"0", "100"})
+    public int nrReranked;
+
+    private IvfPqIndex index;
+    private float[][] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SvdAlgorithm algorithm = new SvdAlgorithm(new DataManager(SyntheticDataGenerator.generate(scale)));
+        algorithm.train();
+        float[] data = vectors == Vectors.MOVIES ? MovieIndex.getMovieVectors(algorithm) : MovieIndex.getUserVectors(algorithm);
+        int dim = algorithm.getNrFeatures();
+        index = new IvfPqIndex.Builder().metric(IvfPqIndex.Metric.COSINE).build(data, dim);
+
+        Random random = new Random(SyntheticDataGenerator.DEFAULT_SEED);
+        queries = new float[NR_QUERIES][dim];
+        for (float[] query : queries) {
+            System.arraycopy(data, random.nextInt(index.getNrVectors()) * dim, query, 0, dim);
+        }
+
+        long found = 0;
+        for (float[] query : queries) {
+            Set<Integer> exact = new HashSet<>();
+            for (Neighbour neighbour : index.searchExact(query, K)) {
+                exact.add(neighbour.getId());
+            }
+            for (Neighbour neighbour : index.search(query, K, nrProbes, nrReranked)) {
+                if (exact.contains(neighbour.getId())) {
+                    found++;
+                }
+            }
+        }
+        System.out.println();
+        System.out.println("recall@" + K + " = " + (double) found / (K * NR_QUERIES) + " (" + index.getNrVectors()
+                + " vectors, " + dim + " dimensions, " + index.getNrLists() + " lists)");
+    }
+
+    private float[] nextQuery() {
+        float[] query = queries[next];
+        next = (next + 1) % queries.length;
+        return query;
+    }
+
+    @Benchmark
+    public List<Neighbour> approximate() {
+        return index.search(nextQuery(), K, nrProbes, nrReranked);
+    }
+
+    @Benchmark
+    public List<Neighbour> bruteForce() {
+        return index.searchExact(nextQuery(), K);
+    }
+}
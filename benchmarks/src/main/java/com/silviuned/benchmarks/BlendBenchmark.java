@@ -0,0 +1,65 @@
+package com.silviuned.benchmarks;
+
+import com.silviuned.benchmarks.SyntheticDataGenerator.Scale;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.PredictionColumns;
+import com.silviuned.service.RmseEvaluator;
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.algorithms.EmAlgorithm;
+import com.silviuned.service.algorithms.StackedAlgorithm;
+import com.silviuned.service.algorithms.SvdAlgorithm;
+import com.silviuned.service.data.DataManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-blending the SVD and EM models with new weights and measuring the blend's test error: scoring the test data
+ * with the models again, versus fitting and measuring the blend over their stored {@link PredictionColumns}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class BlendBenchmark {
+
+    @Param({"SMALL"})
+    public Scale scale;
+
+    private RatingMatrix testData;
+    private List<Algorithm> models;
+    private PredictionColumns columns;
+    private double[] weights;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        RatingMatrix ratings = SyntheticDataGenerator.generate(scale);
+        DataManager dm = new DataManager(ratings);
+        testData = SyntheticDataGenerator.generate(ratings.getNrMovies(), ratings.getNrUsers(),
+                ratings.getNrRatings() / 10, SyntheticDataGenerator.DEFAULT_SEED + 1);
+        Algorithm svd = new SvdAlgorithm(dm);
+        Algorithm em = new EmAlgorithm(dm);
+        svd.train();
+        em.train();
+        models = Arrays.asList(svd, em);
+        columns = new PredictionColumns(testData);
+        columns.add("svd", svd);
+        columns.add("em", em);
+        weights = columns.fitWeights(1);
+    }
+
+    @Benchmark
+    public double rescore() {
+        return RmseEvaluator.eval(new StackedAlgorithm(models, weights), testData);
+    }
+
+    @Benchmark
+    public double columns() {
+        int[] all = {0, 1};
+        return columns.eval(all, columns.fitWeights(all, 1));
+    }
+}
@@ -0,0 +1,49 @@
+package com.silviuned.benchmarks;
+
+import com.silviuned.benchmarks.SyntheticDataGenerator.Scale;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.data.DataLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Throughput of {@link DataLoader#loadData(String)} on a synthetic training folder.
+ * Ratings/sec = nr of ratings of the scale / average time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class DataLoaderBenchmark {
+
+    @Param({"SMALL", "MEDIUM"})
+    public Scale scale;
+
+    private Path folder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("cf-benchmark-");
+        SyntheticDataGenerator.writeFolder(SyntheticDataGenerator.generate(scale), folder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public RatingMatrix loadData() {
+        return DataLoader.loadData(folder.toString());
+    }
+}
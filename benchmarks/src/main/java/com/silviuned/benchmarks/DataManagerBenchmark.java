@@ -0,0 +1,35 @@
+package com.silviuned.benchmarks;
+
+import com.silviuned.benchmarks.SyntheticDataGenerator.Scale;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.data.DataManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of the {@link DataManager} (movie averages and user offsets) out of a loaded rating matrix.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class DataManagerBenchmark {
+
+    @Param({"SMALL", "MEDIUM"})
+    public Scale scale;
+
+    private RatingMatrix ratings;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ratings = SyntheticDataGenerator.generate(scale);
+    }
+
+    @Benchmark
+    public DataManager createDataManager() {
+        return new DataManager(ratings);
+    }
+}
@@ -0,0 +1,40 @@
+package com.silviuned.benchmarks;
+
+import com.silviuned.benchmarks.SyntheticDataGenerator.Scale;
+import com.silviuned.service.algorithms.EmAlgorithm;
+import com.silviuned.service.data.DataManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One E-step + M-step iteration of {@link EmAlgorithm}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class EmIterationBenchmark {
+
+    @Param({"SMALL", "MEDIUM"})
+    public Scale scale;
+
+    @Param({"1", "8"})
+    public int threads;
+
+    private EmAlgorithm algorithm;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        DataManager dm = new DataManager(SyntheticDataGenerator.generate(scale));
+        algorithm = new EmAlgorithm(dm, threads);
+        algorithm.iterate();
+    }
+
+    @Benchmark
+    public void iteration() {
+        algorithm.iterate();
+    }
+}
@@ -0,0 +1,75 @@
+package com.silviuned.benchmarks;
+
+import com.silviuned.benchmarks.SyntheticDataGenerator.Scale;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.EvaluationPipeline;
+import com.silviuned.service.RmseEvaluator;
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.algorithms.BlendedAlgorithm;
+import com.silviuned.service.algorithms.EmAlgorithm;
+import com.silviuned.service.algorithms.SvdAlgorithm;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.postProcessing.GlobalBiasCorrector;
+import com.silviuned.service.postProcessing.ItemBasedCorrector;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end evaluation of the SVD, EM and blended models with their post processors (what Main does after
+ * training): fitting the correctors and measuring the test error of each model separately, versus
+ * {@link EvaluationPipeline}, which scores every rating once per model.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class EvaluationBenchmark {
+
+    @Param({"SMALL"})
+    public Scale scale;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private DataManager dm;
+    private RatingMatrix testData;
+    private List<Algorithm> algorithms;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        RatingMatrix ratings = SyntheticDataGenerator.generate(scale);
+        dm = new DataManager(ratings);
+        testData = SyntheticDataGenerator.generate(ratings.getNrMovies(), ratings.getNrUsers(),
+                ratings.getNrRatings() / 10, SyntheticDataGenerator.DEFAULT_SEED + 1);
+        Algorithm svd = new SvdAlgorithm(dm);
+        Algorithm em = new EmAlgorithm(dm);
+        svd.train();
+        em.train();
+        algorithms = Arrays.asList(svd, em, new BlendedAlgorithm(svd, em));
+    }
+
+    @Benchmark
+    public double separate() {
+        double result = 0;
+        for (Algorithm algorithm : algorithms) {
+            ItemBasedCorrector itemBasedCorrector = new ItemBasedCorrector(dm, algorithm);
+            GlobalBiasCorrector globalBiasCorrector = new GlobalBiasCorrector(testData, algorithm, itemBasedCorrector);
+            result += RmseEvaluator.eval(algorithm, testData, itemBasedCorrector, globalBiasCorrector, true);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public double pipeline() {
+        double result = 0;
+        for (EvaluationPipeline.Result evaluation : new EvaluationPipeline(dm, testData, threads).evaluate(algorithms, true)) {
+            result += evaluation.getRmse();
+        }
+        return result;
+    }
+}
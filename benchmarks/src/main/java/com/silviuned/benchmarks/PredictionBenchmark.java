@@ -0,0 +1,122 @@
+package com.silviuned.benchmarks;
+
+import com.silviuned.benchmarks.SyntheticDataGenerator.Scale;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.algorithms.BlendedAlgorithm;
+import com.silviuned.service.algorithms.EmAlgorithm;
+import com.silviuned.service.algorithms.SvdAlgorithm;
+import com.silviuned.service.data.DataManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of single and batched predictions of each trained {@link Algorithm}.
+ * Half of the probe pairs are training ratings, half are unrated (movie, user) pairs.
+ * The batches go through {@link Algorithm#predictRatings(int[], int[], double[])}, and the movie benchmark
+ * scores all the users for one movie with {@link Algorithm#predictMovieRatings(int, double[])}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class PredictionBenchmark {
+
+    public enum AlgorithmType {
+        SVD, EM, BLENDED
+    }
+
+    private static final int NR_PAIRS = 1 << 16;
+    private static final int BATCH_SIZE = 1024;
+
+    @Param({"SMALL"})
+    public Scale scale;
+
+    @Param({"SVD", "EM", "BLENDED"})
+    public AlgorithmType algorithmType;
+
+    private Algorithm algorithm;
+    private int[] movieIds;
+    private int[] userIds;
+    private int[][] movieIdBatches;
+    private int[][] userIdBatches;
+    private int[] allMovieIds;
+    private double[] predictions;
+    private double[] userPredictions;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        RatingMatrix ratings = SyntheticDataGenerator.generate(scale);
+        DataManager dm = new DataManager(ratings);
+        if (algorithmType == AlgorithmType.BLENDED) {
+            Algorithm svd = new SvdAlgorithm(dm);
+            Algorithm em = new EmAlgorithm(dm);
+            svd.train();
+            em.train();
+            algorithm = new BlendedAlgorithm(svd, em);
+        } else {
+            algorithm = algorithmType == AlgorithmType.SVD ? new SvdAlgorithm(dm) : new EmAlgorithm(dm);
+            algorithm.train();
+        }
+
+        Random random = new Random(SyntheticDataGenerator.DEFAULT_SEED);
+        movieIds = new int[NR_PAIRS];
+        userIds = new int[NR_PAIRS];
+        for (int k = 0; k < NR_PAIRS; k++) {
+            int m = random.nextInt(ratings.getNrMovies());
+            int user;
+            if (k % 2 == 0) {
+                user = ratings.getUser(ratings.getMovieStart(m) + random.nextInt(ratings.getMovieRatingCount(m)));
+            } else {
+                user = random.nextInt(ratings.getNrUsers());
+            }
+            movieIds[k] = ratings.getMovieId(m);
+            userIds[k] = ratings.getUserId(user);
+        }
+        movieIdBatches = new int[NR_PAIRS / BATCH_SIZE][];
+        userIdBatches = new int[NR_PAIRS / BATCH_SIZE][];
+        for (int b = 0; b < movieIdBatches.length; b++) {
+            movieIdBatches[b] = Arrays.copyOfRange(movieIds, b * BATCH_SIZE, (b + 1) * BATCH_SIZE);
+            userIdBatches[b] = Arrays.copyOfRange(userIds, b * BATCH_SIZE, (b + 1) * BATCH_SIZE);
+        }
+        allMovieIds = new int[ratings.getNrMovies()];
+        for (int m = 0; m < allMovieIds.length; m++) {
+            allMovieIds[m] = ratings.getMovieId(m);
+        }
+        predictions = new double[BATCH_SIZE];
+        userPredictions = new double[ratings.getNrUsers()];
+    }
+
+    @Benchmark
+    public double single() {
+        int k = next;
+        next = (k + 1) & (NR_PAIRS - 1);
+        return algorithm.predictRating(movieIds[k], userIds[k]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public double[] batch() {
+        int b = next;
+        next = (b + 1) % movieIdBatches.length;
+        algorithm.predictRatings(movieIdBatches[b], userIdBatches[b], predictions);
+        return predictions;
+    }
+
+    // Scores every user for one movie (reported per movie, not per prediction).
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public double[] movie() {
+        int m = next;
+        next = (m + 1) % allMovieIds.length;
+        algorithm.predictMovieRatings(allMovieIds[m], userPredictions);
+        return userPredictions;
+    }
+}
@@ -0,0 +1,85 @@
+package com.silviuned.benchmarks;
+
+import com.silviuned.benchmarks.SyntheticDataGenerator.Scale;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.algorithms.EmAlgorithm;
+import com.silviuned.service.algorithms.SvdAlgorithm;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.recommendation.ExhaustiveRecommender;
+import com.silviuned.service.recommendation.Recommendation;
+import com.silviuned.service.recommendation.Recommender;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-user latency of a top-20 recommendation (p50 / p99 in the sample time report), with 1, 8 and 32 threads
+ * asking concurrently. "pruned" compares the blocked search of {@link Recommender#create} with the exhaustive one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class RecommendationBenchmark {
+
+    public enum AlgorithmType {
+        SVD, EM
+    }
+
+    private static final int NR_RECOMMENDATIONS = 20;
+
+    @Param({"SMALL"})
+    public Scale scale;
+
+    @Param({"SVD", "EM"})
+    public AlgorithmType algorithmType;
+
+    @Param({"true", "false"})
+    public boolean pruned;
+
+    private RatingMatrix ratings;
+    private Recommender recommender;
+
+    @State(Scope.Thread)
+    public static class Users {
+
+        private final Random random = new Random();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ratings = SyntheticDataGenerator.generate(scale);
+        DataManager dm = new DataManager(ratings);
+        Algorithm algorithm = algorithmType == AlgorithmType.SVD ? new SvdAlgorithm(dm) : new EmAlgorithm(dm);
+        algorithm.train();
+        recommender = pruned ? Recommender.create(algorithm) : new ExhaustiveRecommender(algorithm);
+    }
+
+    private List<Recommendation> recommend(Users users) {
+        int userId = ratings.getUserId(users.random.nextInt(ratings.getNrUsers()));
+        return recommender.recommend(userId, NR_RECOMMENDATIONS);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public List<Recommendation> threads1(Users users) {
+        return recommend(users);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public List<Recommendation> threads8(Users users) {
+        return recommend(users);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public List<Recommendation> threads32(Users users) {
+        return recommend(users);
+    }
+}
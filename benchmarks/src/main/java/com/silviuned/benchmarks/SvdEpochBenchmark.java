@@ -0,0 +1,42 @@
+package com.silviuned.benchmarks;
+
+import com.silviuned.benchmarks.SyntheticDataGenerator.Scale;
+import com.silviuned.service.algorithms.SvdAlgorithm;
+import com.silviuned.service.data.DataManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One SGD pass of {@link SvdAlgorithm} over all ratings. Varying the nr of threads gives the scaling curve
+ * of the multi-threaded training mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class SvdEpochBenchmark {
+
+    @Param({"SMALL", "MEDIUM"})
+    public Scale scale;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private SvdAlgorithm algorithm;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        DataManager dm = new DataManager(SyntheticDataGenerator.generate(scale));
+        algorithm = new SvdAlgorithm(dm, threads);
+        // The first pass is measured against the baseline; the benchmark measures the regular ones.
+        algorithm.runEpoch();
+    }
+
+    @Benchmark
+    public double epoch() {
+        return algorithm.runEpoch();
+    }
+}
@@ -0,0 +1,166 @@
+package com.silviuned.benchmarks;
+
+import com.silviuned.model.RatingMatrix;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Generates deterministic, Netflix-shaped rating data, so that the benchmarks can run offline.
+ * Movie popularity and user activity follow power laws, and the ratings come from a small latent factor
+ * model (movie bias + user bias + factor product + noise), rounded to 1..5.
+ */
+public class SyntheticDataGenerator {
+
+    public enum Scale {
+        SMALL(1000, 20000, 250000),
+        MEDIUM(5000, 100000, 2500000),
+        LARGE(17770, 480189, 20000000);
+
+        private final int nrMovies;
+        private final int nrUsers;
+        private final int nrRatings;
+
+        Scale(int nrMovies, int nrUsers, int nrRatings) {
+            this.nrMovies = nrMovies;
+            this.nrUsers = nrUsers;
+            this.nrRatings = nrRatings;
+        }
+    }
+
+    public static final long DEFAULT_SEED = 2006;
+
+    private static final double MOVIE_POPULARITY_EXPONENT = 0.9;
+    private static final double USER_ACTIVITY_EXPONENT = 0.7;
+    private static final int NR_FACTORS = 5;
+    private static final int FIRST_DAY = (int) LocalDate.of(1999, 11, 11).toEpochDay();
+    private static final int LAST_DAY = (int) LocalDate.of(2005, 12, 31).toEpochDay();
+
+    public static RatingMatrix generate(Scale scale) {
+        return generate(scale.nrMovies, scale.nrUsers, scale.nrRatings, DEFAULT_SEED);
+    }
+
+    // Generates approximately nrRatings ratings (each movie gets at least one, no user rates a movie twice).
+    public static RatingMatrix generate(int nrMovies, int nrUsers, int nrRatings, long seed) {
+        Random random = new Random(seed);
+
+        double[] movieBiases = gaussians(random, nrMovies, 0.5);
+        double[] userBiases = gaussians(random, nrUsers, 0.4);
+        double[] movieFactors = gaussians(random, nrMovies * NR_FACTORS, 0.5);
+        double[] userFactors = gaussians(random, nrUsers * NR_FACTORS, 0.5);
+
+        double[] moviePopularity = powerLaw(nrMovies, MOVIE_POPULARITY_EXPONENT);
+        double[] userActivity = cumulative(powerLaw(nrUsers, USER_ACTIVITY_EXPONENT));
+
+        // The most popular movies and the most active users get random ids (not the first ones).
+        int[] movieIds = shuffledIds(random, nrMovies, 1);
+        int[] userIds = shuffledIds(random, nrUsers, 6);
+
+        RatingMatrix.Builder builder = new RatingMatrix.Builder(nrRatings + nrMovies);
+        BitSet rated = new BitSet(nrUsers);
+        for (int m = 0; m < nrMovies; m++) {
+            int count = (int) Math.max(1, Math.min(nrUsers / 2, Math.round(nrRatings * moviePopularity[m])));
+            rated.clear();
+            for (int k = 0; k < count; k++) {
+                int u;
+                do {
+                    u = sample(userActivity, random.nextDouble());
+                } while (rated.get(u));
+                rated.set(u);
+
+                double value = 3.6 + movieBiases[m] + userBiases[u] + random.nextGaussian() * 0.8;
+                for (int f = 0; f < NR_FACTORS; f++) {
+                    value += movieFactors[m * NR_FACTORS + f] * userFactors[u * NR_FACTORS + f];
+                }
+                int rating = (int) Math.max(1, Math.min(5, Math.round(value)));
+                int epochDay = FIRST_DAY + random.nextInt(LAST_DAY - FIRST_DAY + 1);
+                builder.add(movieIds[m], userIds[u], rating, epochDay);
+            }
+        }
+        return builder.build();
+    }
+
+    // Writes the ratings as a training folder: one "mv_<movieId>.txt" file per movie, in the Netflix format.
+    public static void writeFolder(RatingMatrix ratings, Path folder) throws IOException {
+        Files.createDirectories(folder);
+        for (int m = 0; m < ratings.getNrMovies(); m++) {
+            int movieId = ratings.getMovieId(m);
+            Path file = folder.resolve(String.format("mv_%07d.txt", movieId));
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+                writer.write(movieId + ":\n");
+                for (int i = ratings.getMovieStart(m); i < ratings.getMovieEnd(m); i++) {
+                    writer.write(ratings.getUserId(ratings.getUser(i)) + "," + ratings.getRating(i) + ","
+                            + LocalDate.ofEpochDay(ratings.getEpochDay(i)) + "\n");
+                }
+            }
+        }
+    }
+
+    private static double[] gaussians(Random random, int n, double deviation) {
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = random.nextGaussian() * deviation;
+        }
+        return result;
+    }
+
+    // Normalized weights proportional to 1 / (rank + 1)^exponent.
+    private static double[] powerLaw(int n, double exponent) {
+        double[] result = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            result[i] = 1 / Math.pow(i + 1, exponent);
+            sum += result[i];
+        }
+        for (int i = 0; i < n; i++) {
+            result[i] /= sum;
+        }
+        return result;
+    }
+
+    private static double[] cumulative(double[] weights) {
+        double[] result = new double[weights.length];
+        double sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            result[i] = sum;
+        }
+        return result;
+    }
+
+    // Returns the first index whose cumulative weight is > x.
+    private static int sample(double[] cumulativeWeights, double x) {
+        int low = 0;
+        int high = cumulativeWeights.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulativeWeights[middle] > x) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    // Returns n distinct ids spread over [1, n * spread], in random order.
+    private static int[] shuffledIds(Random random, int n, int spread) {
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = 1 + i * spread + random.nextInt(spread);
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int temp = result[i];
+            result[i] = result[j];
+            result[j] = temp;
+        }
+        return result;
+    }
+}
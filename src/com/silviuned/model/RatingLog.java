@@ -0,0 +1,143 @@
+package com.silviuned.model;
+
+import java.util.Arrays;
+
+/**
+ * Ratings added after a {@link RatingMatrix} was built, for movies and users of the matrix (by ordinal).
+ * The ratings are appended to primitive arrays and linked in one list per movie and one list per user
+ * (newest first), so adding a rating is O(1), and the added ratings of a movie or of a user are walked
+ * without scanning the whole log:
+ *
+ *     for (int i = log.getMovieHead(m); i != -1; i = log.getNextOfMovie(i)) { ... }
+ */
+public class RatingLog {
+
+    // Index of the newest rating of each movie / user, or -1.
+    private final int[] movieHeads;
+    private final int[] userHeads;
+    private final int[] movieCounts;
+    private final int[] userCounts;
+
+    private int size;
+    private int[] movies;
+    private int[] users;
+    private byte[] values;
+    private short[] dates;
+    // Index of the previous rating of the same movie / user, or -1.
+    private int[] nextOfMovie;
+    private int[] nextOfUser;
+
+    public RatingLog(int nrMovies, int nrUsers) {
+        movieHeads = new int[nrMovies];
+        userHeads = new int[nrUsers];
+        Arrays.fill(movieHeads, -1);
+        Arrays.fill(userHeads, -1);
+        movieCounts = new int[nrMovies];
+        userCounts = new int[nrUsers];
+
+        int capacity = 16;
+        movies = new int[capacity];
+        users = new int[capacity];
+        values = new byte[capacity];
+        dates = new short[capacity];
+        nextOfMovie = new int[capacity];
+        nextOfUser = new int[capacity];
+    }
+
+    // Appends the rating and returns its index.
+    public int add(int movie, int user, int rating, int epochDay) {
+        if (size == movies.length) {
+            grow();
+        }
+        int index = size++;
+        movies[index] = movie;
+        users[index] = user;
+        values[index] = (byte) rating;
+        dates[index] = (short) epochDay;
+
+        nextOfMovie[index] = movieHeads[movie];
+        movieHeads[movie] = index;
+        movieCounts[movie]++;
+        nextOfUser[index] = userHeads[user];
+        userHeads[user] = index;
+        userCounts[user]++;
+        return index;
+    }
+
+    private void grow() {
+        int capacity = movies.length * 2;
+        movies = Arrays.copyOf(movies, capacity);
+        users = Arrays.copyOf(users, capacity);
+        values = Arrays.copyOf(values, capacity);
+        dates = Arrays.copyOf(dates, capacity);
+        nextOfMovie = Arrays.copyOf(nextOfMovie, capacity);
+        nextOfUser = Arrays.copyOf(nextOfUser, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getMovie(int index) {
+        return movies[index];
+    }
+
+    public int getUser(int index) {
+        return users[index];
+    }
+
+    public int getRating(int index) {
+        return values[index];
+    }
+
+    // Returns the date of the rating, as days since 1970-01-01.
+    public int getEpochDay(int index) {
+        return dates[index];
+    }
+
+    // Index of the newest added rating of the movie, or -1 if none was added.
+    public int getMovieHead(int movie) {
+        return movieHeads[movie];
+    }
+
+    // Index of the added rating of the same movie that precedes the provided one, or -1.
+    public int getNextOfMovie(int index) {
+        return nextOfMovie[index];
+    }
+
+    // Index of the newest added rating of the user, or -1 if none was added.
+    public int getUserHead(int user) {
+        return userHeads[user];
+    }
+
+    // Index of the added rating of the same user that precedes the provided one, or -1.
+    public int getNextOfUser(int index) {
+        return nextOfUser[index];
+    }
+
+    public int getMovieRatingCount(int movie) {
+        return movieCounts[movie];
+    }
+
+    public int getUserRatingCount(int user) {
+        return userCounts[user];
+    }
+
+    // Returns the index of the (movie, user) rating, or -1 if it wasn't added. Walks the shorter of the two lists.
+    public int find(int movie, int user) {
+        if (movieCounts[movie] < userCounts[user]) {
+            for (int i = movieHeads[movie]; i != -1; i = nextOfMovie[i]) {
+                if (users[i] == user) {
+                    return i;
+                }
+            }
+        } else {
+            for (int i = userHeads[user]; i != -1; i = nextOfUser[i]) {
+                if (movies[i] == movie) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+}
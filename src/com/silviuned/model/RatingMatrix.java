@@ -0,0 +1,382 @@
+package com.silviuned.model;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sparse rating matrix stored in primitive arrays.
+ * Movies and users are re-indexed to dense ordinals (0..n-1, in ascending id order).
+ * The ratings are kept in a movie-major (CSR) layout, in the order in which they were added,
+ * and are also indexed in a user-major (CSC) layout, sorted by movie ordinal, so a single
+ * (user, movie) rating can be found with a binary search over the user's row.
+ */
+public class RatingMatrix {
+
+    // ordinal -> id
+    private final int[] movieIds;
+    private final int[] userIds;
+
+    // id -> ordinal (-1 if the id is unknown)
+    private final int[] movieOrdinals;
+    private final int[] userOrdinals;
+
+    // Movie-major view. The ratings of movie m are found at [movieOffsets[m], movieOffsets[m + 1]).
+    private final int[] movieOffsets;
+    private final int[] ratingUsers;
+    private final byte[] ratingValues;
+    private final short[] ratingDates;
+
+    // User-major view. The movies rated by user u are found at [userOffsets[u], userOffsets[u + 1]).
+    private final int[] userOffsets;
+    private final int[] userMovies;
+    private final byte[] userRatingValues;
+    // Index of each user-major entry in the movie-major view (derived from both views, not stored).
+    private final int[] userRatingIndexes;
+
+    private RatingMatrix(int[] movieIds, int[] userIds, int[] movieOrdinals, int[] userOrdinals,
+                         int[] movieOffsets, int[] ratingUsers, byte[] ratingValues, short[] ratingDates,
+                         int[] userOffsets, int[] userMovies, byte[] userRatingValues) {
+        this.movieIds = movieIds;
+        this.userIds = userIds;
+        this.movieOrdinals = movieOrdinals;
+        this.userOrdinals = userOrdinals;
+        this.movieOffsets = movieOffsets;
+        this.ratingUsers = ratingUsers;
+        this.ratingValues = ratingValues;
+        this.ratingDates = ratingDates;
+        this.userOffsets = userOffsets;
+        this.userMovies = userMovies;
+        this.userRatingValues = userRatingValues;
+        this.userRatingIndexes = indexes(movieOffsets, ratingUsers, userOffsets);
+    }
+
+    // Builds a matrix out of the movieId -> ratings map produced by the text loader.
+    public static RatingMatrix fromMap(Map<Integer, List<UserRating>> data) {
+        Builder builder = new Builder();
+        for (Map.Entry<Integer, List<UserRating>> entry : data.entrySet()) {
+            int movieId = entry.getKey();
+            for (UserRating userRating : entry.getValue()) {
+                int epochDay = userRating.getDate() != null ? (int) LocalDate.parse(userRating.getDate()).toEpochDay() : 0;
+                builder.add(movieId, userRating.getUserId(), userRating.getRating(), epochDay);
+            }
+        }
+        return builder.build();
+    }
+
+    // Rebuilds a matrix out of the arrays of both views (e.g. when reading a snapshot). The ids must be ascending.
+    public static RatingMatrix fromArrays(int[] movieIds, int[] userIds, int[] movieOffsets, int[] ratingUsers,
+                                          byte[] ratingValues, short[] ratingDates, int[] userOffsets,
+                                          int[] userMovies, byte[] userRatingValues) {
+        int nrRatings = ratingUsers.length;
+        if (movieOffsets.length != movieIds.length + 1 || userOffsets.length != userIds.length + 1
+                || movieOffsets[movieIds.length] != nrRatings || userOffsets[userIds.length] != nrRatings
+                || ratingValues.length != nrRatings || ratingDates.length != nrRatings
+                || userMovies.length != nrRatings || userRatingValues.length != nrRatings) {
+            throw new IllegalArgumentException("Inconsistent rating matrix arrays");
+        }
+        return new RatingMatrix(movieIds, userIds, lookup(movieIds), lookup(userIds), movieOffsets, ratingUsers,
+                ratingValues, ratingDates, userOffsets, userMovies, userRatingValues);
+    }
+
+    // Returns the movie-major index of each user-major entry. Both views list the ratings of a user by movie ordinal.
+    private static int[] indexes(int[] movieOffsets, int[] ratingUsers, int[] userOffsets) {
+        int[] result = new int[ratingUsers.length];
+        int[] next = Arrays.copyOf(userOffsets, userOffsets.length - 1);
+        for (int m = 0; m < movieOffsets.length - 1; m++) {
+            for (int i = movieOffsets[m]; i < movieOffsets[m + 1]; i++) {
+                result[next[ratingUsers[i]]++] = i;
+            }
+        }
+        return result;
+    }
+
+    // Returns the id -> ordinal lookup table for the provided ordinal -> id array.
+    private static int[] lookup(int[] ids) {
+        int maxId = -1;
+        for (int id : ids) {
+            maxId = Math.max(maxId, id);
+        }
+        int[] result = new int[maxId + 1];
+        Arrays.fill(result, -1);
+        for (int ordinal = 0; ordinal < ids.length; ordinal++) {
+            result[ids[ordinal]] = ordinal;
+        }
+        return result;
+    }
+
+    public int getNrMovies() {
+        return movieIds.length;
+    }
+
+    public int getNrUsers() {
+        return userIds.length;
+    }
+
+    public int getNrRatings() {
+        return ratingUsers.length;
+    }
+
+    public int getMovieId(int movie) {
+        return movieIds[movie];
+    }
+
+    public int getUserId(int user) {
+        return userIds[user];
+    }
+
+    // Returns the ordinal of the movie, or -1 if the movie doesn't exist.
+    public int getMovieOrdinal(int movieId) {
+        return movieId >= 0 && movieId < movieOrdinals.length ? movieOrdinals[movieId] : -1;
+    }
+
+    // Returns the ordinal of the user, or -1 if the user doesn't exist.
+    public int getUserOrdinal(int userId) {
+        return userId >= 0 && userId < userOrdinals.length ? userOrdinals[userId] : -1;
+    }
+
+    // Index of the first rating of the movie (movie-major view).
+    public int getMovieStart(int movie) {
+        return movieOffsets[movie];
+    }
+
+    // Index after the last rating of the movie (movie-major view).
+    public int getMovieEnd(int movie) {
+        return movieOffsets[movie + 1];
+    }
+
+    public int getMovieRatingCount(int movie) {
+        return movieOffsets[movie + 1] - movieOffsets[movie];
+    }
+
+    // Returns the user ordinal of the rating found at the specified index.
+    public int getUser(int index) {
+        return ratingUsers[index];
+    }
+
+    // Returns the value of the rating found at the specified index.
+    public int getRating(int index) {
+        return ratingValues[index];
+    }
+
+    // Returns the date of the rating found at the specified index, as days since 1970-01-01.
+    public int getEpochDay(int index) {
+        return ratingDates[index];
+    }
+
+    // Position of the first movie rated by the user (user-major view).
+    public int getUserStart(int user) {
+        return userOffsets[user];
+    }
+
+    // Position after the last movie rated by the user (user-major view).
+    public int getUserEnd(int user) {
+        return userOffsets[user + 1];
+    }
+
+    public int getUserRatingCount(int user) {
+        return userOffsets[user + 1] - userOffsets[user];
+    }
+
+    // Returns the movie ordinal found at the specified position of the user-major view.
+    public int getUserMovie(int position) {
+        return userMovies[position];
+    }
+
+    // Returns the value of the rating found at the specified position of the user-major view.
+    public int getUserRating(int position) {
+        return userRatingValues[position];
+    }
+
+    // Returns the movie-major index of the rating found at the specified position of the user-major view.
+    public int getUserRatingIndex(int position) {
+        return userRatingIndexes[position];
+    }
+
+    // Returns the movie-major index of the (movie, user) rating, or -1 if the user didn't rate the movie.
+    public int findRating(int movie, int user) {
+        int position = findUserRating(user, movie);
+        return position != -1 ? userRatingIndexes[position] : -1;
+    }
+
+    // Returns the position of the (user, movie) rating in the user-major view, or -1 if the user didn't rate the movie.
+    public int findUserRating(int user, int movie) {
+        int low = userOffsets[user];
+        int high = userOffsets[user + 1] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int current = userMovies[middle];
+            if (current < movie) {
+                low = middle + 1;
+            } else if (current > movie) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the approximate heap size of the matrix, in bytes.
+    public long getSizeInBytes() {
+        long result = 0;
+        result += 4L * (movieIds.length + userIds.length + movieOrdinals.length + userOrdinals.length);
+        result += 4L * (movieOffsets.length + ratingUsers.length + userOffsets.length + userMovies.length);
+        result += 4L * userRatingIndexes.length;
+        result += ratingValues.length + 2L * ratingDates.length + userRatingValues.length;
+        return result;
+    }
+
+    /**
+     * Accumulates ratings in coordinate form and turns them into a {@link RatingMatrix}.
+     * The order of the ratings of each movie is preserved.
+     */
+    public static class Builder {
+
+        private int size;
+        private int[] movieIds;
+        private int[] userIds;
+        private byte[] ratings;
+        private short[] dates;
+
+        public Builder() {
+            this(1024);
+        }
+
+        public Builder(int expectedNrRatings) {
+            int capacity = Math.max(expectedNrRatings, 16);
+            movieIds = new int[capacity];
+            userIds = new int[capacity];
+            ratings = new byte[capacity];
+            dates = new short[capacity];
+        }
+
+        public Builder add(int movieId, int userId, int rating, int epochDay) {
+            if (movieId < 0 || userId < 0) {
+                throw new IllegalArgumentException("Negative id: movie " + movieId + ", user " + userId);
+            }
+            if (size == movieIds.length) {
+                grow();
+            }
+            movieIds[size] = movieId;
+            userIds[size] = userId;
+            ratings[size] = (byte) rating;
+            dates[size] = (short) epochDay;
+            size++;
+            return this;
+        }
+
+        // Adds the first n ratings of the movie, in order.
+        public Builder addAll(int movieId, int[] userIds, byte[] ratings, short[] epochDays, int n) {
+            if (movieId < 0) {
+                throw new IllegalArgumentException("Negative movie id: " + movieId);
+            }
+            while (size + n > movieIds.length) {
+                grow();
+            }
+            Arrays.fill(movieIds, size, size + n, movieId);
+            System.arraycopy(userIds, 0, this.userIds, size, n);
+            System.arraycopy(ratings, 0, this.ratings, size, n);
+            System.arraycopy(epochDays, 0, this.dates, size, n);
+            size += n;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private void grow() {
+            int capacity = movieIds.length * 2;
+            movieIds = Arrays.copyOf(movieIds, capacity);
+            userIds = Arrays.copyOf(userIds, capacity);
+            ratings = Arrays.copyOf(ratings, capacity);
+            dates = Arrays.copyOf(dates, capacity);
+        }
+
+        public RatingMatrix build() {
+            int[] movieOrdinals = ordinals(movieIds, size);
+            int[] userOrdinals = ordinals(userIds, size);
+            int[] movieIdsByOrdinal = ids(movieOrdinals);
+            int[] userIdsByOrdinal = ids(userOrdinals);
+            int nrMovies = movieIdsByOrdinal.length;
+            int nrUsers = userIdsByOrdinal.length;
+
+            // Movie-major view (stable counting sort by movie ordinal).
+            int[] movieOffsets = new int[nrMovies + 1];
+            for (int i = 0; i < size; i++) {
+                movieOffsets[movieOrdinals[movieIds[i]] + 1]++;
+            }
+            for (int m = 0; m < nrMovies; m++) {
+                movieOffsets[m + 1] += movieOffsets[m];
+            }
+            int[] next = Arrays.copyOf(movieOffsets, nrMovies);
+            int[] ratingUsers = new int[size];
+            byte[] ratingValues = new byte[size];
+            short[] ratingDates = new short[size];
+            for (int i = 0; i < size; i++) {
+                int index = next[movieOrdinals[movieIds[i]]]++;
+                ratingUsers[index] = userOrdinals[userIds[i]];
+                ratingValues[index] = ratings[i];
+                ratingDates[index] = dates[i];
+            }
+
+            // User-major view (counting sort of the movie-major view by user ordinal).
+            int[] userOffsets = new int[nrUsers + 1];
+            for (int i = 0; i < size; i++) {
+                userOffsets[ratingUsers[i] + 1]++;
+            }
+            for (int u = 0; u < nrUsers; u++) {
+                userOffsets[u + 1] += userOffsets[u];
+            }
+            next = Arrays.copyOf(userOffsets, nrUsers);
+            int[] userMovies = new int[size];
+            byte[] userRatingValues = new byte[size];
+            for (int m = 0; m < nrMovies; m++) {
+                for (int i = movieOffsets[m]; i < movieOffsets[m + 1]; i++) {
+                    int position = next[ratingUsers[i]]++;
+                    userMovies[position] = m;
+                    userRatingValues[position] = ratingValues[i];
+                }
+            }
+
+            return new RatingMatrix(movieIdsByOrdinal, userIdsByOrdinal, movieOrdinals, userOrdinals,
+                    movieOffsets, ratingUsers, ratingValues, ratingDates, userOffsets, userMovies, userRatingValues);
+        }
+
+        // Returns the id -> ordinal lookup table for the first n ids. Ordinals follow the ascending order of the ids.
+        private static int[] ordinals(int[] ids, int n) {
+            int maxId = -1;
+            for (int i = 0; i < n; i++) {
+                maxId = Math.max(maxId, ids[i]);
+            }
+            int[] result = new int[maxId + 1];
+            for (int i = 0; i < n; i++) {
+                result[ids[i]] = 1;
+            }
+            int ordinal = 0;
+            for (int id = 0; id < result.length; id++) {
+                result[id] = result[id] != 0 ? ordinal++ : -1;
+            }
+            return result;
+        }
+
+        // Inverts an id -> ordinal lookup table.
+        private static int[] ids(int[] ordinals) {
+            int count = 0;
+            for (int ordinal : ordinals) {
+                if (ordinal >= 0) {
+                    count++;
+                }
+            }
+            int[] result = new int[count];
+            for (int id = 0; id < ordinals.length; id++) {
+                if (ordinals[id] >= 0) {
+                    result[ordinals[id]] = id;
+                }
+            }
+            return result;
+        }
+    }
+}
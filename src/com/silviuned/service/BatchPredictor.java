@@ -0,0 +1,42 @@
+package com.silviuned.service;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.metrics.ScoringMetrics;
+
+/**
+ * Predicts every rating of a rating matrix through the batched prediction API of an {@link Algorithm}.
+ * The ratings are scored one movie at a time, in chunks of at most BATCH_SIZE ratings, so the buffers stay small
+ * even when scoring the whole training data.
+ */
+public class BatchPredictor {
+
+    public static final int BATCH_SIZE = 4096;
+
+    public interface BatchConsumer {
+
+        // predictions[k] is the prediction of the rating found at the movie-major index from + k,
+        // for k in [0, to - from). All these ratings belong to movie m (ordinal).
+        void accept(int m, int from, int to, double[] predictions);
+    }
+
+    // Scores the data in the movie-major order, and hands every chunk to the consumer.
+    public static void forEachBatch(Algorithm algorithm, RatingMatrix data, BatchConsumer consumer) {
+        int[] movieIds = new int[BATCH_SIZE];
+        int[] userIds = new int[BATCH_SIZE];
+        double[] predictions = new double[BATCH_SIZE];
+
+        for (int m = 0; m < data.getNrMovies(); m++) {
+            int movieId = data.getMovieId(m);
+            for (int from = data.getMovieStart(m); from < data.getMovieEnd(m); from += BATCH_SIZE) {
+                int to = Math.min(from + BATCH_SIZE, data.getMovieEnd(m));
+                for (int i = from; i < to; i++) {
+                    movieIds[i - from] = movieId;
+                    userIds[i - from] = data.getUserId(data.getUser(i));
+                }
+                ScoringMetrics.predictRatings(algorithm, movieIds, userIds, predictions, to - from);
+                consumer.accept(m, from, to, predictions);
+            }
+        }
+    }
+}
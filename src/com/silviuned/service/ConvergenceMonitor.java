@@ -0,0 +1,116 @@
+package com.silviuned.service;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.algorithms.Algorithm;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the training error at the end of every epoch, for the convergence checks of the algorithms.
+ * Like {@link RmseEvaluator}, the returned value is the mean of the squared errors.
+ *
+ * TRAINING_ERROR uses the errors the algorithm accumulated while training (see {@link #add(double, long)}),
+ * so no extra pass over the data is needed. SAMPLED predicts a fixed random sample of the training ratings,
+ * and FULL re-evaluates all of them.
+ */
+public class ConvergenceMonitor {
+
+    public enum Mode {
+        TRAINING_ERROR, SAMPLED, FULL
+    }
+
+    private static final int DEFAULT_SAMPLE_SIZE = 100000;
+    private static final long DEFAULT_SEED = 42;
+
+    private final Mode mode;
+    private final RatingMatrix ratings;
+
+    // The sampled ratings (SAMPLED mode only), ordered by movie.
+    private int[] sampleMovieIds;
+    private int[] sampleUserIds;
+    private int[] sampleRatings;
+
+    private double squaredErrorSum;
+    private long count;
+
+    public ConvergenceMonitor(Mode mode, RatingMatrix ratings) {
+        this(mode, ratings, DEFAULT_SAMPLE_SIZE, DEFAULT_SEED);
+    }
+
+    public ConvergenceMonitor(Mode mode, RatingMatrix ratings, int sampleSize, long seed) {
+        this.mode = mode;
+        this.ratings = ratings;
+        if (mode == Mode.SAMPLED) {
+            initSample(Math.min(sampleSize, ratings.getNrRatings()), seed);
+        }
+    }
+
+    // Draws the sample (without replacement) out of the movie-major view.
+    private void initSample(int sampleSize, long seed) {
+        Random random = new Random(seed);
+        int nrRatings = ratings.getNrRatings();
+        int[] indexes;
+        if (sampleSize == nrRatings) {
+            indexes = new int[nrRatings];
+            for (int i = 0; i < nrRatings; i++) {
+                indexes[i] = i;
+            }
+        } else {
+            indexes = random.ints(0, nrRatings).distinct().limit(sampleSize).toArray();
+            Arrays.sort(indexes);
+        }
+
+        sampleMovieIds = new int[sampleSize];
+        sampleUserIds = new int[sampleSize];
+        sampleRatings = new int[sampleSize];
+        int m = 0;
+        for (int k = 0; k < sampleSize; k++) {
+            int i = indexes[k];
+            while (ratings.getMovieEnd(m) <= i) {
+                m++;
+            }
+            sampleMovieIds[k] = ratings.getMovieId(m);
+            sampleUserIds[k] = ratings.getUserId(ratings.getUser(i));
+            sampleRatings[k] = ratings.getRating(i);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    // Adds the squared errors observed while training (TRAINING_ERROR mode). Thread safe.
+    public synchronized void add(double squaredErrorSum, long count) {
+        this.squaredErrorSum += squaredErrorSum;
+        this.count += count;
+    }
+
+    // Returns the mean squared error of the epoch that just ended, and resets the accumulated errors.
+    public synchronized double endEpoch(Algorithm algorithm) {
+        double result;
+        switch (mode) {
+            case TRAINING_ERROR:
+                result = count > 0 ? squaredErrorSum / count : 0;
+                break;
+            case SAMPLED:
+                result = evalSample(algorithm);
+                break;
+            default:
+                result = RmseEvaluator.eval(algorithm, ratings);
+                break;
+        }
+        squaredErrorSum = 0;
+        count = 0;
+        return result;
+    }
+
+    private double evalSample(Algorithm algorithm) {
+        double sum = 0;
+        for (int k = 0; k < sampleRatings.length; k++) {
+            double error = sampleRatings[k] - algorithm.predictRating(sampleMovieIds[k], sampleUserIds[k]);
+            sum += error * error;
+        }
+        return sampleRatings.length > 0 ? sum / sampleRatings.length : 0;
+    }
+}
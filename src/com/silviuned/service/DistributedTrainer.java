@@ -0,0 +1,235 @@
+package com.silviuned.service;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.algorithms.DistributedSvdCoordinator;
+import com.silviuned.service.algorithms.DistributedSvdWorker;
+import com.silviuned.service.algorithms.ModelFile;
+import com.silviuned.service.algorithms.SvdAlgorithm;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.data.DataSnapshot;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trains the SVD model on several processes (see {@link DistributedSvdCoordinator}), and saves it where
+ * {@link Main} looks for it ("<folder>.svd.model"). Usage:
+ *
+ * coordinator <training folder> <port> <nr workers>
+ * worker <training folder> <coordinator host> <port>
+ * local <training folder> <nr workers> [<test folder>]
+ * check [<nr workers>]
+ *
+ * The local mode runs the coordinator and starts the workers as processes of this machine. With a test folder, it
+ * also trains in a single process (with as many threads as workers) and checks that both models are the same.
+ *
+ * The check mode does the same comparison on a small random data set, with the workers as threads of this process
+ * (2 by default), and exits with status 1 when the models differ. The build runs it (see checkDistributed).
+ */
+public class DistributedTrainer {
+
+	private static final int CHECK_NR_MOVIES = 200;
+	private static final int CHECK_NR_USERS = 400;
+	private static final long CHECK_SEED = 42;
+	private static final double CHECK_TRAINING_TOLERANCE = 1e-4;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length >= 1 && args[0].equals("check")) {
+			if (!check(args.length > 1 ? Integer.parseInt(args[1]) : 2)) {
+				System.exit(1);
+			}
+			return;
+		}
+		if (args.length < 3) {
+			System.out.println("Usage: coordinator <training folder> <port> <nr workers>");
+			System.out.println("       worker <training folder> <coordinator host> <port>");
+			System.out.println("       local <training folder> <nr workers> [<test folder>]");
+			System.out.println("       check [<nr workers>]");
+			return;
+		}
+		String trainingDataPath = args[1];
+		DataManager dm = DataSnapshot.loadOrCreate(trainingDataPath, DataSnapshot.defaultSnapshotFile(trainingDataPath));
+
+		switch (args[0]) {
+			case "coordinator":
+				try (DistributedSvdCoordinator coordinator = new DistributedSvdCoordinator(dm, Integer.parseInt(args[3]),
+						Integer.parseInt(args[2]))) {
+					save(coordinator.train(), trainingDataPath);
+				}
+				break;
+			case "worker":
+				new DistributedSvdWorker(dm).run(args[2], Integer.parseInt(args[3]));
+				break;
+			case "local":
+				runLocal(dm, trainingDataPath, Integer.parseInt(args[2]), args.length > 3 ? args[3] : null);
+				break;
+			default:
+				System.out.println("Unknown mode " + args[0]);
+		}
+	}
+
+	private static void runLocal(DataManager dm, String trainingDataPath, int nrWorkers, String testDataPath)
+			throws IOException, InterruptedException {
+		SvdAlgorithm model;
+		try (DistributedSvdCoordinator coordinator = new DistributedSvdCoordinator(dm, nrWorkers, 0)) {
+			// The snapshot was written by the coordinator (if needed), so the workers only read it.
+			String javaBinary = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+			List<Process> workers = new ArrayList<>();
+			for (int w = 0; w < nrWorkers; w++) {
+				workers.add(new ProcessBuilder(javaBinary, "-cp", System.getProperty("java.class.path"),
+						DistributedTrainer.class.getName(), "worker", trainingDataPath, "localhost",
+						String.valueOf(coordinator.getPort()))
+						.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+						.redirectError(ProcessBuilder.Redirect.INHERIT)
+						.start());
+			}
+			try {
+				// A worker which exits before connecting (e.g. it failed to start) stops the wait right away.
+				model = coordinator.train(() -> {
+					for (int w = 0; w < workers.size(); w++) {
+						if (!workers.get(w).isAlive()) {
+							throw new IOException("Worker process " + w + " exited with code "
+									+ workers.get(w).exitValue() + " before connecting");
+						}
+					}
+				});
+			} finally {
+				for (Process worker : workers) {
+					if (!worker.waitFor(10, TimeUnit.SECONDS)) {
+						worker.destroy();
+					}
+				}
+			}
+		}
+		save(model, trainingDataPath);
+
+		if (testDataPath != null) {
+			RatingMatrix testData = DataSnapshot.loadOrCreate(testDataPath, DataSnapshot.defaultSnapshotFile(testDataPath)).getRatings();
+			SvdAlgorithm reference = new SvdAlgorithm(dm, nrWorkers);
+			reference.train();
+
+			int nrDifferences = countDifferences(reference, model, dm);
+			System.out.println("RMSE (" + nrWorkers + " processes):\t" + RmseEvaluator.eval(model, testData));
+			System.out.println("RMSE (1 process):\t" + RmseEvaluator.eval(reference, testData));
+			System.out.println(nrDifferences == 0 ? "The models are the same."
+					: "The models differ (" + nrDifferences + " feature values).");
+		}
+	}
+
+	// Trains a small random data set with nrWorkers workers (threads of this process, connected over TCP like the
+	// processes are) and in a single process, and checks that both models are the same. Returns false otherwise.
+	private static boolean check(int nrWorkers) throws IOException, InterruptedException {
+		DataManager dm = new DataManager(randomRatings(CHECK_NR_MOVIES, CHECK_NR_USERS, CHECK_SEED));
+		SvdAlgorithm model;
+		try (DistributedSvdCoordinator coordinator = new DistributedSvdCoordinator(dm, nrWorkers, 0)) {
+			int port = coordinator.getPort();
+			List<Thread> workers = new ArrayList<>();
+			for (int w = 0; w < nrWorkers; w++) {
+				Thread worker = new Thread(() -> {
+					try {
+						new DistributedSvdWorker(dm).run("localhost", port);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}, "svd-worker-" + w);
+				worker.start();
+				workers.add(worker);
+			}
+			model = coordinator.train(() -> {
+				for (int w = 0; w < workers.size(); w++) {
+					if (!workers.get(w).isAlive()) {
+						throw new IOException("Worker " + w + " stopped before connecting");
+					}
+				}
+			});
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		}
+
+		SvdAlgorithm reference = new SvdAlgorithm(dm, nrWorkers);
+		reference.train();
+
+		RatingMatrix testData = randomTestRatings(dm.getRatings(), CHECK_SEED + 1);
+		double rmse = RmseEvaluator.eval(model, testData);
+		double referenceRmse = RmseEvaluator.eval(reference, testData);
+		double trainingDifference = getMaxTrainingDifference(reference, model, dm.getRatings());
+		int nrDifferences = countDifferences(reference, model, dm);
+		System.out.println("RMSE (" + nrWorkers + " workers):\t" + rmse);
+		System.out.println("RMSE (1 process):\t" + referenceRmse);
+		System.out.println("Max difference of the training predictions:\t" + trainingDifference);
+		System.out.println(nrDifferences == 0 ? "The models are the same (" + model.getNrFeatures() + " features)."
+				: "The models differ (" + nrDifferences + " feature values).");
+		return nrDifferences == 0 && rmse == referenceRmse && trainingDifference <= CHECK_TRAINING_TOLERANCE;
+	}
+
+	// The largest difference between the predictions of the models on the training pairs. The coordinator's model
+	// has no prediction cache, so it sums the features in double precision, where the reference reads its (float)
+	// cache: they only agree within CHECK_TRAINING_TOLERANCE.
+	private static double getMaxTrainingDifference(SvdAlgorithm reference, SvdAlgorithm model, RatingMatrix ratings) {
+		double result = 0;
+		for (int m = 0; m < ratings.getNrMovies(); m++) {
+			for (int i = ratings.getMovieStart(m); i < ratings.getMovieEnd(m); i++) {
+				int movieId = ratings.getMovieId(m);
+				int userId = ratings.getUserId(ratings.getUser(i));
+				result = Math.max(result, Math.abs(reference.predictRating(movieId, userId) - model.predictRating(movieId, userId)));
+			}
+		}
+		return result;
+	}
+
+	// Every user rates movie (user % nrMovies), so that every movie has ratings, and about a tenth of the others.
+	private static RatingMatrix randomRatings(int nrMovies, int nrUsers, long seed) {
+		Random random = new Random(seed);
+		RatingMatrix.Builder builder = new RatingMatrix.Builder();
+		for (int u = 0; u < nrUsers; u++) {
+			for (int m = 0; m < nrMovies; m++) {
+				if (m == u % nrMovies || random.nextInt(10) == 0) {
+					builder.add(m + 1, u + 1, 1 + random.nextInt(5), 0);
+				}
+			}
+		}
+		return builder.build();
+	}
+
+	// About a twentieth of the pairs of the training movies and users which aren't rated in the training data.
+	private static RatingMatrix randomTestRatings(RatingMatrix trainingData, long seed) {
+		Random random = new Random(seed);
+		RatingMatrix.Builder builder = new RatingMatrix.Builder();
+		for (int u = 0; u < trainingData.getNrUsers(); u++) {
+			for (int m = 0; m < trainingData.getNrMovies(); m++) {
+				if (random.nextInt(20) == 0 && trainingData.findRating(m, u) == -1) {
+					builder.add(trainingData.getMovieId(m), trainingData.getUserId(u), 1 + random.nextInt(5), 0);
+				}
+			}
+		}
+		return builder.build();
+	}
+
+	// The nr of feature values which differ between the models (plus one if the nr of features differs).
+	private static int countDifferences(SvdAlgorithm reference, SvdAlgorithm model, DataManager dm) {
+		int nrDifferences = reference.getNrFeatures() == model.getNrFeatures() ? 0 : 1;
+		for (int f = 0; f < Math.min(reference.getNrFeatures(), model.getNrFeatures()); f++) {
+			for (int m = 0; m < dm.getNrMovies(); m++) {
+				if (reference.getMovieFeature(f, m) != model.getMovieFeature(f, m)) {
+					nrDifferences++;
+				}
+			}
+			for (int u = 0; u < dm.getNrUsers(); u++) {
+				if (reference.getUserFeature(f, u) != model.getUserFeature(f, u)) {
+					nrDifferences++;
+				}
+			}
+		}
+		return nrDifferences;
+	}
+
+	private static void save(SvdAlgorithm model, String trainingDataPath) throws IOException {
+		new ModelFile(model, null, null).save(ModelFile.defaultModelFile(trainingDataPath, "svd"),
+				ModelFile.Precision.FLOAT64, false);
+	}
+}
@@ -0,0 +1,244 @@
+package com.silviuned.service;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.algorithms.BlendedAlgorithm;
+import com.silviuned.service.algorithms.StackedAlgorithm;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.metrics.ScoringMetrics;
+import com.silviuned.service.postProcessing.GlobalBiasCorrector;
+import com.silviuned.service.postProcessing.ItemBasedCorrector;
+import com.silviuned.service.postProcessing.NearIntegerRounder;
+import com.silviuned.service.postProcessing.PredictionTruncator;
+import com.silviuned.utils.SharedPools;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+import static com.silviuned.service.BatchPredictor.BATCH_SIZE;
+
+/**
+ * Evaluates several algorithms with their post processors, scoring every rating once per algorithm: one pass over
+ * the training data fits the item based correctors of all the algorithms, and one pass over the test data stores
+ * the predictions of all the algorithms. The global bias corrector, the truncation, the rounding and the error are
+ * then passes over the stored test predictions.
+ *
+ * A blended or stacked algorithm isn't scored on its own: its models are scored (once, even if they're evaluated
+ * too or shared by other blends), and its predictions are blended out of theirs, in the same batch. The results are the same
+ * as the ones of the correctors' constructors and RmseEvaluator.eval.
+ */
+public class EvaluationPipeline {
+
+    // Nr of consecutive movies scored by a task.
+    private static final int MOVIES_PER_TASK = 16;
+
+    private final DataManager dm;
+    private final RatingMatrix testData;
+    // The tasks run on the shared pool of this size (see SharedPools).
+    private final int nrThreads;
+
+    // The scored algorithms: the evaluated ones and the models of the blends. A blend's predictions are blended
+    // out of the ones of columns modelColumns[c]; the other columns are predicted (modelColumns[c] is null).
+    private final List<Algorithm> columns = new ArrayList<>();
+    private final List<int[]> modelColumns = new ArrayList<>();
+
+    public EvaluationPipeline(DataManager dm, RatingMatrix testData) {
+        this(dm, testData, Runtime.getRuntime().availableProcessors());
+    }
+
+    // The results don't depend on the nr of threads: the tasks score disjoint ranges of movies.
+    public EvaluationPipeline(DataManager dm, RatingMatrix testData, int nrThreads) {
+        this.dm = dm;
+        this.testData = testData;
+        this.nrThreads = nrThreads;
+    }
+
+    public static class Result {
+
+        private final Algorithm algorithm;
+        private final ItemBasedCorrector itemBasedCorrector;
+        private final GlobalBiasCorrector globalBiasCorrector;
+        private final double rmse;
+
+        private Result(Algorithm algorithm, ItemBasedCorrector itemBasedCorrector,
+                       GlobalBiasCorrector globalBiasCorrector, double rmse) {
+            this.algorithm = algorithm;
+            this.itemBasedCorrector = itemBasedCorrector;
+            this.globalBiasCorrector = globalBiasCorrector;
+            this.rmse = rmse;
+        }
+
+        public Algorithm getAlgorithm() {
+            return algorithm;
+        }
+
+        public ItemBasedCorrector getItemBasedCorrector() {
+            return itemBasedCorrector;
+        }
+
+        public GlobalBiasCorrector getGlobalBiasCorrector() {
+            return globalBiasCorrector;
+        }
+
+        // Measured like RmseEvaluator.eval, with both correctors.
+        public double getRmse() {
+            return rmse;
+        }
+    }
+
+    // Fits the correctors of the algorithms and measures their errors on the test data. Returns one result per
+    // algorithm, in the same order.
+    public List<Result> evaluate(List<Algorithm> algorithms, boolean useNearIntegerRounding) {
+        columns.clear();
+        modelColumns.clear();
+        Map<Algorithm, Integer> indexes = new IdentityHashMap<>();
+        for (Algorithm algorithm : algorithms) {
+            addColumn(algorithm, indexes);
+        }
+
+        double[][] trainingSums = scoreTrainingData();
+        double[][] testPredictions = scoreTestData();
+
+        List<Result> results = new ArrayList<>();
+        for (Algorithm algorithm : algorithms) {
+            int c = indexes.get(algorithm);
+            ItemBasedCorrector itemBasedCorrector = ItemBasedCorrector.fit(dm, trainingSums[c]);
+            double[] predictions = testPredictions[c].clone();
+
+            for (int m = 0; m < testData.getNrMovies(); m++) {
+                double correction = itemBasedCorrector.getCorrection(testData.getMovieId(m));
+                for (int i = testData.getMovieStart(m); i < testData.getMovieEnd(m); i++) {
+                    predictions[i] += correction;
+                }
+            }
+
+            GlobalBiasCorrector globalBiasCorrector = GlobalBiasCorrector.fit(testData, predictions);
+            for (int i = 0; i < predictions.length; i++) {
+                predictions[i] = PredictionTruncator.truncate(globalBiasCorrector.correct(predictions[i]));
+            }
+
+            if (useNearIntegerRounding) {
+                double nearIntegerRounderDiff = algorithm.getNearIntegerRounderDiff();
+                for (int i = 0; i < predictions.length; i++) {
+                    predictions[i] = NearIntegerRounder.round(predictions[i], nearIntegerRounderDiff);
+                }
+            }
+
+            double sum = 0;
+            for (int i = 0; i < predictions.length; i++) {
+                double error = testData.getRating(i) - predictions[i];
+                sum += error * error;
+            }
+            results.add(new Result(algorithm, itemBasedCorrector, globalBiasCorrector, sum / testData.getNrRatings()));
+        }
+        return results;
+    }
+
+    // Adds the algorithm (after the models it blends) unless it was already added, and returns its column.
+    private int addColumn(Algorithm algorithm, Map<Algorithm, Integer> indexes) {
+        Integer result = indexes.get(algorithm);
+        if (result != null) {
+            return result;
+        }
+        int[] models = null;
+        if (algorithm instanceof BlendedAlgorithm) {
+            models = new int[] {
+                    addColumn(((BlendedAlgorithm) algorithm).getAlgorithm1(), indexes),
+                    addColumn(((BlendedAlgorithm) algorithm).getAlgorithm2(), indexes)
+            };
+        } else if (algorithm instanceof StackedAlgorithm) {
+            List<Algorithm> stackedModels = ((StackedAlgorithm) algorithm).getModels();
+            models = new int[stackedModels.size()];
+            for (int k = 0; k < models.length; k++) {
+                models[k] = addColumn(stackedModels.get(k), indexes);
+            }
+        }
+        result = columns.size();
+        columns.add(algorithm);
+        modelColumns.add(models);
+        indexes.put(algorithm, result);
+        return result;
+    }
+
+    // Sums the predictions of every movie's training ratings, by column and movie ordinal (in the movie-major
+    // order, like the item based corrector does).
+    private double[][] scoreTrainingData() {
+        RatingMatrix ratings = dm.getRatings();
+        double[][] result = new double[columns.size()][ratings.getNrMovies()];
+        forEachBatch(ratings, (m, from, to, predictions) -> {
+            for (int c = 0; c < predictions.length; c++) {
+                double sum = result[c][m];
+                for (int k = 0; k < to - from; k++) {
+                    sum += predictions[c][k];
+                }
+                result[c][m] = sum;
+            }
+        });
+        return result;
+    }
+
+    // Predicts every test rating, by column and movie-major index.
+    private double[][] scoreTestData() {
+        double[][] result = new double[columns.size()][testData.getNrRatings()];
+        forEachBatch(testData, (m, from, to, predictions) -> {
+            for (int c = 0; c < predictions.length; c++) {
+                System.arraycopy(predictions[c], 0, result[c], from, to - from);
+            }
+        });
+        return result;
+    }
+
+    private interface BatchConsumer {
+
+        // predictions[c][k] is the prediction of column c for the rating found at the movie-major index from + k.
+        void accept(int m, int from, int to, double[][] predictions);
+    }
+
+    // Scores the data in batches of at most BATCH_SIZE ratings of the same movie (see BatchPredictor), on the pool.
+    // The batches of a movie are handed over in order, by the same task.
+    private void forEachBatch(RatingMatrix data, BatchConsumer consumer) {
+        int nrTasks = (data.getNrMovies() + MOVIES_PER_TASK - 1) / MOVIES_PER_TASK;
+        forEach(nrTasks, task -> {
+            int[] movieIds = new int[BATCH_SIZE];
+            int[] userIds = new int[BATCH_SIZE];
+            double[][] predictions = new double[columns.size()][BATCH_SIZE];
+
+            for (int m = task * MOVIES_PER_TASK; m < Math.min((task + 1) * MOVIES_PER_TASK, data.getNrMovies()); m++) {
+                int movieId = data.getMovieId(m);
+                for (int from = data.getMovieStart(m); from < data.getMovieEnd(m); from += BATCH_SIZE) {
+                    int to = Math.min(from + BATCH_SIZE, data.getMovieEnd(m));
+                    int n = to - from;
+                    for (int i = from; i < to; i++) {
+                        movieIds[i - from] = movieId;
+                        userIds[i - from] = data.getUserId(data.getUser(i));
+                    }
+                    for (int c = 0; c < predictions.length; c++) {
+                        int[] models = modelColumns.get(c);
+                        Algorithm algorithm = columns.get(c);
+                        if (models == null) {
+                            ScoringMetrics.predictRatings(algorithm, movieIds, userIds, predictions[c], n);
+                        } else if (algorithm instanceof BlendedAlgorithm) {
+                            System.arraycopy(predictions[models[0]], 0, predictions[c], 0, n);
+                            BlendedAlgorithm.blend(predictions[c], predictions[models[1]], n);
+                        } else {
+                            double[][] modelPredictions = new double[models.length][];
+                            for (int k = 0; k < models.length; k++) {
+                                modelPredictions[k] = predictions[models[k]];
+                            }
+                            ((StackedAlgorithm) algorithm).blend(modelPredictions, predictions[c], n);
+                        }
+                    }
+                    consumer.accept(m, from, to, predictions);
+                }
+            }
+        });
+    }
+
+    // Runs the action for every ordinal in [0, n) on the shared pool, and waits for all of them.
+    private void forEach(int n, IntConsumer action) {
+        SharedPools.forEach(nrThreads, n, action);
+    }
+}
@@ -0,0 +1,72 @@
+package com.silviuned.service;
+
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.algorithms.FoldedUser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Predictions for users who aren't in the training data, out of their own ratings (see {@link Algorithm#foldIn}).
+ * The folded users of the most recently seen users are kept, so the fold-in only runs on a user's first request;
+ * the least recently used ones are evicted. Thread safe.
+ */
+public class FoldInCache {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final Algorithm algorithm;
+    private final Map<Integer, FoldedUser> cache;
+
+    public FoldInCache(Algorithm algorithm) {
+        this(algorithm, DEFAULT_CAPACITY);
+    }
+
+    public FoldInCache(Algorithm algorithm, int capacity) {
+        this.algorithm = algorithm;
+        // Access ordered: the eldest entry is the least recently used one.
+        this.cache = new LinkedHashMap<Integer, FoldedUser>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, FoldedUser> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // Predicts the user's rating of the movie. Users of the training data are predicted by the algorithm; the other
+    // ones are folded in out of their ratings (ratings[k] for movieIds[k]), which are only read if the user isn't cached.
+    public double predictRating(int movieId, int userId, int[] movieIds, int[] ratings) {
+        if (algorithm.getDataManager().existsUser(userId)) {
+            return algorithm.predictRating(movieId, userId);
+        }
+        return getFoldedUser(userId, movieIds, ratings).predictRating(movieId);
+    }
+
+    // Returns the cached folded user, or folds the user in (outside the lock) and caches the result.
+    public FoldedUser getFoldedUser(int userId, int[] movieIds, int[] ratings) {
+        FoldedUser result;
+        synchronized (cache) {
+            result = cache.get(userId);
+        }
+        if (result == null) {
+            result = algorithm.foldIn(movieIds, ratings);
+            synchronized (cache) {
+                cache.put(userId, result);
+            }
+        }
+        return result;
+    }
+
+    // Drops the user's folded user, e.g. when the user rated more movies.
+    public void invalidate(int userId) {
+        synchronized (cache) {
+            cache.remove(userId);
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
@@ -1,52 +1,110 @@
 package com.silviuned.service;
 
-import com.silviuned.model.UserRating;
+import com.silviuned.model.RatingMatrix;
 import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.algorithms.AlsAlgorithm;
 import com.silviuned.service.algorithms.BlendedAlgorithm;
 import com.silviuned.service.algorithms.EmAlgorithm;
+import com.silviuned.service.algorithms.ItemKnnAlgorithm;
+import com.silviuned.service.algorithms.ModelFile;
+import com.silviuned.service.algorithms.StackedAlgorithm;
 import com.silviuned.service.data.DataManager;
-import com.silviuned.service.postProcessing.GlobalBiasCorrector;
-import com.silviuned.service.postProcessing.ItemBasedCorrector;
+import com.silviuned.service.data.DataSnapshot;
+import com.silviuned.service.metrics.Metrics;
 import com.silviuned.service.algorithms.SvdAlgorithm;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
-import static com.silviuned.service.data.DataLoader.*;
+import static com.silviuned.service.data.DataLoader.TEST_DATA_PATH;
+import static com.silviuned.service.data.DataLoader.TRAINING_DATA_PATH;
 
 public class Main {
 
+	// The trained models are saved next to the training data ("<folder>.<name>.model") and reused by the next runs.
+	private static final boolean REUSE_MODELS = true;
+
+	// Regularization of the weights of the stacked blend (see PredictionColumns.fitWeights).
+	private static final double STACKING_REGULARIZATION = 1;
+
 	public static void main(String[] args) {
 		long startTime = System.currentTimeMillis();
 
-		// Loading the data
-		Map<Integer, List<UserRating>> trainingData = loadData(TRAINING_DATA_PATH);
-		Map<Integer, List<UserRating>> testData = loadData(TEST_DATA_PATH);
+		// Loading the data. The folders can be provided as arguments: <training folder> <test folder> [<probe folder>]
+		// A binary snapshot of each folder is written on the first run and reused afterwards.
+		String trainingDataPath = args.length > 0 ? args[0] : TRAINING_DATA_PATH;
+		String testDataPath = args.length > 1 ? args[1] : TEST_DATA_PATH;
+		String probeDataPath = args.length > 2 ? args[2] : null;
 
 		// Initializing the data manager
-		DataManager dm = new DataManager(trainingData);
+		DataManager dm = DataSnapshot.loadOrCreate(trainingDataPath, DataSnapshot.defaultSnapshotFile(trainingDataPath));
+		RatingMatrix testData = DataSnapshot.loadOrCreate(testDataPath, DataSnapshot.defaultSnapshotFile(testDataPath)).getRatings();
 
 		// Running the algorithms
 		List<Algorithm> algorithms = new ArrayList<>();
-		algorithms.add(new SvdAlgorithm(dm));
-		algorithms.add(new EmAlgorithm(dm));
+		algorithms.add(loadOrTrain(new SvdAlgorithm(dm, Runtime.getRuntime().availableProcessors()), dm,
+				ModelFile.defaultModelFile(trainingDataPath, "svd")));
+		algorithms.add(loadOrTrain(new EmAlgorithm(dm), dm, ModelFile.defaultModelFile(trainingDataPath, "em")));
 		algorithms.add(new BlendedAlgorithm(algorithms.get(0), algorithms.get(1)));
+		algorithms.add(loadOrTrain(new AlsAlgorithm(dm), dm, ModelFile.defaultModelFile(trainingDataPath, "als")));
+		algorithms.add(loadOrTrain(new ItemKnnAlgorithm(dm), dm, ModelFile.defaultModelFile(trainingDataPath, "knn")));
 
-		for (Algorithm algorithm : algorithms) {
-			algorithm.train();
-
-			// Post processors
-			ItemBasedCorrector itemBasedCorrector = new ItemBasedCorrector(dm, algorithm);
-			GlobalBiasCorrector globalBiasCorrector = new GlobalBiasCorrector(testData, algorithm, itemBasedCorrector);
+		// Stacking the models: their probe predictions are stored once, and the blend's weights are fit over them.
+		// Without a probe folder, the weights are fit on the test data, so the stacked error is measured in-sample.
+		RatingMatrix probeData = probeDataPath != null
+				? DataSnapshot.loadOrCreate(probeDataPath, DataSnapshot.defaultSnapshotFile(probeDataPath)).getRatings()
+				: testData;
+		List<Algorithm> models = new ArrayList<>();
+		PredictionColumns columns = new PredictionColumns(probeData);
+		for (int k : new int[] {0, 1, 3, 4}) {
+			models.add(algorithms.get(k));
+			columns.add(algorithms.get(k).getClass().getSimpleName(), algorithms.get(k));
+		}
+		Algorithm stacked = new StackedAlgorithm(models, columns.fitWeights(STACKING_REGULARIZATION));
+		algorithms.add(stacked);
 
-			double rmse = RmseEvaluator.eval(algorithm, testData, itemBasedCorrector, globalBiasCorrector, true);
-			System.out.println("RMSE:\t" + rmse);
+		// Evaluating the algorithms with their post processors (every rating is scored once per algorithm)
+		for (EvaluationPipeline.Result result : new EvaluationPipeline(dm, testData).evaluate(algorithms, true)) {
+			boolean inSample = result.getAlgorithm() == stacked && probeDataPath == null;
+			System.out.println("RMSE:\t" + result.getRmse() + (inSample ? "\t(in-sample: stacking weights fit on the test data)" : ""));
 		}
 
+		// The counters and latency histograms of the run, when the metrics are on (-Dcf.metrics.log=<file>)
+		Metrics.logSummary();
+
 		// Displaying the total execution time
 		long sec = (System.currentTimeMillis() - startTime) / 1000;
 		System.out.println("Duration: " + sec + " sec.");
 	}
 
+	// Returns the model saved by a previous run if it's the same algorithm with the same hyperparameters, or trains
+	// the algorithm (and saves it, replacing the other one). Also used by Serving.
+	static Algorithm loadOrTrain(Algorithm algorithm, DataManager dm, Path modelFile) {
+		if (REUSE_MODELS && Files.exists(modelFile)) {
+			try {
+				Algorithm saved = ModelFile.load(modelFile, dm).getAlgorithm();
+				if (saved.getClass() == algorithm.getClass() && saved.getParameters().equals(algorithm.getParameters())) {
+					return saved;
+				}
+				System.out.println("Can't reuse the model, training again. " + modelFile + " was trained with "
+						+ saved.getClass().getSimpleName() + saved.getParameters() + ".");
+			} catch (IOException e) {
+				System.out.println("Can't reuse the model, training again. " + e.getMessage());
+			}
+		}
+
+		algorithm.train();
+		if (REUSE_MODELS) {
+			try {
+				new ModelFile(algorithm, null, null).save(modelFile, ModelFile.Precision.FLOAT64, true);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return algorithm;
+	}
+
 }
@@ -0,0 +1,50 @@
+package com.silviuned.service;
+
+import com.silviuned.service.algorithms.ModelFile;
+import com.silviuned.service.algorithms.StreamingSvdTrainer;
+import com.silviuned.service.data.DataSnapshot;
+import com.silviuned.service.data.RatingStream;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.silviuned.service.data.DataLoader.TRAINING_DATA_PATH;
+
+/**
+ * Trains the SVD model of a data set that doesn't fit in memory (see {@link StreamingSvdTrainer}) and saves it
+ * where {@link Main} looks for it ("<folder>.svd.model"), so it's reused by the next runs.
+ */
+public class OutOfCoreTrainer {
+
+	public static void main(String[] args) throws IOException {
+		long startTime = System.currentTimeMillis();
+
+		String trainingDataPath = args.length > 0 ? args[0] : TRAINING_DATA_PATH;
+		Path modelFile = ModelFile.defaultModelFile(trainingDataPath, "svd");
+
+		try (RatingStream stream = openStream(trainingDataPath);
+			 StreamingSvdTrainer trainer = new StreamingSvdTrainer(stream,
+					 modelFile.resolveSibling(modelFile.getFileName() + ".cache"))) {
+			trainer.train();
+			trainer.save(modelFile, ModelFile.Precision.FLOAT64);
+		}
+
+		long sec = (System.currentTimeMillis() - startTime) / 1000;
+		System.out.println("Duration: " + sec + " sec.");
+	}
+
+	// The ratings are streamed from the snapshot of the folder if there is a valid one, otherwise from a stream
+	// file (re)written out of the text files when it's missing or stale.
+	private static RatingStream openStream(String trainingDataPath) throws IOException {
+		Path snapshotFile = DataSnapshot.defaultSnapshotFile(trainingDataPath);
+		if (Files.isRegularFile(snapshotFile)) {
+			try {
+				return DataSnapshot.openStream(snapshotFile, DataSnapshot.fingerprint(trainingDataPath));
+			} catch (IOException e) {
+				System.out.println("Ignoring " + e.getMessage() + ".");
+			}
+		}
+		return RatingStream.openOrConvert(trainingDataPath, RatingStream.defaultStreamFile(trainingDataPath));
+	}
+}
@@ -0,0 +1,229 @@
+package com.silviuned.service;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.postProcessing.PredictionTruncator;
+import com.silviuned.utils.Cholesky;
+import com.silviuned.utils.SectionReader;
+import com.silviuned.utils.SectionWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * The predictions of several models for every rating of a rating matrix (such as the probe or the test data), one
+ * float column per model, in the movie-major order of the matrix. The models are scored once; blends of them can
+ * then be fit and measured over the columns (see fitWeights and StackedAlgorithm) without calling the models again.
+ *
+ * The columns can be saved to disk. Layout (little endian): a fixed size header followed by sections aligned to
+ * 8 bytes, like the model files: the lengths of the names, the UTF-8 names, then the columns. The header holds a
+ * CRC32 of the sections and a fingerprint of the rated (movie, user) pairs, checked against the matrix the columns
+ * are loaded with.
+ */
+public class PredictionColumns {
+
+    private static final int MAGIC = 0x43465043; // "CFPC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    private final RatingMatrix data;
+    private final List<String> names = new ArrayList<>();
+    private final List<float[]> columns = new ArrayList<>();
+
+    public PredictionColumns(RatingMatrix data) {
+        this.data = data;
+    }
+
+    // Scores every rating of the data with the algorithm, and adds the predictions as a new column.
+    public void add(String name, Algorithm algorithm) {
+        float[] column = new float[data.getNrRatings()];
+        BatchPredictor.forEachBatch(algorithm, data, (m, from, to, predictions) -> {
+            for (int i = from; i < to; i++) {
+                column[i] = (float) predictions[i - from];
+            }
+        });
+        add(name, column);
+    }
+
+    // Adds a column of predictions computed elsewhere (in the movie-major order of the data).
+    public void add(String name, float[] column) {
+        if (column.length != data.getNrRatings()) {
+            throw new IllegalArgumentException("Expected " + data.getNrRatings() + " predictions, got " + column.length);
+        }
+        names.add(name);
+        columns.add(column);
+    }
+
+    public int size() {
+        return columns.size();
+    }
+
+    public String getName(int column) {
+        return names.get(column);
+    }
+
+    // Returns the index of the named column, or -1.
+    public int indexOf(String name) {
+        return names.indexOf(name);
+    }
+
+    // column[i] is the prediction of the rating found at the movie-major index i of the data.
+    public float[] getColumn(int column) {
+        return columns.get(column);
+    }
+
+    public RatingMatrix getData() {
+        return data;
+    }
+
+    // Fits the weights of a linear blend of the columns to the ratings of the data, by ridge regression: returns
+    // the intercept followed by one weight per column (see StackedAlgorithm). The intercept isn't regularized.
+    // One pass over the columns builds the normal equations, which are then solved with Cholesky.
+    public double[] fitWeights(int[] columns, double regularization) {
+        int n = columns.length + 1;
+        double[] a = new double[n * n];
+        double[] b = new double[n];
+        double[] row = new double[n];
+        row[0] = 1;
+        for (int i = 0; i < data.getNrRatings(); i++) {
+            for (int c = 0; c < columns.length; c++) {
+                row[c + 1] = this.columns.get(columns[c])[i];
+            }
+            double rating = data.getRating(i);
+            for (int j = 0; j < n; j++) {
+                for (int k = 0; k <= j; k++) {
+                    a[j * n + k] += row[j] * row[k];
+                }
+                b[j] += row[j] * rating;
+            }
+        }
+        for (int j = 1; j < n; j++) {
+            a[j * n + j] += regularization;
+        }
+        if (!Cholesky.solve(a, b, n)) {
+            throw new IllegalStateException("The columns are linearly dependent, use a regularization");
+        }
+        return b;
+    }
+
+    public double[] fitWeights(double regularization) {
+        return fitWeights(IntStream.range(0, size()).toArray(), regularization);
+    }
+
+    // Calculates the RMSE of the blend of the columns (weighted like StackedAlgorithm's models), measured like
+    // RmseEvaluator.eval with no post processors but the truncation.
+    public double eval(int[] columns, double[] weights) {
+        double sum = 0;
+        for (int i = 0; i < data.getNrRatings(); i++) {
+            double prediction = weights[0];
+            for (int c = 0; c < columns.length; c++) {
+                prediction += weights[c + 1] * this.columns.get(columns[c])[i];
+            }
+            double error = data.getRating(i) - PredictionTruncator.truncate(prediction);
+            sum += error * error;
+        }
+        return sum / data.getNrRatings();
+    }
+
+    // The file is written next to the target and then moved in place.
+    public void save(Path file) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            SectionWriter sections = new SectionWriter(channel, HEADER_SIZE);
+            byte[][] encodedNames = new byte[names.size()][];
+            int[] nameLengths = new int[names.size()];
+            for (int c = 0; c < names.size(); c++) {
+                encodedNames[c] = names.get(c).getBytes(StandardCharsets.UTF_8);
+                nameLengths[c] = encodedNames[c].length;
+            }
+            sections.putInts(nameLengths);
+            for (byte[] name : encodedNames) {
+                sections.putBytes(name);
+            }
+            for (float[] column : columns) {
+                sections.putFloats(column);
+            }
+            sections.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(sections.getChecksum());
+            header.putInt(columns.size());
+            header.putInt(data.getNrRatings());
+            header.putLong(fingerprint(data));
+            header.clear();
+            channel.write(header, 0);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Reads the columns saved for the same ratings as the data's.
+    // Throws an IOException if the file isn't valid, or if it was scored on other ratings.
+    public static PredictionColumns load(Path file, RatingMatrix data) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + ": truncated header");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + ": unknown format");
+            }
+            long crc = header.getLong();
+            int nrColumns = header.getInt();
+            int nrRatings = header.getInt();
+            long fingerprint = header.getLong();
+
+            if (nrRatings != data.getNrRatings() || fingerprint != fingerprint(data)) {
+                throw new IOException(file + ": scored on other ratings");
+            }
+            if (SectionReader.checksum(channel, HEADER_SIZE) != crc) {
+                throw new IOException(file + ": checksum mismatch");
+            }
+
+            SectionReader sections = new SectionReader(channel, HEADER_SIZE);
+            int[] nameLengths = sections.getInts(nrColumns);
+            PredictionColumns result = new PredictionColumns(data);
+            for (int c = 0; c < nrColumns; c++) {
+                result.names.add(new String(sections.getBytes(nameLengths[c]), StandardCharsets.UTF_8));
+            }
+            for (int c = 0; c < nrColumns; c++) {
+                result.columns.add(sections.getFloats(nrRatings));
+            }
+            return result;
+        }
+    }
+
+    // CRC32 of the (movie id, user id) pairs of the data, in the movie-major order.
+    private static long fingerprint(RatingMatrix data) {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        for (int m = 0; m < data.getNrMovies(); m++) {
+            int movieId = data.getMovieId(m);
+            for (int i = data.getMovieStart(m); i < data.getMovieEnd(m); i++) {
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    crc.update(buffer);
+                    buffer.clear();
+                }
+                buffer.putInt(movieId);
+                buffer.putInt(data.getUserId(data.getUser(i)));
+            }
+        }
+        buffer.flip();
+        crc.update(buffer);
+        return crc.getValue();
+    }
+}
@@ -1,37 +1,33 @@
 package com.silviuned.service;
 
-import com.silviuned.model.UserRating;
+import com.silviuned.model.RatingMatrix;
 import com.silviuned.service.algorithms.Algorithm;
 import com.silviuned.service.postProcessing.GlobalBiasCorrector;
 import com.silviuned.service.postProcessing.ItemBasedCorrector;
 import com.silviuned.service.postProcessing.NearIntegerRounder;
 import com.silviuned.service.postProcessing.PredictionTruncator;
 
-import java.util.List;
-import java.util.Map;
-
 /**
  * Created by Silviu on 5/27/2017.
  */
 public class RmseEvaluator {
 
     // Calculates the RMSE of running the specified algorithm on the provided data. No post processors are used.
-    public static double eval(Algorithm algorithm, Map<Integer, List<UserRating>> data) {
+    public static double eval(Algorithm algorithm, RatingMatrix data) {
         return eval(algorithm, data, null, null, false);
     }
 
     // Calculates the RMSE of running the specified algorithm on the provided data, with the specified processors/
-    public static double eval(Algorithm algorithm, Map<Integer, List<UserRating>> data,
+    public static double eval(Algorithm algorithm, RatingMatrix data,
                               ItemBasedCorrector itemBasedCorrector, GlobalBiasCorrector globalBiasCorrector,
                               boolean useNearIntergerRounding) {
-        int count = 0;
-        double sum = 0;
+        double nearIntegerRounderDiff = algorithm.getNearIntegerRounderDiff();
+        double[] sum = new double[1];
 
-        for (Map.Entry<Integer, List<UserRating>> entry : data.entrySet()) {
-            int movieId = entry.getKey();
-            for (UserRating userRating : entry.getValue()) {
-                count++;
-                Double prediction = algorithm.predictRating(movieId, userRating.getUserId());
+        BatchPredictor.forEachBatch(algorithm, data, (m, from, to, predictions) -> {
+            int movieId = data.getMovieId(m);
+            for (int i = from; i < to; i++) {
+                double prediction = predictions[i - from];
 
                 if (itemBasedCorrector != null){
                     prediction = itemBasedCorrector.correct(movieId, prediction);
@@ -44,13 +40,13 @@ public class RmseEvaluator {
                 prediction = PredictionTruncator.truncate(prediction);
 
                 if (useNearIntergerRounding) {
-                    prediction = NearIntegerRounder.round(prediction, algorithm.getNearIntegerRounderDiff());
+                    prediction = NearIntegerRounder.round(prediction, nearIntegerRounderDiff);
                 }
 
-                sum += Math.pow(userRating.getRating() - prediction, 2);
+                sum[0] += Math.pow(data.getRating(i) - prediction, 2);
             }
-        }
+        });
 
-        return sum / count;
+        return sum[0] / data.getNrRatings();
     }
 }
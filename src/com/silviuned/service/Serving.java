@@ -0,0 +1,156 @@
+package com.silviuned.service;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.algorithms.AlsAlgorithm;
+import com.silviuned.service.algorithms.EmAlgorithm;
+import com.silviuned.service.algorithms.ItemKnnAlgorithm;
+import com.silviuned.service.algorithms.ModelFile;
+import com.silviuned.service.algorithms.SvdAlgorithm;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.data.DataSnapshot;
+import com.silviuned.service.metrics.LatencyHistogram;
+import com.silviuned.service.metrics.Metrics;
+import com.silviuned.service.serving.LoadGenerator;
+import com.silviuned.service.serving.ScoringServer;
+import com.silviuned.service.serving.ScoringSnapshot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+
+/**
+ * Serves the predictions of a trained model (see {@link ScoringServer}). Usage:
+ *
+ * serve <training folder> <port> [<model name>]
+ * local <training folder> <test folder> [<nr connections> [<seconds> [<pipeline depth>]]]
+ *
+ * The serve mode serves the model saved by Main ("<folder>.<name>.model", svd by default: svd, em, als or knn),
+ * training it first if there's none. Typing "reload" on the standard input loads the model file again and swaps
+ * it in, without pausing the requests.
+ *
+ * The local mode starts a server with the SVD model on a free port and runs a load generator against it (see
+ * {@link LoadGenerator}), with random pairs of the test data. Halfway through, the EM model is frozen and swapped
+ * in. It prints the throughput and the latency percentiles.
+ */
+public class Serving {
+
+	private static final int DEFAULT_NR_CONNECTIONS = 8;
+	private static final int DEFAULT_SECONDS = 10;
+	private static final int DEFAULT_PIPELINE_DEPTH = 16;
+	private static final long SEED = 42;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 3) {
+			System.out.println("Usage: serve <training folder> <port> [<model name>]");
+			System.out.println("       local <training folder> <test folder> [<nr connections> [<seconds> [<pipeline depth>]]]");
+			return;
+		}
+		String trainingDataPath = args[1];
+		DataManager dm = DataSnapshot.loadOrCreate(trainingDataPath, DataSnapshot.defaultSnapshotFile(trainingDataPath));
+
+		switch (args[0]) {
+			case "serve":
+				serve(dm, trainingDataPath, Integer.parseInt(args[2]), args.length > 3 ? args[3] : "svd");
+				break;
+			case "local":
+				runLocal(dm, trainingDataPath, args[2],
+						args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_NR_CONNECTIONS,
+						args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_SECONDS,
+						args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_PIPELINE_DEPTH);
+				break;
+			default:
+				System.out.println("Unknown mode " + args[0]);
+		}
+	}
+
+	private static void serve(DataManager dm, String trainingDataPath, int port, String modelName) throws IOException {
+		Path modelFile = ModelFile.defaultModelFile(trainingDataPath, modelName);
+		Algorithm algorithm = Main.loadOrTrain(createAlgorithm(dm, modelName), dm, modelFile);
+
+		try (ScoringServer server = new ScoringServer(ScoringSnapshot.freeze(algorithm), port)) {
+			System.out.println("Serving " + modelFile + " on port " + server.getPort());
+			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+			String line;
+			while ((line = console.readLine()) != null) {
+				if (line.trim().equals("reload")) {
+					try {
+						ScoringSnapshot next = ScoringSnapshot.load(modelFile, dm);
+						server.swap(next);
+						System.out.println("Swapped in version " + next.getVersion());
+					} catch (IOException e) {
+						System.out.println("Can't reload the model. " + e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	private static Algorithm createAlgorithm(DataManager dm, String modelName) {
+		switch (modelName) {
+			case "svd":
+				return new SvdAlgorithm(dm, Runtime.getRuntime().availableProcessors());
+			case "em":
+				return new EmAlgorithm(dm);
+			case "als":
+				return new AlsAlgorithm(dm);
+			case "knn":
+				return new ItemKnnAlgorithm(dm);
+			default:
+				throw new IllegalArgumentException("Unknown model " + modelName);
+		}
+	}
+
+	private static void runLocal(DataManager dm, String trainingDataPath, String testDataPath, int nrConnections,
+								 int seconds, int pipelineDepth) throws IOException, InterruptedException {
+		RatingMatrix testData = DataSnapshot.loadOrCreate(testDataPath, DataSnapshot.defaultSnapshotFile(testDataPath)).getRatings();
+		int[] movieIds = new int[testData.getNrRatings()];
+		int[] userIds = new int[testData.getNrRatings()];
+		for (int m = 0; m < testData.getNrMovies(); m++) {
+			for (int i = testData.getMovieStart(m); i < testData.getMovieEnd(m); i++) {
+				movieIds[i] = testData.getMovieId(m);
+				userIds[i] = testData.getUserId(testData.getUser(i));
+			}
+		}
+
+		Algorithm svd = Main.loadOrTrain(createAlgorithm(dm, "svd"), dm, ModelFile.defaultModelFile(trainingDataPath, "svd"));
+		Algorithm em = Main.loadOrTrain(createAlgorithm(dm, "em"), dm, ModelFile.defaultModelFile(trainingDataPath, "em"));
+
+		try (ScoringServer server = new ScoringServer(ScoringSnapshot.freeze(svd), 0)) {
+			// Halfway through, the EM model is frozen and swapped in while the requests go on.
+			Thread swapper = new Thread(() -> {
+				try {
+					Thread.sleep(seconds * 500L);
+					long startTime = System.nanoTime();
+					ScoringSnapshot next = ScoringSnapshot.freeze(em);
+					server.swap(next);
+					System.out.println("Swapped in version " + next.getVersion() + " (" + next.getAlgorithmName()
+							+ ") after freezing it in " + (System.nanoTime() - startTime) / 1_000_000 + " ms.");
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			swapper.start();
+
+			LoadGenerator.Result result = new LoadGenerator("localhost", server.getPort(), movieIds, userIds)
+					.run(nrConnections, pipelineDepth, seconds * 1000L, SEED);
+			swapper.join();
+
+			LatencyHistogram latencies = result.getLatencies();
+			System.out.println("Connections: " + nrConnections + ", pipeline depth: " + pipelineDepth);
+			System.out.println("Requests: " + result.getNrRequests() + " in " + result.getSeconds() + " s ("
+					+ Math.round(result.getQps()) + " QPS), errors: " + result.getNrErrors());
+			System.out.println("Latency (us): p50 " + latencies.getValueAtPercentile(50) / 1000.0
+					+ ", p90 " + latencies.getValueAtPercentile(90) / 1000.0
+					+ ", p99 " + latencies.getValueAtPercentile(99) / 1000.0
+					+ ", p99.9 " + latencies.getValueAtPercentile(99.9) / 1000.0
+					+ ", max " + latencies.getMax() / 1000.0);
+		}
+
+		// The counters and latency histograms of the run, when the metrics are on (-Dcf.metrics.log=<file>)
+		Metrics.logSummary();
+	}
+}
@@ -0,0 +1,93 @@
+package com.silviuned.service;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.algorithms.EmConfig;
+import com.silviuned.service.algorithms.SvdConfig;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.data.DataSnapshot;
+import com.silviuned.service.metrics.Metrics;
+import com.silviuned.service.tuning.Leaderboard;
+import com.silviuned.service.tuning.SweepRunner;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Sweeps the hyperparameters of the SVD and EM models (see {@link SweepRunner}), and writes the leaderboard next
+ * to the training data ("<folder>.sweep.csv" and "<folder>.sweep.json"). Usage:
+ *
+ * <training folder> <validation folder> [<nr threads> [<min budget> <reduction factor>]]
+ *
+ * The configurations are ranked by their error on the validation data, so it should be held out of both the
+ * training and the test data (e.g. a probe set): ranking them on the test data would overfit it.
+ *
+ * With a min budget and a reduction factor, the sweep uses successive halving; otherwise every configuration is
+ * trained until it converges. The grid is the one below.
+ */
+public class Tuner {
+
+	private static final double[] SVD_LEARNING_RATES = {0.0004, 0.0008};
+	private static final double[] SVD_REGULARIZATION_COEFS = {0.01, 0.02};
+	private static final int[] SVD_NR_NON_LINEAR_FEATURES = {6, 12};
+
+	private static final int[] EM_NR_OF_GROUPS = {12, 17, 24};
+	private static final double[] EM_ALPHAS = {0.2, 0.35};
+
+	private static final int NR_DISPLAYED_TRIALS = 10;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: <training folder> <validation folder> [<nr threads> [<min budget> <reduction factor>]]");
+			return;
+		}
+		long startTime = System.currentTimeMillis();
+
+		String trainingDataPath = args[0];
+		String validationDataPath = args[1];
+		int nrThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		DataManager dm = DataSnapshot.loadOrCreate(trainingDataPath, DataSnapshot.defaultSnapshotFile(trainingDataPath));
+		RatingMatrix validationData = DataSnapshot.loadOrCreate(validationDataPath,
+				DataSnapshot.defaultSnapshotFile(validationDataPath)).getRatings();
+
+		SweepRunner runner = new SweepRunner(dm, validationData, nrThreads);
+		for (double learningRate : SVD_LEARNING_RATES) {
+			for (double regularizationCoef : SVD_REGULARIZATION_COEFS) {
+				for (int nrNonLinearFeatures : SVD_NR_NON_LINEAR_FEATURES) {
+					runner.addSvd(SvdConfig.builder()
+							.learningRate(learningRate)
+							.regularizationCoef(regularizationCoef)
+							.nrNonLinearFeatures(nrNonLinearFeatures)
+							.build());
+				}
+			}
+		}
+		for (int nrOfGroups : EM_NR_OF_GROUPS) {
+			for (double alpha : EM_ALPHAS) {
+				runner.addEm(EmConfig.builder().nrOfGroups(nrOfGroups).alpha(alpha).build());
+			}
+		}
+
+		List<SweepRunner.Trial> leaderboard = args.length > 4
+				? runner.runSuccessiveHalving(Integer.parseInt(args[3]), Integer.parseInt(args[4]))
+				: runner.run();
+
+		for (int rank = 0; rank < Math.min(NR_DISPLAYED_TRIALS, leaderboard.size()); rank++) {
+			SweepRunner.Trial trial = leaderboard.get(rank);
+			System.out.println((rank + 1) + ".\t" + trial.getName() + "\tRMSE:\t" + trial.getError() + "\tbudget: "
+					+ trial.getBudget() + (trial.isStopped() ? " (stopped)" : "") + "\t" + trial.getParameters());
+		}
+
+		Path folder = Paths.get(trainingDataPath).toAbsolutePath().normalize();
+		Leaderboard.writeCsv(leaderboard, folder.resolveSibling(folder.getFileName() + ".sweep.csv"));
+		Leaderboard.writeJson(leaderboard, folder.resolveSibling(folder.getFileName() + ".sweep.json"));
+
+		// The counters and latency histograms of the run, when the metrics are on (-Dcf.metrics.log=<file>)
+		Metrics.logSummary();
+
+		long sec = (System.currentTimeMillis() - startTime) / 1000;
+		System.out.println("Duration: " + sec + " sec.");
+	}
+}
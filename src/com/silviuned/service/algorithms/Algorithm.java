@@ -1,6 +1,11 @@
 package com.silviuned.service.algorithms;
 
+import com.silviuned.model.RatingMatrix;
 import com.silviuned.service.data.DataManager;
+import com.silviuned.service.postProcessing.PredictionTruncator;
+
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * Created by Silviu on 5/27/2017.
@@ -11,7 +16,46 @@ public interface Algorithm {
 
     double predictRating(int movieId, int userId);
 
+    // Predicts the ratings of the first n (movieIds[k], userIds[k]) pairs into out[k].
+    // The results are the same as the ones of predictRating.
+    default void predictRatings(int[] movieIds, int[] userIds, double[] out, int n) {
+        for (int k = 0; k < n; k++) {
+            out[k] = predictRating(movieIds[k], userIds[k]);
+        }
+    }
+
+    default void predictRatings(int[] movieIds, int[] userIds, double[] out) {
+        predictRatings(movieIds, userIds, out, movieIds.length);
+    }
+
+    // Predicts the rating of every user of the training data for the movie: out[u] for user ordinal u.
+    default void predictMovieRatings(int movieId, double[] out) {
+        RatingMatrix ratings = getDataManager().getRatings();
+        for (int u = 0; u < ratings.getNrUsers(); u++) {
+            out[u] = predictRating(movieId, ratings.getUserId(u));
+        }
+    }
+
+    // Updates the trained model with a rating added to the data manager (see DataManager.addRating).
+    // Meant to be cheap; by default, the model is left as it is.
+    default void update(int movieId, int userId) {}
+
+    // Folds a user who isn't in the training data into the model, out of the user's ratings (ratings[k] for
+    // movieIds[k]), against the model's frozen movie variables. By default, the user gets the baseline prediction,
+    // with the user's offset measured on these ratings.
+    default FoldedUser foldIn(int[] movieIds, int[] ratings) {
+        DataManager dm = getDataManager();
+        double userOffset = dm.getTrueAverageUserOffset(movieIds, ratings);
+        return movieId -> PredictionTruncator.truncate(dm.getTrueAverageMovieRating(movieId) + userOffset);
+    }
+
     DataManager getDataManager();
 
+    // The hyperparameters the model was trained with, by name (e.g. to check that a saved model matches a config).
+    // Empty when they're constants of the class.
+    default Map<String, Object> getParameters() {
+        return Collections.emptyMap();
+    }
+
     double getNearIntegerRounderDiff();
 }
@@ -0,0 +1,358 @@
+package com.silviuned.service.algorithms;
+
+import com.silviuned.model.RatingLog;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.metrics.TrainingRecorder;
+import com.silviuned.service.postProcessing.PredictionTruncator;
+import com.silviuned.utils.Cholesky;
+import com.silviuned.utils.SharedPools;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+/**
+ * Matrix factorization trained by alternating least squares. The factors model the residuals of the baseline
+ * prediction (the movie's true average plus the user's true offset, see DataManager). With the movie factors
+ * fixed, the factors of a user are the solution of a small ridge regression on the user's ratings, so all the
+ * users are solved independently, in parallel; then all the movies, against the new user factors.
+ *
+ * The regularization of a row is proportional to its nr of ratings (ALS-WR). All the factors are trained at once,
+ * and an iteration takes two passes over the ratings, so it converges in a few iterations.
+ */
+public class AlsAlgorithm implements Algorithm {
+
+    private static final int NR_FACTORS = 20;
+    private static final double REGULARIZATION = 0.05;
+    private static final double INITIAL_FACTOR_DEVIATION = 0.1;
+    private static final long SEED = 1;
+
+    // Training stops when an iteration improves the training RMSE by less than this, or after MAX_ITERATIONS.
+    private static final double RMSE_DIFFERENCE = 0.0005;
+    private static final int MAX_ITERATIONS = 25;
+
+    private static final double NEAR_INTEGER_ROUNDER_DIFF = 0.001;
+
+    private static final boolean VERBOSE = false;
+
+    private final DataManager dm;
+    private final int nrMovies;
+    private final int nrUsers;
+
+    // Row-major: the factors of movie m are movieFactors[m * NR_FACTORS + f], so a solve reads contiguous rows.
+    private final double[] movieFactors;
+    private final double[] userFactors;
+    private double[] movieBaselines;
+    private double[] userBaselines;
+
+    // Sum of the squared errors of every movie's ratings, computed by the last movie pass.
+    private final double[] movieSquaredErrors;
+
+    // The tasks run on the shared pool of this size (see SharedPools).
+    private final int nrThreads;
+
+    public AlsAlgorithm(DataManager dm) {
+        this(dm, Runtime.getRuntime().availableProcessors());
+    }
+
+    // The result doesn't depend on the nr of threads: every row is solved on its own.
+    public AlsAlgorithm(DataManager dm, int nrThreads) {
+        this(dm, nrThreads, new double[dm.getNrMovies() * NR_FACTORS], new double[dm.getNrUsers() * NR_FACTORS]);
+    }
+
+    private AlsAlgorithm(DataManager dm, int nrThreads, double[] movieFactors, double[] userFactors) {
+        this.dm = dm;
+        this.nrMovies = dm.getNrMovies();
+        this.nrUsers = dm.getNrUsers();
+        this.movieFactors = movieFactors;
+        this.userFactors = userFactors;
+        this.movieSquaredErrors = new double[nrMovies];
+        this.nrThreads = nrThreads;
+    }
+
+    // Writes the baselines and the factors (see ModelFile).
+    void save(ModelFile.Writer writer) throws IOException {
+        boolean hasBaselines = movieBaselines != null;
+        writer.putInts(hasBaselines ? 1 : 0);
+        if (hasBaselines) {
+            writer.putDoubles(movieBaselines);
+            writer.putDoubles(userBaselines);
+        }
+        writer.putMatrix(movieFactors, nrMovies, NR_FACTORS);
+        writer.putMatrix(userFactors, nrUsers, NR_FACTORS);
+    }
+
+    // Reads a model written by save.
+    static AlsAlgorithm load(ModelFile.Reader reader, DataManager dm) throws IOException {
+        boolean hasBaselines = reader.getInts(1)[0] != 0;
+        double[] movieBaselines = hasBaselines ? reader.getDoubles(dm.getNrMovies()) : null;
+        double[] userBaselines = hasBaselines ? reader.getDoubles(dm.getNrUsers()) : null;
+        double[] movieFactors = reader.getMatrix(dm.getNrMovies(), NR_FACTORS, dm.getNrMovies() * NR_FACTORS);
+        double[] userFactors = reader.getMatrix(dm.getNrUsers(), NR_FACTORS, dm.getNrUsers() * NR_FACTORS);
+
+        AlsAlgorithm result = new AlsAlgorithm(dm, Runtime.getRuntime().availableProcessors(), movieFactors, userFactors);
+        result.movieBaselines = movieBaselines;
+        result.userBaselines = userBaselines;
+        return result;
+    }
+
+    @Override
+    public void train() {
+        long startTime = System.currentTimeMillis();
+        initBaselines();
+        generateInitialFactors();
+        TrainingRecorder recorder = new TrainingRecorder("als", dm.getRatings().getNrRatings() + dm.getAddedRatings().size());
+
+        double previousRmse = -1;
+        double currentRmse = -1;
+        for (int iteration = 1; iteration <= MAX_ITERATIONS
+                && (previousRmse == -1 || previousRmse - currentRmse > RMSE_DIFFERENCE); iteration++) {
+            previousRmse = currentRmse;
+            recorder.beginEpoch();
+            iterate();
+            currentRmse = getTrainingRmse();
+            recorder.endEpoch(-1, iteration, currentRmse * currentRmse);
+            if (VERBOSE) {
+                System.out.println(iteration + ":\tRMSE: " + currentRmse + "\t("
+                        + (System.currentTimeMillis() - startTime) + " ms)");
+            }
+        }
+    }
+
+    // Runs a single iteration (solves all the users, then all the movies), without any convergence check.
+    // Starts from the baselines and random movie factors if the algorithm wasn't trained yet. Meant for benchmarks.
+    public void iterate() {
+        if (movieBaselines == null) {
+            initBaselines();
+            generateInitialFactors();
+        }
+        forEach(nrUsers, this::solveUser);
+        forEach(nrMovies, m -> movieSquaredErrors[m] = solveMovie(m));
+    }
+
+    // The RMSE of the training ratings, measured by the last movie pass (right after solving each movie).
+    private double getTrainingRmse() {
+        double sum = 0;
+        for (double squaredErrors : movieSquaredErrors) {
+            sum += squaredErrors;
+        }
+        return Math.sqrt(sum / (dm.getRatings().getNrRatings() + dm.getAddedRatings().size()));
+    }
+
+    // Caches the baseline predictions by movie and user ordinal.
+    private void initBaselines() {
+        RatingMatrix ratings = dm.getRatings();
+        movieBaselines = new double[nrMovies];
+        for (int m = 0; m < nrMovies; m++) {
+            movieBaselines[m] = dm.getTrueAverageMovieRating(ratings.getMovieId(m));
+        }
+        userBaselines = new double[nrUsers];
+        for (int u = 0; u < nrUsers; u++) {
+            userBaselines[u] = dm.getTrueAverageUserOffset(ratings.getUserId(u));
+        }
+    }
+
+    // Small random movie factors (the first pass solves the users against them).
+    private void generateInitialFactors() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < movieFactors.length; i++) {
+            movieFactors[i] = random.nextGaussian() * INITIAL_FACTOR_DEVIATION;
+        }
+    }
+
+    // Solves the factors of a user (ordinal) against the movie factors, including the ratings added to the data
+    // manager.
+    private void solveUser(int u) {
+        RatingMatrix ratings = dm.getRatings();
+        RatingLog addedRatings = dm.getAddedRatings();
+        double[] a = new double[NR_FACTORS * NR_FACTORS];
+        double[] b = new double[NR_FACTORS];
+        double userBaseline = userBaselines[u];
+        for (int j = ratings.getUserStart(u); j < ratings.getUserEnd(u); j++) {
+            int m = ratings.getUserMovie(j);
+            addRow(a, b, movieFactors, m * NR_FACTORS, ratings.getUserRating(j) - movieBaselines[m] - userBaseline);
+        }
+        for (int i = addedRatings.getUserHead(u); i != -1; i = addedRatings.getNextOfUser(i)) {
+            int m = addedRatings.getMovie(i);
+            addRow(a, b, movieFactors, m * NR_FACTORS, addedRatings.getRating(i) - movieBaselines[m] - userBaseline);
+        }
+        solve(a, b, dm.getUserRatingCount(u), userFactors, u * NR_FACTORS);
+    }
+
+    // Solves the factors of a movie (ordinal) against the user factors, including the ratings added to the data
+    // manager. Returns the squared errors of the movie's ratings with the new factors.
+    private double solveMovie(int m) {
+        RatingMatrix ratings = dm.getRatings();
+        RatingLog addedRatings = dm.getAddedRatings();
+        double[] a = new double[NR_FACTORS * NR_FACTORS];
+        double[] b = new double[NR_FACTORS];
+        double movieBaseline = movieBaselines[m];
+        for (int i = ratings.getMovieStart(m); i < ratings.getMovieEnd(m); i++) {
+            int u = ratings.getUser(i);
+            addRow(a, b, userFactors, u * NR_FACTORS, ratings.getRating(i) - movieBaseline - userBaselines[u]);
+        }
+        for (int i = addedRatings.getMovieHead(m); i != -1; i = addedRatings.getNextOfMovie(i)) {
+            int u = addedRatings.getUser(i);
+            addRow(a, b, userFactors, u * NR_FACTORS, addedRatings.getRating(i) - movieBaseline - userBaselines[u]);
+        }
+        solve(a, b, dm.getMovieRatingCount(m), movieFactors, m * NR_FACTORS);
+
+        double result = 0;
+        for (int i = ratings.getMovieStart(m); i < ratings.getMovieEnd(m); i++) {
+            double error = ratings.getRating(i) - predict(m, ratings.getUser(i));
+            result += error * error;
+        }
+        for (int i = addedRatings.getMovieHead(m); i != -1; i = addedRatings.getNextOfMovie(i)) {
+            double error = addedRatings.getRating(i) - predict(m, addedRatings.getUser(i));
+            result += error * error;
+        }
+        return result;
+    }
+
+    // Adds a rating to the normal equations (lower triangle of a, and b): the factors of the other side start at
+    // factors[offset], and the residual is the rating minus the baseline.
+    private static void addRow(double[] a, double[] b, double[] factors, int offset, double residual) {
+        for (int f = 0; f < NR_FACTORS; f++) {
+            double x = factors[offset + f];
+            b[f] += x * residual;
+            int row = f * NR_FACTORS;
+            for (int g = 0; g <= f; g++) {
+                a[row + g] += x * factors[offset + g];
+            }
+        }
+    }
+
+    // Adds the regularization of a row with count ratings, solves, and stores the solution at result[offset].
+    // A row without ratings gets zero factors.
+    private static void solve(double[] a, double[] b, int count, double[] result, int offset) {
+        double regularization = REGULARIZATION * Math.max(count, 1);
+        for (int f = 0; f < NR_FACTORS; f++) {
+            a[f * NR_FACTORS + f] += regularization;
+        }
+        if (!Cholesky.solve(a, b, NR_FACTORS)) {
+            return;
+        }
+        System.arraycopy(b, 0, result, offset, NR_FACTORS);
+    }
+
+    @Override
+    public double predictRating(int movieId, int userId) {
+        RatingMatrix ratings = dm.getRatings();
+        int movie = ratings.getMovieOrdinal(movieId);
+        int user = ratings.getUserOrdinal(userId);
+        if (movie != -1 && user != -1) {
+            return PredictionTruncator.truncate(predict(movie, user));
+        }
+        return PredictionTruncator.truncate(dm.getTrueAverageMovieRating(movieId) + dm.getTrueAverageUserOffset(userId));
+    }
+
+    // The movie's factors are read once, and the users' factors are scanned sequentially.
+    @Override
+    public void predictMovieRatings(int movieId, double[] out) {
+        int movie = dm.getRatings().getMovieOrdinal(movieId);
+        if (movie == -1) {
+            Algorithm.super.predictMovieRatings(movieId, out);
+            return;
+        }
+        double[] factors = new double[NR_FACTORS];
+        System.arraycopy(movieFactors, movie * NR_FACTORS, factors, 0, NR_FACTORS);
+        double movieBaseline = movieBaselines[movie];
+        for (int u = 0; u < nrUsers; u++) {
+            int offset = u * NR_FACTORS;
+            double result = movieBaseline + userBaselines[u];
+            for (int f = 0; f < NR_FACTORS; f++) {
+                result += factors[f] * userFactors[offset + f];
+            }
+            out[u] = PredictionTruncator.truncate(result);
+        }
+    }
+
+    // Baseline plus the dot product of the factors (not truncated).
+    private double predict(int movie, int user) {
+        int movieOffset = movie * NR_FACTORS;
+        int userOffset = user * NR_FACTORS;
+        double result = movieBaselines[movie] + userBaselines[user];
+        for (int f = 0; f < NR_FACTORS; f++) {
+            result += movieFactors[movieOffset + f] * userFactors[userOffset + f];
+        }
+        return result;
+    }
+
+    // Refreshes the baselines of the movie and the user, and solves both again with the new rating.
+    @Override
+    public void update(int movieId, int userId) {
+        RatingMatrix ratings = dm.getRatings();
+        int movie = ratings.getMovieOrdinal(movieId);
+        int user = ratings.getUserOrdinal(userId);
+        if (movie == -1 || user == -1 || movieBaselines == null) {
+            return;
+        }
+        movieBaselines[movie] = dm.getTrueAverageMovieRating(movieId);
+        userBaselines[user] = dm.getTrueAverageUserOffset(userId);
+        solveUser(user);
+        movieSquaredErrors[movie] = solveMovie(movie);
+    }
+
+    // The user's factors are the solution of the same regression as the ones of a training user (one user step).
+    // Before training, the user gets the baseline prediction.
+    @Override
+    public FoldedUser foldIn(int[] movieIds, int[] ratings) {
+        if (movieBaselines == null) {
+            return Algorithm.super.foldIn(movieIds, ratings);
+        }
+        RatingMatrix matrix = dm.getRatings();
+        double userBaseline = dm.getTrueAverageUserOffset(movieIds, ratings);
+        double[] a = new double[NR_FACTORS * NR_FACTORS];
+        double[] b = new double[NR_FACTORS];
+        int count = 0;
+        for (int k = 0; k < movieIds.length; k++) {
+            int m = matrix.getMovieOrdinal(movieIds[k]);
+            if (m != -1) {
+                addRow(a, b, movieFactors, m * NR_FACTORS, ratings[k] - movieBaselines[m] - userBaseline);
+                count++;
+            }
+        }
+        double[] factors = new double[NR_FACTORS];
+        solve(a, b, count, factors, 0);
+
+        return movieId -> {
+            int movie = matrix.getMovieOrdinal(movieId);
+            if (movie == -1) {
+                return PredictionTruncator.truncate(dm.getTrueAverageMovieRating(movieId) + userBaseline);
+            }
+            double result = movieBaselines[movie] + userBaseline;
+            for (int f = 0; f < NR_FACTORS; f++) {
+                result += movieFactors[movie * NR_FACTORS + f] * factors[f];
+            }
+            return PredictionTruncator.truncate(result);
+        };
+    }
+
+    public int getNrFactors() {
+        return NR_FACTORS;
+    }
+
+    public double getMovieFactor(int movie, int factor) {
+        return movieFactors[movie * NR_FACTORS + factor];
+    }
+
+    public double getUserFactor(int user, int factor) {
+        return userFactors[user * NR_FACTORS + factor];
+    }
+
+    @Override
+    public DataManager getDataManager() {
+        return dm;
+    }
+
+    // Runs the action for every ordinal in [0, n) on the shared pool, and waits for all of them.
+    private void forEach(int n, IntConsumer action) {
+        SharedPools.forEach(nrThreads, n, action);
+    }
+
+    @Override
+    public double getNearIntegerRounderDiff() {
+        return NEAR_INTEGER_ROUNDER_DIFF;
+    }
+}
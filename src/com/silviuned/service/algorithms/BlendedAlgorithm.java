@@ -2,6 +2,8 @@ package com.silviuned.service.algorithms;
 
 import com.silviuned.service.data.DataManager;
 
+import java.io.IOException;
+
 /**
  * Created by Silviu on 6/28/2017.
  */
@@ -16,6 +18,18 @@ public class BlendedAlgorithm implements Algorithm {
         this.algorithm2 = algorithm2;
     }
 
+    // Writes both models (see ModelFile).
+    void save(ModelFile.Writer writer) throws IOException {
+        writer.putAlgorithm(algorithm1);
+        writer.putAlgorithm(algorithm2);
+    }
+
+    static BlendedAlgorithm load(ModelFile.Reader reader, DataManager dm) throws IOException {
+        Algorithm algorithm1 = reader.getAlgorithm(dm);
+        Algorithm algorithm2 = reader.getAlgorithm(dm);
+        return new BlendedAlgorithm(algorithm1, algorithm2);
+    }
+
     @Override
     public void train() {}
 
@@ -26,6 +40,52 @@ public class BlendedAlgorithm implements Algorithm {
         return prediction1 * RATIO + prediction2 * (1 - RATIO);
     }
 
+    // Both algorithms score the whole batch, then the two columns are blended in a single pass.
+    @Override
+    public void predictRatings(int[] movieIds, int[] userIds, double[] out, int n) {
+        double[] predictions2 = new double[n];
+        algorithm1.predictRatings(movieIds, userIds, out, n);
+        algorithm2.predictRatings(movieIds, userIds, predictions2, n);
+        blend(out, predictions2, n);
+    }
+
+    @Override
+    public void predictMovieRatings(int movieId, double[] out) {
+        int n = getDataManager().getNrUsers();
+        double[] predictions2 = new double[n];
+        algorithm1.predictMovieRatings(movieId, out);
+        algorithm2.predictMovieRatings(movieId, predictions2);
+        blend(out, predictions2, n);
+    }
+
+    @Override
+    public FoldedUser foldIn(int[] movieIds, int[] ratings) {
+        FoldedUser user1 = algorithm1.foldIn(movieIds, ratings);
+        FoldedUser user2 = algorithm2.foldIn(movieIds, ratings);
+        return movieId -> user1.predictRating(movieId) * RATIO + user2.predictRating(movieId) * (1 - RATIO);
+    }
+
+    // Blends the first n predictions of both algorithms into predictions1 (see predictRatings).
+    public static void blend(double[] predictions1, double[] predictions2, int n) {
+        for (int k = 0; k < n; k++) {
+            predictions1[k] = predictions1[k] * RATIO + predictions2[k] * (1 - RATIO);
+        }
+    }
+
+    public Algorithm getAlgorithm1() {
+        return algorithm1;
+    }
+
+    public Algorithm getAlgorithm2() {
+        return algorithm2;
+    }
+
+    @Override
+    public void update(int movieId, int userId) {
+        algorithm1.update(movieId, userId);
+        algorithm2.update(movieId, userId);
+    }
+
     @Override
     public DataManager getDataManager() {
         return algorithm1.getDataManager();
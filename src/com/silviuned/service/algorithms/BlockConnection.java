@@ -0,0 +1,93 @@
+package com.silviuned.service.algorithms;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One end of a connection of the distributed SVD training (see {@link DistributedSvdCoordinator}): a blocking
+ * socket channel exchanging little-endian ints and doubles, buffered both ways. A message is a type followed by
+ * its fields; the feature values of a block are sent as raw doubles (the receiver knows the block sizes).
+ */
+class BlockConnection implements Closeable {
+
+    static final int MAGIC = 0x43464453; // "CFDS"
+    static final int VERSION = 1;
+
+    // Coordinator -> worker messages.
+    static final int NEW_FEATURE = 1;
+    // userBlock, fromBaseline, then the user block's values of the current feature. The worker answers with the
+    // squared errors of the block and the trained values.
+    static final int TRAIN_BLOCK = 2;
+    // The current feature's values of all users. The worker answers with the values of its movie block.
+    static final int END_FEATURE = 3;
+    static final int FINISH = 4;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final SocketChannel channel;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    BlockConnection(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(true);
+        channel.socket().setTcpNoDelay(true);
+        in.flip();
+    }
+
+    void putInt(int value) throws IOException {
+        ensureWritable(4);
+        out.putInt(value);
+    }
+
+    void putDouble(double value) throws IOException {
+        ensureWritable(8);
+        out.putDouble(value);
+    }
+
+    // Sends everything that was put so far.
+    void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    int getInt() throws IOException {
+        ensureReadable(4);
+        return in.getInt();
+    }
+
+    double getDouble() throws IOException {
+        ensureReadable(8);
+        return in.getDouble();
+    }
+
+    private void ensureWritable(int bytes) throws IOException {
+        if (out.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void ensureReadable(int bytes) throws IOException {
+        if (in.remaining() < bytes) {
+            in.compact();
+            while (in.position() < bytes) {
+                if (channel.read(in) == -1) {
+                    throw new EOFException("Connection closed by " + channel.getRemoteAddress());
+                }
+            }
+            in.flip();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
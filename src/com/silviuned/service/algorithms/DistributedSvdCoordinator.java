@@ -0,0 +1,222 @@
+package com.silviuned.service.algorithms;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.data.RatingBlocks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Trains the SVD model on several worker processes (see {@link DistributedSvdWorker}), which connect to the
+ * coordinator over TCP. It's the stratified (DSGD) training of SvdAlgorithm with one worker per block: worker w
+ * owns movie block w, and in sub-epoch s it trains user block (w + s) % n, whose values the coordinator sends
+ * before the sub-epoch and gets back after it. The coordinator holds the users' features, runs the epoch
+ * barriers and the convergence checks, and gathers the movies' features once a feature is trained.
+ *
+ * The result only depends on the nr of workers: it's the same as the one of new SvdAlgorithm(dm, nrWorkers).
+ * Every worker loads the same training data (the handshake checks it).
+ */
+public class DistributedSvdCoordinator implements Closeable {
+
+    private static final boolean VERBOSE = false;
+
+    // How long train waits for all the workers to connect, by default.
+    public static final long DEFAULT_ACCEPT_TIMEOUT_MILLIS = 60_000;
+
+    // How often the worker check runs while waiting for the workers.
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Run while waiting for the workers to connect (see train): throws to stop waiting, e.g. when a worker process
+     * exited before connecting.
+     */
+    public interface WorkerCheck {
+        void check() throws IOException;
+    }
+
+    private final DataManager dm;
+    private final int nrWorkers;
+    private final ServerSocketChannel server;
+    private final BlockConnection[] workers;
+    private long acceptTimeoutMillis = DEFAULT_ACCEPT_TIMEOUT_MILLIS;
+
+    // Listens on the port (0 picks a free one, see getPort).
+    // The workers load the training data from disk, so it can't hold added ratings (see DataManager.addRating).
+    public DistributedSvdCoordinator(DataManager dm, int nrWorkers, int port) throws IOException {
+        if (dm.getAddedRatings().size() > 0) {
+            throw new IllegalArgumentException("The distributed training doesn't support added ratings");
+        }
+        this.dm = dm;
+        this.nrWorkers = nrWorkers;
+        this.server = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+        this.workers = new BlockConnection[nrWorkers];
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    // How long train waits for all the workers to connect before failing.
+    public void setAcceptTimeout(long millis) {
+        this.acceptTimeoutMillis = millis;
+    }
+
+    public SvdAlgorithm train() throws IOException {
+        return train(() -> {});
+    }
+
+    // Waits for the workers (running the check every second meanwhile), trains, and stops them. Returns the
+    // trained model (without its prediction cache).
+    public SvdAlgorithm train(WorkerCheck check) throws IOException {
+        long startTime = System.nanoTime();
+        RatingMatrix ratings = dm.getRatings();
+        acceptWorkers(ratings, check);
+
+        RatingBlocks blocks = new RatingBlocks(ratings, nrWorkers);
+        SvdAlgorithm model = new SvdAlgorithm(dm, nrWorkers);
+        model.initTraining(false);
+
+        double previousOuterRmse = -1;
+        double currentRmse = -1;
+
+        while (previousOuterRmse == -1 || currentRmse - previousOuterRmse < model.getConfig().getRmseDifference()) {
+            model.addFeature();
+            for (BlockConnection worker : workers) {
+                worker.putInt(BlockConnection.NEW_FEATURE);
+            }
+            previousOuterRmse = currentRmse;
+
+            double previousInnerRmse = -1;
+            currentRmse = -1;
+
+            while (previousInnerRmse == -1 || currentRmse - previousInnerRmse < model.getConfig().getRmseDifference()) {
+                previousInnerRmse = currentRmse;
+                // The very first pass measures the errors against the baseline prediction.
+                boolean fromBaseline = model.getNrFeatures() == 1 && currentRmse == -1;
+                currentRmse = trainEpoch(model, blocks, fromBaseline) / ratings.getNrRatings();
+            }
+
+            endFeature(model, blocks);
+            if (VERBOSE) {
+                System.out.println((model.getNrFeatures() - 1) + ": " + currentRmse);
+            }
+        }
+
+        for (BlockConnection worker : workers) {
+            worker.putInt(BlockConnection.FINISH);
+            worker.flush();
+        }
+        if (VERBOSE) {
+            System.out.println("Trained " + model.getNrFeatures() + " features on " + nrWorkers + " workers in "
+                    + String.format("%.2f", (System.nanoTime() - startTime) / 1e9) + " sec.");
+        }
+        return model;
+    }
+
+    // Fails when the workers aren't all connected within the accept timeout, or when the check throws. The server
+    // channel is polled through a selector, so the wait can be interrupted.
+    private void acceptWorkers(RatingMatrix ratings, WorkerCheck check) throws IOException {
+        long deadline = System.nanoTime() + acceptTimeoutMillis * 1_000_000;
+        server.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            for (int w = 0; w < nrWorkers; w++) {
+                SocketChannel channel;
+                while ((channel = server.accept()) == null) {
+                    check.check();
+                    long remainingMillis = (deadline - System.nanoTime()) / 1_000_000;
+                    if (remainingMillis <= 0) {
+                        throw new IOException("Only " + w + " of " + nrWorkers + " workers connected within "
+                                + acceptTimeoutMillis / 1000 + " s");
+                    }
+                    selector.select(Math.min(remainingMillis, CHECK_INTERVAL_MILLIS));
+                    selector.selectedKeys().clear();
+                }
+                handshake(w, new BlockConnection(channel), ratings);
+            }
+        }
+    }
+
+    private void handshake(int w, BlockConnection worker, RatingMatrix ratings) throws IOException {
+        workers[w] = worker;
+        if (worker.getInt() != BlockConnection.MAGIC || worker.getInt() != BlockConnection.VERSION) {
+            throw new IOException("Unknown worker protocol");
+        }
+        if (worker.getInt() != ratings.getNrMovies() || worker.getInt() != ratings.getNrUsers()
+                || worker.getInt() != ratings.getNrRatings()) {
+            throw new IOException("Worker " + w + " has different training data");
+        }
+        worker.putInt(w);
+        worker.putInt(nrWorkers);
+        worker.flush();
+    }
+
+    // One epoch (nrWorkers sub-epochs) of the current feature. The squared errors are summed like SvdAlgorithm
+    // sums them: by movie block, then over the blocks. Returns the sum of the squared errors.
+    private double trainEpoch(SvdAlgorithm model, RatingBlocks blocks, boolean fromBaseline) throws IOException {
+        int feature = model.getNrFeatures() - 1;
+        double[] squaredErrors = new double[nrWorkers];
+        for (int s = 0; s < nrWorkers; s++) {
+            // All the blocks are sent before any answer is read, so the workers train them concurrently.
+            for (int w = 0; w < nrWorkers; w++) {
+                int userBlock = (w + s) % nrWorkers;
+                workers[w].putInt(BlockConnection.TRAIN_BLOCK);
+                workers[w].putInt(userBlock);
+                workers[w].putInt(fromBaseline ? 1 : 0);
+                for (int u = blocks.getUserBlockStart(userBlock); u < blocks.getUserBlockEnd(userBlock); u++) {
+                    workers[w].putDouble(model.getUserFeature(feature, u));
+                }
+                workers[w].flush();
+            }
+            for (int w = 0; w < nrWorkers; w++) {
+                int userBlock = (w + s) % nrWorkers;
+                squaredErrors[w] += workers[w].getDouble();
+                for (int u = blocks.getUserBlockStart(userBlock); u < blocks.getUserBlockEnd(userBlock); u++) {
+                    model.setUserFeature(feature, u, workers[w].getDouble());
+                }
+            }
+        }
+
+        double result = 0;
+        for (double sum : squaredErrors) {
+            result += sum;
+        }
+        return result;
+    }
+
+    // Sends the trained feature of all users to the workers (which update their cached predictions with it),
+    // and gathers the feature of all movies.
+    private void endFeature(SvdAlgorithm model, RatingBlocks blocks) throws IOException {
+        int feature = model.getNrFeatures() - 1;
+        int nrUsers = dm.getRatings().getNrUsers();
+        for (BlockConnection worker : workers) {
+            worker.putInt(BlockConnection.END_FEATURE);
+            for (int u = 0; u < nrUsers; u++) {
+                worker.putDouble(model.getUserFeature(feature, u));
+            }
+            worker.flush();
+        }
+        for (int w = 0; w < nrWorkers; w++) {
+            for (int m = blocks.getMovieBlockStart(w); m < blocks.getMovieBlockEnd(w); m++) {
+                model.setMovieFeature(feature, m, workers[w].getDouble());
+            }
+        }
+        model.endFeature(0, 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (BlockConnection worker : workers) {
+            if (worker != null) {
+                worker.close();
+            }
+        }
+        server.close();
+    }
+}
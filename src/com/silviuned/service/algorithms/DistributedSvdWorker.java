@@ -0,0 +1,80 @@
+package com.silviuned.service.algorithms;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.data.RatingBlocks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A worker of the distributed SVD training (see {@link DistributedSvdCoordinator}). Worker w owns movie block w:
+ * it keeps the features and the cached predictions of those movies, and trains the user blocks it's sent.
+ */
+public class DistributedSvdWorker {
+
+    private final DataManager dm;
+
+    public DistributedSvdWorker(DataManager dm) {
+        this.dm = dm;
+    }
+
+    // Connects to the coordinator and trains until it's done.
+    public void run(String host, int port) throws IOException {
+        RatingMatrix ratings = dm.getRatings();
+        try (BlockConnection connection = new BlockConnection(SocketChannel.open(new InetSocketAddress(host, port)))) {
+            // The coordinator checks that all the workers have the same training data, and assigns the movie blocks.
+            connection.putInt(BlockConnection.MAGIC);
+            connection.putInt(BlockConnection.VERSION);
+            connection.putInt(ratings.getNrMovies());
+            connection.putInt(ratings.getNrUsers());
+            connection.putInt(ratings.getNrRatings());
+            connection.flush();
+            int movieBlock = connection.getInt();
+            int nrWorkers = connection.getInt();
+
+            RatingBlocks blocks = new RatingBlocks(ratings, nrWorkers);
+            SvdAlgorithm svd = new SvdAlgorithm(dm, 1);
+            svd.initTraining(true);
+
+            while (true) {
+                int type = connection.getInt();
+                int feature = svd.getNrFeatures() - 1;
+                switch (type) {
+                    case BlockConnection.NEW_FEATURE:
+                        svd.addFeature();
+                        break;
+                    case BlockConnection.TRAIN_BLOCK:
+                        int userBlock = connection.getInt();
+                        boolean fromBaseline = connection.getInt() != 0;
+                        int from = blocks.getUserBlockStart(userBlock);
+                        int to = blocks.getUserBlockEnd(userBlock);
+                        for (int u = from; u < to; u++) {
+                            svd.setUserFeature(feature, u, connection.getDouble());
+                        }
+                        connection.putDouble(svd.trainBlock(blocks, movieBlock, userBlock, fromBaseline));
+                        for (int u = from; u < to; u++) {
+                            connection.putDouble(svd.getUserFeature(feature, u));
+                        }
+                        connection.flush();
+                        break;
+                    case BlockConnection.END_FEATURE:
+                        for (int u = 0; u < ratings.getNrUsers(); u++) {
+                            svd.setUserFeature(feature, u, connection.getDouble());
+                        }
+                        svd.endFeature(blocks.getMovieBlockStart(movieBlock), blocks.getMovieBlockEnd(movieBlock));
+                        for (int m = blocks.getMovieBlockStart(movieBlock); m < blocks.getMovieBlockEnd(movieBlock); m++) {
+                            connection.putDouble(svd.getMovieFeature(feature, m));
+                        }
+                        connection.flush();
+                        break;
+                    case BlockConnection.FINISH:
+                        return;
+                    default:
+                        throw new IOException("Unknown message type " + type);
+                }
+            }
+        }
+    }
+}
@@ -1,89 +1,211 @@
 package com.silviuned.service.algorithms;
 
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
-import com.silviuned.model.UserRating;
+import com.silviuned.model.RatingLog;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.ConvergenceMonitor;
+import com.silviuned.service.metrics.TrainingRecorder;
 import com.silviuned.service.data.DataManager;
+import com.silviuned.service.postProcessing.PredictionTruncator;
 import com.silviuned.utils.GaussDistribution;
+import com.silviuned.utils.SharedPools;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.IntConsumer;
 
 public class EmAlgorithm implements Algorithm {
 
 	// Value chosen in overflow in step E.
 	private static final double EPSILON = Math.pow(0.1, 11);
 
-	// The additive smoothing parameter. (aka Laplace smoothing, aka Lidstone smoothing). Step M.
-	private static double ALPHA = 0.35;
-
 	// Parameter chosen so that e^-k will not be underflow in step E.
 	private static final double K = 24;
 
-	private static final int NR_OF_GROUPS = 17;
-
-	private static double RMSE_DIFF = 0.004;
-
 	private static final double NEAR_INTEGER_ROUNDER_DIFF = 0.01;
 
 	private static final boolean VERBOSE = false;
 	
 	/* The latent/hidden random variables.
-	 * q[g][m] denotes the probability that movie m belongs to group g.
+	 * q[m * nrOfGroups + g] denotes the probability that movie m belongs to group g (m is the movie ordinal).
+	 * The groups of a movie (and of a user, below) are contiguous, so a prediction is a dot product
+	 * of two contiguous slices.
 	 */
-	private Table<Integer, Integer, Double> q;
+	private double[] q;
 	
 	/*
 	 * The ratings of user u for group g follows a Gaussian distribution with
-	 * mean mean[g][u] and variance variance[g][u].
+	 * mean mean[u * nrOfGroups + g] and variance variance[u * nrOfGroups + g] (u is the user ordinal).
 	 */
-	private Table<Integer, Integer, Double> mean;
-	private Table<Integer, Integer, Double> variance;
+	private double[] mean;
+	private double[] variance;
 	
 	private DataManager dm;
 
+	private final EmConfig config;
+	private final int nrOfGroups;
+
+	// The additive smoothing parameter. (aka Laplace smoothing, aka Lidstone smoothing). Step M.
+	private final double alpha;
+
+	private ConvergenceMonitor.Mode convergenceMode = ConvergenceMonitor.Mode.TRAINING_ERROR;
+
+	// Sum of the squared errors of every user's ratings, computed by the last M-step (TRAINING_ERROR mode).
+	private double[] userSquaredErrors;
+
+	private boolean initialized = false;
+
+	// The errors measured after the last two iterations, for the convergence check of train.
+	private double currentRmse = -1;
+	private double previousRmse = -1;
+	private int iteration;
+
+	// The E-step is split by movie and the M-step by user; the tasks run on the shared pool of this size.
+	private final int nrThreads;
+
 	public EmAlgorithm(DataManager dm) {
+		this(dm, Runtime.getRuntime().availableProcessors());
+	}
+
+	// The result doesn't depend on the nr of threads: each worker writes a disjoint slice of the latent variables.
+	public EmAlgorithm(DataManager dm, int nrThreads) {
+		this(dm, nrThreads, EmConfig.DEFAULT);
+	}
+
+	public EmAlgorithm(DataManager dm, int nrThreads, EmConfig config) {
+		this(dm, nrThreads, config, new double[dm.getNrMovies() * config.getNrOfGroups()],
+				new double[dm.getNrUsers() * config.getNrOfGroups()], new double[dm.getNrUsers() * config.getNrOfGroups()]);
+	}
+
+	private EmAlgorithm(DataManager dm, int nrThreads, EmConfig config, double[] q, double[] mean, double[] variance) {
 		this.dm = dm;
-		this.q = HashBasedTable.create();
-		this.mean = HashBasedTable.create();
-		this.variance = HashBasedTable.create();
+		this.config = config;
+		this.nrOfGroups = config.getNrOfGroups();
+		this.alpha = config.getAlpha();
+		this.nrThreads = nrThreads;
+		this.q = q;
+		this.mean = mean;
+		this.variance = variance;
+		this.userSquaredErrors = new double[dm.getNrUsers()];
+	}
+
+	// Writes the config and the latent variables (see ModelFile).
+	void save(ModelFile.Writer writer) throws IOException {
+		writer.putInts(initialized ? 1 : 0);
+		config.save(writer);
+		writer.putMatrix(q, dm.getNrMovies(), nrOfGroups);
+		writer.putMatrix(mean, dm.getNrUsers(), nrOfGroups);
+		writer.putMatrix(variance, dm.getNrUsers(), nrOfGroups);
+	}
+
+	// Reads a model written by save.
+	static EmAlgorithm load(ModelFile.Reader reader, DataManager dm) throws IOException {
+		boolean initialized = reader.getInts(1)[0] != 0;
+		EmConfig config = EmConfig.load(reader);
+		int nrOfGroups = config.getNrOfGroups();
+		int nrMovies = dm.getNrMovies();
+		int nrUsers = dm.getNrUsers();
+		double[] q = reader.getMatrix(nrMovies, nrOfGroups, nrMovies * nrOfGroups);
+		double[] mean = reader.getMatrix(nrUsers, nrOfGroups, nrUsers * nrOfGroups);
+		double[] variance = reader.getMatrix(nrUsers, nrOfGroups, nrUsers * nrOfGroups);
+
+		EmAlgorithm result = new EmAlgorithm(dm, Runtime.getRuntime().availableProcessors(), config, q, mean, variance);
+		result.initialized = initialized;
+		return result;
 	}
 
 	@Override
 	public void train() {
+		initialized = false;
+		trainIterations(Integer.MAX_VALUE);
+	}
+
+	// Runs at most maxIterations more E + M iterations (starting from random latent variables if the algorithm
+	// wasn't trained yet), stopping earlier when an iteration didn't lower the error enough (see
+	// EmConfig.rmseDifference). Returns true when training converged. Can be called again to go on training where
+	// the previous call stopped (see SweepRunner).
+	public boolean trainIterations(int maxIterations) {
 		long startTime = System.currentTimeMillis();
-		if (VERBOSE) {
-			System.out.println("Nr groups:\t" + NR_OF_GROUPS);
-		}
-		
-		// Randomly generate the values for the hidden variables.
-		generateInitialLatentVariables();
+		ConvergenceMonitor monitor = new ConvergenceMonitor(convergenceMode, dm.getRatings());
+		TrainingRecorder recorder = new TrainingRecorder("em", dm.getRatings().getNrRatings() + dm.getAddedRatings().size());
 
-		mStep();
-		double currentRmse = dm.getRmse(this);
-		if (VERBOSE) {
-			System.out.println("0:\tRMSE: " + currentRmse + "\t" + getTime(System.currentTimeMillis() - startTime));
+		if (!initialized) {
+			if (VERBOSE) {
+				System.out.println("Nr groups:\t" + nrOfGroups);
+			}
+			// Randomly generate the values for the hidden variables.
+			recorder.beginEpoch();
+			generateInitialLatentVariables();
+
+			mStep();
+			initialized = true;
+			currentRmse = endIteration(monitor);
+			recorder.endEpoch(-1, 0, currentRmse);
+			previousRmse = -1;
+			iteration = 0;
+			if (VERBOSE) {
+				System.out.println("0:\tRMSE: " + currentRmse + "\t" + getTime(System.currentTimeMillis() - startTime));
+			}
 		}
 
-		int itteration = 0;
-		double previousRmse = -1;
-		while (previousRmse == -1 || previousRmse - currentRmse > RMSE_DIFF) {
-			itteration++;
+		for (int n = 0; n < maxIterations && !isConverged(); n++) {
+			iteration++;
 			previousRmse = currentRmse;
+			recorder.beginEpoch();
 			eStep();
 			mStep();
-			currentRmse = dm.getRmse(this);
+			currentRmse = endIteration(monitor);
+			recorder.endEpoch(-1, iteration, currentRmse);
 			if (VERBOSE) {
-				System.out.println(itteration + ":\tRMSE: " + currentRmse + "\t" + getTime(System.currentTimeMillis() - startTime));
+				System.out.println(iteration + ":\tRMSE: " + currentRmse + "\t" + getTime(System.currentTimeMillis() - startTime));
 			}
 		}
+		return isConverged();
+	}
+
+	// Whether the last iteration didn't lower the error enough.
+	private boolean isConverged() {
+		return previousRmse != -1 && !(previousRmse - currentRmse > config.getRmseDifference());
+	}
+
+	// Runs a single E + M iteration (starting from random latent variables if the algorithm wasn't trained yet),
+	// without any convergence check. Meant for benchmarks.
+	public void iterate() {
+		if (!initialized) {
+			generateInitialLatentVariables();
+			mStep();
+			initialized = true;
+		}
+		eStep();
+		mStep();
+	}
+
+	// Returns the error after an M-step. In TRAINING_ERROR mode, these are the errors computed by the M-step.
+	private double endIteration(ConvergenceMonitor monitor) {
+		if (monitor.getMode() == ConvergenceMonitor.Mode.TRAINING_ERROR) {
+			double sum = 0;
+			for (double userSquaredError : userSquaredErrors) {
+				sum += userSquaredError;
+			}
+			monitor.add(sum, dm.getRatings().getNrRatings() + dm.getAddedRatings().size());
+		}
+		return monitor.endEpoch(this);
+	}
+
+	// Selects how the error is measured after each iteration. By default, the M-step measures the errors
+	// of the user's ratings right after updating the user's means.
+	public void setConvergenceMode(ConvergenceMonitor.Mode convergenceMode) {
+		this.convergenceMode = convergenceMode;
 	}
 
 	@Override
 	public double predictRating(int movieId, int userId) {
+		RatingMatrix ratings = dm.getRatings();
+		int movie = ratings.getMovieOrdinal(movieId);
+		int user = ratings.getUserOrdinal(userId);
+
 		double result;
-		if (dm.existsMovie(movieId) && dm.existsUser(userId)) {
-			result = 0;
-			for (int g = 0; g < NR_OF_GROUPS; g++) {
-				result += (q.get(g, movieId) * mean.get(g, userId));
-			}
+		if (movie != -1 && user != -1) {
+			result = dot(movie * nrOfGroups, user * nrOfGroups);
 		} else {
 			result = dm.getTrueAverageMovieRating(movieId)
 					+ dm.getTrueAverageUserOffset(userId);
@@ -98,6 +220,85 @@ public class EmAlgorithm implements Algorithm {
 		return result;
 	}
 
+	// The ordinals are resolved once per pair; each prediction is a dot product of two contiguous slices.
+	@Override
+	public void predictRatings(int[] movieIds, int[] userIds, double[] out, int n) {
+		RatingMatrix ratings = dm.getRatings();
+		for (int k = 0; k < n; k++) {
+			int movie = ratings.getMovieOrdinal(movieIds[k]);
+			int user = ratings.getUserOrdinal(userIds[k]);
+			if (movie != -1 && user != -1) {
+				out[k] = PredictionTruncator.truncate(dot(movie * nrOfGroups, user * nrOfGroups));
+			} else {
+				out[k] = PredictionTruncator.truncate(dm.getTrueAverageMovieRating(movieIds[k])
+						+ dm.getTrueAverageUserOffset(userIds[k]));
+			}
+		}
+	}
+
+	// The movie's group probabilities are read once, and the users' means are scanned sequentially.
+	@Override
+	public void predictMovieRatings(int movieId, double[] out) {
+		RatingMatrix ratings = dm.getRatings();
+		int nrUsers = ratings.getNrUsers();
+		int movie = ratings.getMovieOrdinal(movieId);
+		if (movie == -1) {
+			double movieAverage = dm.getTrueAverageMovieRating(movieId);
+			for (int u = 0; u < nrUsers; u++) {
+				out[u] = PredictionTruncator.truncate(movieAverage + dm.getTrueAverageUserOffset(ratings.getUserId(u)));
+			}
+			return;
+		}
+
+		double[] movieQ = new double[nrOfGroups];
+		System.arraycopy(q, movie * nrOfGroups, movieQ, 0, nrOfGroups);
+		for (int u = 0; u < nrUsers; u++) {
+			int userOffset = u * nrOfGroups;
+			double result = 0;
+			for (int g = 0; g < nrOfGroups; g++) {
+				result += movieQ[g] * mean[userOffset + g];
+			}
+			out[u] = PredictionTruncator.truncate(result);
+		}
+	}
+
+	// Sum of q * mean over the groups, for the slices starting at the given offsets.
+	private double dot(int movieOffset, int userOffset) {
+		double result = 0;
+		for (int g = 0; g < nrOfGroups; g++) {
+			result += (q[movieOffset + g] * mean[userOffset + g]);
+		}
+		return result;
+	}
+
+	public int getNrGroups() {
+		return nrOfGroups;
+	}
+
+	public EmConfig getConfig() {
+		return config;
+	}
+
+	@Override
+	public Map<String, Object> getParameters() {
+		return config.getParameters();
+	}
+
+	// Nr of E + M iterations run by train so far.
+	public int getNrIterations() {
+		return iteration;
+	}
+
+	// Probability that the movie (ordinal) belongs to the group.
+	public double getGroupProbability(int movie, int group) {
+		return q[movie * nrOfGroups + group];
+	}
+
+	// Mean rating of the user (ordinal) for the group. It's never negative.
+	public double getGroupMean(int user, int group) {
+		return mean[user * nrOfGroups + group];
+	}
+
 	@Override
 	public DataManager getDataManager() {
 		return dm;
@@ -105,96 +306,205 @@ public class EmAlgorithm implements Algorithm {
 
 	// Randomly generates the initial values for the latent variables
 	private void generateInitialLatentVariables() {
-		for (int m : dm.getData().keySet()) {
+		for (int m = 0; m < dm.getNrMovies(); m++) {
+			int offset = m * nrOfGroups;
 			double sum = 0;
-			for (int g = 0; g < NR_OF_GROUPS; g++) {
-				q.put(g, m, Math.random());
-				sum += q.get(g, m);
+			for (int g = 0; g < nrOfGroups; g++) {
+				q[offset + g] = Math.random();
+				sum += q[offset + g];
 			}
 			// Sum of all probabilities for a movie should add up to 1.
-			for (int g = 0; g < NR_OF_GROUPS; g++) {
-				if (q.get(g, m) != 0) {
-					q.put(g, m, q.get(g, m) / sum);
+			for (int g = 0; g < nrOfGroups; g++) {
+				if (q[offset + g] != 0) {
+					q[offset + g] = q[offset + g] / sum;
 				}
 			}
 		}
 	}
 
-	// Performs the E-step (one iteration).
-	// Values were scaled to make them numerically stable.
+	// Performs the E-step (one iteration), in parallel over the movies.
 	private void eStep() {
-		for (int m : dm.getData().keySet()) {
-			double maxExp = -Double.MAX_VALUE;
-			double[] numerators = new double[NR_OF_GROUPS];
-			for (int g = 0; g < NR_OF_GROUPS; g++) {
-
-				numerators[g] = Math.max(Math.log(q.get(g, m)), 0);
-				for (UserRating userRating : dm.getData().get(m)) {
-					double gauss = GaussDistribution.logPdf(userRating.getRating(), mean.get(g, userRating.getUserId()), variance.get(g, userRating.getUserId()));
-					numerators[g] += gauss;
-				}
-				if (numerators[g] > maxExp) {
-					maxExp = numerators[g];
-				}
-			}
+		forEach(dm.getNrMovies(), this::eStep);
+	}
 
-			double commonDenominator = 0;
-			for (int g = 0; g < NR_OF_GROUPS; g++) {
-				numerators[g] -= maxExp;
-				if (numerators[g] < -1 * K) {
-					numerators[g] = EPSILON;
-				} else {
-					numerators[g] = Math.exp(numerators[g]);
-				}
-				commonDenominator += numerators[g];
+	// Performs the E-step for a single movie (ordinal), including the ratings added to the data manager.
+	// Values were scaled to make them numerically stable.
+	private void eStep(int m) {
+		RatingMatrix ratings = dm.getRatings();
+		RatingLog addedRatings = dm.getAddedRatings();
+		int movieOffset = m * nrOfGroups;
+		double[] numerators = new double[nrOfGroups];
+		for (int g = 0; g < nrOfGroups; g++) {
+			numerators[g] = Math.max(Math.log(q[movieOffset + g]), 0);
+		}
+		for (int i = ratings.getMovieStart(m); i < ratings.getMovieEnd(m); i++) {
+			addLogPdfs(numerators, ratings.getUser(i) * nrOfGroups, ratings.getRating(i));
+		}
+		for (int i = addedRatings.getMovieHead(m); i != -1; i = addedRatings.getNextOfMovie(i)) {
+			addLogPdfs(numerators, addedRatings.getUser(i) * nrOfGroups, addedRatings.getRating(i));
+		}
+
+		double maxExp = -Double.MAX_VALUE;
+		for (int g = 0; g < nrOfGroups; g++) {
+			if (numerators[g] > maxExp) {
+				maxExp = numerators[g];
 			}
+		}
 
-			for (int g = 0; g < NR_OF_GROUPS; g++) {
-				double result;
-				if (numerators[g] == 0) {
-					result = 0;
-				} else {
-					result = numerators[g] / commonDenominator;
-				}
+		double commonDenominator = 0;
+		for (int g = 0; g < nrOfGroups; g++) {
+			numerators[g] -= maxExp;
+			if (numerators[g] < -1 * K) {
+				numerators[g] = EPSILON;
+			} else {
+				numerators[g] = Math.exp(numerators[g]);
+			}
+			commonDenominator += numerators[g];
+		}
 
-				q.put(g, m, result);
+		for (int g = 0; g < nrOfGroups; g++) {
+			double result;
+			if (numerators[g] == 0) {
+				result = 0;
+			} else {
+				result = numerators[g] / commonDenominator;
 			}
+
+			q[movieOffset + g] = result;
+		}
+	}
+
+	private void addLogPdfs(double[] numerators, int userOffset, int rating) {
+		for (int g = 0; g < nrOfGroups; g++) {
+			numerators[g] += GaussDistribution.logPdf(rating, mean[userOffset + g], variance[userOffset + g]);
 		}
 	}
 
-	// Performs the M-step (one iteration).
+	// Performs the M-step (one iteration), in parallel over the users.
 	private void mStep() {
-		for (int u : dm.getUserRatingsMap().keySet()) {
-			for (int g = 0; g < NR_OF_GROUPS; g++) {
-			    double numerator = 0;
-				double denominator = 0;
-				for (int m : dm.getUserRatingsMap().get(u)) {
-					denominator += q.get(g, m);
-					numerator += q.get(g, m) * dm.getRating(u, m);
-				}
+		forEach(dm.getNrUsers(), this::mStep);
+	}
 
-				// Smoothing
-				double d = dm.getUserRatingsMap().get(u).size();
-				double result = (numerator + ALPHA) / (denominator + ALPHA * d);
-				mean.put(g, u, result);
+	// Performs the M-step for a single user (ordinal): the means first, then the variances.
+	// The ratings added to the data manager are included.
+	private void mStep(int u) {
+		RatingMatrix ratings = dm.getRatings();
+		RatingLog addedRatings = dm.getAddedRatings();
+		int start = ratings.getUserStart(u);
+		int end = ratings.getUserEnd(u);
+		int head = addedRatings.getUserHead(u);
+		int userOffset = u * nrOfGroups;
+		double[] numerators = new double[nrOfGroups];
+		double[] denominators = new double[nrOfGroups];
+		// Smoothing
+		double d = end - start + addedRatings.getUserRatingCount(u);
+
+		for (int j = start; j < end; j++) {
+			addMeanTerms(numerators, denominators, ratings.getUserMovie(j) * nrOfGroups, ratings.getUserRating(j));
+		}
+		for (int i = head; i != -1; i = addedRatings.getNextOfUser(i)) {
+			addMeanTerms(numerators, denominators, addedRatings.getMovie(i) * nrOfGroups, addedRatings.getRating(i));
+		}
+		for (int g = 0; g < nrOfGroups; g++) {
+			mean[userOffset + g] = (numerators[g] + alpha) / (denominators[g] + alpha * d);
+			numerators[g] = 0;
+		}
+
+		if (convergenceMode == ConvergenceMonitor.Mode.TRAINING_ERROR) {
+			double squaredErrors = 0;
+			for (int j = start; j < end; j++) {
+				double error = ratings.getUserRating(j) - PredictionTruncator.truncate(dot(ratings.getUserMovie(j) * nrOfGroups, userOffset));
+				squaredErrors += error * error;
+			}
+			for (int i = head; i != -1; i = addedRatings.getNextOfUser(i)) {
+				double error = addedRatings.getRating(i) - PredictionTruncator.truncate(dot(addedRatings.getMovie(i) * nrOfGroups, userOffset));
+				squaredErrors += error * error;
 			}
+			userSquaredErrors[u] = squaredErrors;
 		}
-		
-		for (int u : dm.getUserRatingsMap().keySet()) {
-			for (int g = 0; g < NR_OF_GROUPS; g++) {
-			    double numerator = 0;
-				double denominator = 0;
-				for (int m : dm.getUserRatingsMap().get(u)) {
-					denominator += q.get(g, m);
-					numerator += q.get(g, m) * Math.pow(dm.getRating(u, m) - mean.get(g, u), 2);
-				}
 
-				// Smoothing
-				double d = dm.getUserRatingsMap().get(u).size();
-				double result = (numerator + ALPHA) / (denominator + ALPHA  * d);
-				variance.put(g, u, result);
+		// The denominators are the same sums of q as above.
+		for (int j = start; j < end; j++) {
+			addVarianceTerms(numerators, ratings.getUserMovie(j) * nrOfGroups, userOffset, ratings.getUserRating(j));
+		}
+		for (int i = head; i != -1; i = addedRatings.getNextOfUser(i)) {
+			addVarianceTerms(numerators, addedRatings.getMovie(i) * nrOfGroups, userOffset, addedRatings.getRating(i));
+		}
+		for (int g = 0; g < nrOfGroups; g++) {
+			variance[userOffset + g] = (numerators[g] + alpha) / (denominators[g] + alpha * d);
+		}
+	}
+
+	private void addMeanTerms(double[] numerators, double[] denominators, int movieOffset, int rating) {
+		for (int g = 0; g < nrOfGroups; g++) {
+			denominators[g] += q[movieOffset + g];
+			numerators[g] += q[movieOffset + g] * rating;
+		}
+	}
+
+	private void addVarianceTerms(double[] numerators, int movieOffset, int userOffset, int rating) {
+		for (int g = 0; g < nrOfGroups; g++) {
+			double diff = rating - mean[userOffset + g];
+			numerators[g] += q[movieOffset + g] * diff * diff;
+		}
+	}
+
+	// The M-step of a single user, against the frozen group probabilities of the rated movies: the user's group
+	// means are the posterior means given these ratings. O(ratings * groups). The ratings of unknown movies are ignored.
+	@Override
+	public FoldedUser foldIn(int[] movieIds, int[] ratings) {
+		RatingMatrix matrix = dm.getRatings();
+		double[] numerators = new double[nrOfGroups];
+		double[] denominators = new double[nrOfGroups];
+		int d = 0;
+		for (int k = 0; k < movieIds.length; k++) {
+			int movie = matrix.getMovieOrdinal(movieIds[k]);
+			if (movie != -1) {
+				addMeanTerms(numerators, denominators, movie * nrOfGroups, ratings[k]);
+				d++;
+			}
+		}
+		FoldedUser baseline = Algorithm.super.foldIn(movieIds, ratings);
+		if (d == 0 || !initialized) {
+			return baseline;
+		}
+
+		double[] userMean = new double[nrOfGroups];
+		for (int g = 0; g < nrOfGroups; g++) {
+			userMean[g] = (numerators[g] + alpha) / (denominators[g] + alpha * d);
+		}
+		return movieId -> {
+			int movie = matrix.getMovieOrdinal(movieId);
+			if (movie == -1) {
+				return baseline.predictRating(movieId);
 			}
+			double result = 0;
+			for (int g = 0; g < nrOfGroups; g++) {
+				result += q[movie * nrOfGroups + g] * userMean[g];
+			}
+			return PredictionTruncator.truncate(result);
+		};
+	}
+
+	// A localized refresh for a rating added after training: the M-step of the user, the E-step of the movie,
+	// then the M-step of the user again, with the new group probabilities of the movie. The other users of the
+	// movie keep their means until the next full iteration. Not thread safe.
+	@Override
+	public void update(int movieId, int userId) {
+		RatingMatrix ratings = dm.getRatings();
+		int movie = ratings.getMovieOrdinal(movieId);
+		int user = ratings.getUserOrdinal(userId);
+		if (movie == -1 || user == -1 || !initialized) {
+			return;
 		}
+		mStep(user);
+		eStep(movie);
+		mStep(user);
+	}
+
+	// Runs the action for every ordinal in [0, n) on the shared pool, and waits for all of them.
+	private void forEach(int n, IntConsumer action) {
+		SharedPools.forEach(nrThreads, n, action);
 	}
 
 	// Returns formated time as string [i.e. "(3 min 10 sec)"]
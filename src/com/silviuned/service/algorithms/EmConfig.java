@@ -0,0 +1,113 @@
+package com.silviuned.service.algorithms;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The hyperparameters of an {@link EmAlgorithm}. Immutable: variants are derived with {@link #toBuilder()}, e.g.
+ * {@code EmConfig.DEFAULT.toBuilder().nrOfGroups(24).build()}.
+ */
+public class EmConfig {
+
+    public static final EmConfig DEFAULT = builder().build();
+
+    private final int nrOfGroups;
+    private final double alpha;
+    private final double rmseDifference;
+
+    private EmConfig(Builder builder) {
+        this.nrOfGroups = builder.nrOfGroups;
+        this.alpha = builder.alpha;
+        this.rmseDifference = builder.rmseDifference;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Builder toBuilder() {
+        return new Builder()
+                .nrOfGroups(nrOfGroups)
+                .alpha(alpha)
+                .rmseDifference(rmseDifference);
+    }
+
+    public static class Builder {
+
+        private int nrOfGroups = 17;
+        private double alpha = 0.35;
+        // The iterations go on while they lower the error by more than rmseDifference.
+        private double rmseDifference = 0.004;
+
+        private Builder() {}
+
+        public Builder nrOfGroups(int nrOfGroups) {
+            this.nrOfGroups = nrOfGroups;
+            return this;
+        }
+
+        // The additive smoothing parameter of the M-step.
+        public Builder alpha(double alpha) {
+            this.alpha = alpha;
+            return this;
+        }
+
+        public Builder rmseDifference(double rmseDifference) {
+            this.rmseDifference = rmseDifference;
+            return this;
+        }
+
+        public EmConfig build() {
+            if (nrOfGroups < 1 || alpha <= 0) {
+                throw new IllegalArgumentException("Invalid EM config: nrOfGroups " + nrOfGroups + ", alpha " + alpha);
+            }
+            // A negative difference would keep iterating while the error goes up.
+            if (rmseDifference < 0) {
+                throw new IllegalArgumentException("Invalid EM config: rmseDifference " + rmseDifference
+                        + " (must be non negative)");
+            }
+            return new EmConfig(this);
+        }
+    }
+
+    // Writes the hyperparameters (see ModelFile).
+    void save(ModelFile.Writer writer) throws IOException {
+        writer.putDoubles(new double[] {nrOfGroups, alpha, rmseDifference});
+    }
+
+    static EmConfig load(ModelFile.Reader reader) throws IOException {
+        double[] values = reader.getDoubles(3);
+        return builder()
+                .nrOfGroups((int) values[0])
+                .alpha(values[1])
+                .rmseDifference(values[2])
+                .build();
+    }
+
+    public int getNrOfGroups() {
+        return nrOfGroups;
+    }
+
+    public double getAlpha() {
+        return alpha;
+    }
+
+    public double getRmseDifference() {
+        return rmseDifference;
+    }
+
+    // The hyperparameters by name, in a fixed order (see SweepRunner's leaderboards).
+    public Map<String, Object> getParameters() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("nrOfGroups", nrOfGroups);
+        result.put("alpha", alpha);
+        result.put("rmseDifference", rmseDifference);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "EmConfig" + getParameters();
+    }
+}
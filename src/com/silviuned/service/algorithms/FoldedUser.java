@@ -0,0 +1,11 @@
+package com.silviuned.service.algorithms;
+
+/**
+ * A user who isn't in the training data, folded into a trained model out of a few ratings
+ * (see {@link Algorithm#foldIn(int[], int[])}). The model itself isn't changed.
+ */
+public interface FoldedUser {
+
+    // Predicts the user's rating of the movie, like Algorithm.predictRating.
+    double predictRating(int movieId);
+}
@@ -0,0 +1,380 @@
+package com.silviuned.service.algorithms;
+
+import com.silviuned.model.RatingLog;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.postProcessing.PredictionTruncator;
+import com.silviuned.utils.SharedPools;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Item-item neighbourhood model: a rating is predicted by the baseline (the movie's true average plus the user's
+ * true offset, see DataManager), corrected by the user's residuals on the most similar movies the user rated.
+ *
+ * The similarity of two movies is the Pearson correlation of their residuals over the users who rated both,
+ * shrunk towards 0 when few users did: n / (n + SIMILARITY_SHRINKAGE) * correlation. Only the NR_NEIGHBOURS most
+ * similar movies of each movie are kept, so a prediction reads at most NR_NEIGHBOURS similarities.
+ *
+ * The co-ratings of a movie are accumulated through the user-major view (every user of the movie, then every
+ * movie of the user) into dense per-task arrays, which are reused for a block of consecutive movies. The blocks
+ * are computed in parallel.
+ */
+public class ItemKnnAlgorithm implements Algorithm {
+
+    private static final int NR_NEIGHBOURS = 50;
+    private static final double SIMILARITY_SHRINKAGE = 100;
+    // Added to the sum of the similarities of the neighbours the user rated, so that a few weak neighbours
+    // only move the prediction a little away from the baseline.
+    private static final double PREDICTION_SHRINKAGE = 0.3;
+
+    private static final int MOVIES_PER_TASK = 32;
+
+    private static final double NEAR_INTEGER_ROUNDER_DIFF = 0.001;
+
+    private static final boolean VERBOSE = false;
+
+    private final DataManager dm;
+    private final int nrMovies;
+
+    private double[] movieBaselines;
+    private double[] userBaselines;
+
+    // The neighbours of movie m are neighbours[m * NR_NEIGHBOURS + k] for k in [0, neighbourCounts[m]), by
+    // decreasing similarity; their similarities are at the same positions of similarities.
+    private int[] neighbourCounts;
+    private int[] neighbours;
+    private float[] similarities;
+
+    // The tasks run on the shared pool of this size (see SharedPools).
+    private final int nrThreads;
+
+    public ItemKnnAlgorithm(DataManager dm) {
+        this(dm, Runtime.getRuntime().availableProcessors());
+    }
+
+    // The result doesn't depend on the nr of threads: every movie's neighbours are computed on their own.
+    public ItemKnnAlgorithm(DataManager dm, int nrThreads) {
+        this.dm = dm;
+        this.nrMovies = dm.getNrMovies();
+        this.nrThreads = nrThreads;
+    }
+
+    // Writes the baselines and the neighbours (see ModelFile).
+    void save(ModelFile.Writer writer) throws IOException {
+        writer.putInts(movieBaselines != null ? 1 : 0);
+        if (movieBaselines != null) {
+            writer.putDoubles(movieBaselines);
+            writer.putDoubles(userBaselines);
+            writer.putInts(neighbourCounts);
+            writer.putInts(neighbours);
+            writer.putFloats(similarities);
+        }
+    }
+
+    // Reads a model written by save.
+    static ItemKnnAlgorithm load(ModelFile.Reader reader, DataManager dm) throws IOException {
+        ItemKnnAlgorithm result = new ItemKnnAlgorithm(dm);
+        if (reader.getInts(1)[0] != 0) {
+            result.movieBaselines = reader.getDoubles(dm.getNrMovies());
+            result.userBaselines = reader.getDoubles(dm.getNrUsers());
+            result.neighbourCounts = reader.getInts(dm.getNrMovies());
+            result.neighbours = reader.getInts(dm.getNrMovies() * NR_NEIGHBOURS);
+            result.similarities = reader.getFloats(dm.getNrMovies() * NR_NEIGHBOURS);
+        }
+        return result;
+    }
+
+    @Override
+    public void train() {
+        long startTime = System.currentTimeMillis();
+        initBaselines();
+
+        neighbourCounts = new int[nrMovies];
+        neighbours = new int[nrMovies * NR_NEIGHBOURS];
+        similarities = new float[nrMovies * NR_NEIGHBOURS];
+        int nrTasks = (nrMovies + MOVIES_PER_TASK - 1) / MOVIES_PER_TASK;
+        forEach(nrTasks, task -> {
+            SimilarityRow row = new SimilarityRow();
+            for (int m = task * MOVIES_PER_TASK; m < Math.min((task + 1) * MOVIES_PER_TASK, nrMovies); m++) {
+                row.computeNeighbours(m);
+            }
+        });
+
+        if (VERBOSE) {
+            System.out.println("Computed the neighbours of " + nrMovies + " movies in "
+                    + (System.currentTimeMillis() - startTime) + " ms.");
+        }
+    }
+
+    // Caches the baseline predictions by movie and user ordinal.
+    private void initBaselines() {
+        RatingMatrix ratings = dm.getRatings();
+        movieBaselines = new double[nrMovies];
+        for (int m = 0; m < nrMovies; m++) {
+            movieBaselines[m] = dm.getTrueAverageMovieRating(ratings.getMovieId(m));
+        }
+        userBaselines = new double[ratings.getNrUsers()];
+        for (int u = 0; u < userBaselines.length; u++) {
+            userBaselines[u] = dm.getTrueAverageUserOffset(ratings.getUserId(u));
+        }
+    }
+
+    // The co-rating sums of one movie with all the other ones (dense, by movie ordinal), reused from one movie
+    // to the next: only the touched entries are reset.
+    private class SimilarityRow {
+
+        private final int[] counts = new int[nrMovies];
+        private final double[] productSums = new double[nrMovies];
+        private final double[] squareSums = new double[nrMovies];
+        private final double[] otherSquareSums = new double[nrMovies];
+        private final int[] touched = new int[nrMovies];
+
+        // Min-heap of the best neighbours found so far (the weakest one on top).
+        private final int[] heapMovies = new int[NR_NEIGHBOURS];
+        private final float[] heapSimilarities = new float[NR_NEIGHBOURS];
+
+        private void computeNeighbours(int m) {
+            RatingMatrix ratings = dm.getRatings();
+            int nrTouched = 0;
+            double movieBaseline = movieBaselines[m];
+            for (int i = ratings.getMovieStart(m); i < ratings.getMovieEnd(m); i++) {
+                int u = ratings.getUser(i);
+                double userBaseline = userBaselines[u];
+                double x = ratings.getRating(i) - movieBaseline - userBaseline;
+                for (int j = ratings.getUserStart(u), end = ratings.getUserEnd(u); j < end; j++) {
+                    int other = ratings.getUserMovie(j);
+                    double y = ratings.getUserRating(j) - movieBaselines[other] - userBaseline;
+                    if (counts[other]++ == 0) {
+                        touched[nrTouched++] = other;
+                    }
+                    productSums[other] += x * y;
+                    squareSums[other] += x * x;
+                    otherSquareSums[other] += y * y;
+                }
+            }
+
+            int heapSize = 0;
+            for (int t = 0; t < nrTouched; t++) {
+                int other = touched[t];
+                double denominator = squareSums[other] * otherSquareSums[other];
+                if (other != m && denominator > 0 && productSums[other] > 0) {
+                    int n = counts[other];
+                    float similarity = (float) (productSums[other] / Math.sqrt(denominator) * n / (n + SIMILARITY_SHRINKAGE));
+                    if (heapSize < NR_NEIGHBOURS) {
+                        heapMovies[heapSize] = other;
+                        heapSimilarities[heapSize] = similarity;
+                        siftUp(heapSize++);
+                    } else if (similarity > heapSimilarities[0]) {
+                        heapMovies[0] = other;
+                        heapSimilarities[0] = similarity;
+                        siftDown(0, heapSize);
+                    }
+                }
+                counts[other] = 0;
+                productSums[other] = 0;
+                squareSums[other] = 0;
+                otherSquareSums[other] = 0;
+            }
+
+            // Popping the weakest first fills the neighbour list from its end.
+            neighbourCounts[m] = heapSize;
+            int offset = m * NR_NEIGHBOURS;
+            for (int k = heapSize - 1; k >= 0; k--) {
+                neighbours[offset + k] = heapMovies[0];
+                similarities[offset + k] = heapSimilarities[0];
+                heapMovies[0] = heapMovies[k];
+                heapSimilarities[0] = heapSimilarities[k];
+                siftDown(0, k);
+            }
+        }
+
+        private void siftUp(int k) {
+            while (k > 0) {
+                int parent = (k - 1) / 2;
+                if (heapSimilarities[parent] <= heapSimilarities[k]) {
+                    break;
+                }
+                swap(parent, k);
+                k = parent;
+            }
+        }
+
+        private void siftDown(int k, int size) {
+            while (true) {
+                int smallest = k;
+                int left = 2 * k + 1;
+                if (left < size && heapSimilarities[left] < heapSimilarities[smallest]) {
+                    smallest = left;
+                }
+                if (left + 1 < size && heapSimilarities[left + 1] < heapSimilarities[smallest]) {
+                    smallest = left + 1;
+                }
+                if (smallest == k) {
+                    return;
+                }
+                swap(smallest, k);
+                k = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int movie = heapMovies[a];
+            heapMovies[a] = heapMovies[b];
+            heapMovies[b] = movie;
+            float similarity = heapSimilarities[a];
+            heapSimilarities[a] = heapSimilarities[b];
+            heapSimilarities[b] = similarity;
+        }
+    }
+
+    @Override
+    public double predictRating(int movieId, int userId) {
+        RatingMatrix ratings = dm.getRatings();
+        int movie = ratings.getMovieOrdinal(movieId);
+        int user = ratings.getUserOrdinal(userId);
+        if (movie == -1 || user == -1) {
+            return PredictionTruncator.truncate(dm.getTrueAverageMovieRating(movieId) + dm.getTrueAverageUserOffset(userId));
+        }
+
+        // The user's ratings of the neighbours are found by binary search in the user-major view.
+        RatingLog addedRatings = dm.getAddedRatings();
+        double userBaseline = userBaselines[user];
+        double weightedResiduals = 0;
+        double weights = 0;
+        for (int k = movie * NR_NEIGHBOURS, end = k + neighbourCounts[movie]; k < end; k++) {
+            int other = neighbours[k];
+            int rating;
+            int position = ratings.findUserRating(user, other);
+            if (position != -1) {
+                rating = ratings.getUserRating(position);
+            } else if (addedRatings.size() > 0 && (position = addedRatings.find(other, user)) != -1) {
+                rating = addedRatings.getRating(position);
+            } else {
+                continue;
+            }
+            weightedResiduals += similarities[k] * (rating - movieBaselines[other] - userBaseline);
+            weights += similarities[k];
+        }
+        return PredictionTruncator.truncate(movieBaselines[movie] + userBaseline
+                + weightedResiduals / (weights + PREDICTION_SHRINKAGE));
+    }
+
+    // The ratings of the movie's neighbours are scanned movie by movie, accumulating the residuals of every user.
+    @Override
+    public void predictMovieRatings(int movieId, double[] out) {
+        RatingMatrix ratings = dm.getRatings();
+        int movie = ratings.getMovieOrdinal(movieId);
+        if (movie == -1 || dm.getAddedRatings().size() > 0) {
+            Algorithm.super.predictMovieRatings(movieId, out);
+            return;
+        }
+        int nrUsers = ratings.getNrUsers();
+        double[] weights = new double[nrUsers];
+        Arrays.fill(out, 0, nrUsers, 0);
+        for (int k = movie * NR_NEIGHBOURS, end = k + neighbourCounts[movie]; k < end; k++) {
+            int other = neighbours[k];
+            double similarity = similarities[k];
+            double otherBaseline = movieBaselines[other];
+            for (int i = ratings.getMovieStart(other); i < ratings.getMovieEnd(other); i++) {
+                int u = ratings.getUser(i);
+                out[u] += similarity * (ratings.getRating(i) - otherBaseline - userBaselines[u]);
+                weights[u] += similarity;
+            }
+        }
+        double movieBaseline = movieBaselines[movie];
+        for (int u = 0; u < nrUsers; u++) {
+            out[u] = PredictionTruncator.truncate(movieBaseline + userBaselines[u]
+                    + out[u] / (weights[u] + PREDICTION_SHRINKAGE));
+        }
+    }
+
+    // Refreshes the baselines of the movie and the user; the similarities are left as they are.
+    @Override
+    public void update(int movieId, int userId) {
+        RatingMatrix ratings = dm.getRatings();
+        int movie = ratings.getMovieOrdinal(movieId);
+        int user = ratings.getUserOrdinal(userId);
+        if (movie == -1 || user == -1 || movieBaselines == null) {
+            return;
+        }
+        movieBaselines[movie] = dm.getTrueAverageMovieRating(movieId);
+        userBaselines[user] = dm.getTrueAverageUserOffset(userId);
+    }
+
+    // The folded user's ratings are sorted by movie ordinal, and looked up like the ones of a training user.
+    @Override
+    public FoldedUser foldIn(int[] movieIds, int[] ratings) {
+        RatingMatrix matrix = dm.getRatings();
+        double userBaseline = dm.getTrueAverageUserOffset(movieIds, ratings);
+        long[] rated = new long[movieIds.length];
+        int nrRated = 0;
+        for (int k = 0; k < movieIds.length; k++) {
+            int movie = matrix.getMovieOrdinal(movieIds[k]);
+            if (movie != -1) {
+                rated[nrRated++] = ((long) movie << 32) | ratings[k];
+            }
+        }
+        Arrays.sort(rated, 0, nrRated);
+        int[] ratedMovies = new int[nrRated];
+        double[] residuals = new double[nrRated];
+        for (int k = 0; k < nrRated; k++) {
+            ratedMovies[k] = (int) (rated[k] >>> 32);
+            residuals[k] = (int) rated[k] - movieBaselines[ratedMovies[k]] - userBaseline;
+        }
+
+        return movieId -> {
+            int movie = matrix.getMovieOrdinal(movieId);
+            if (movie == -1) {
+                return PredictionTruncator.truncate(dm.getTrueAverageMovieRating(movieId) + userBaseline);
+            }
+            double weightedResiduals = 0;
+            double weights = 0;
+            for (int k = movie * NR_NEIGHBOURS, end = k + neighbourCounts[movie]; k < end; k++) {
+                int position = Arrays.binarySearch(ratedMovies, neighbours[k]);
+                if (position >= 0) {
+                    weightedResiduals += similarities[k] * residuals[position];
+                    weights += similarities[k];
+                }
+            }
+            return PredictionTruncator.truncate(movieBaselines[movie] + userBaseline
+                    + weightedResiduals / (weights + PREDICTION_SHRINKAGE));
+        };
+    }
+
+    // Nr of neighbours kept for the movie (ordinal).
+    public int getNrNeighbours(int movie) {
+        return neighbourCounts[movie];
+    }
+
+    // The k-th most similar movie (ordinal) of the movie, and its similarity.
+    public int getNeighbour(int movie, int k) {
+        return neighbours[movie * NR_NEIGHBOURS + k];
+    }
+
+    public double getSimilarity(int movie, int k) {
+        return similarities[movie * NR_NEIGHBOURS + k];
+    }
+
+    // Returns the approximate heap size of the neighbour lists, in bytes.
+    public long getSizeInBytes() {
+        return 4L * nrMovies + 8L * nrMovies * NR_NEIGHBOURS;
+    }
+
+    @Override
+    public DataManager getDataManager() {
+        return dm;
+    }
+
+    // Runs the action for every ordinal in [0, n) on the shared pool, and waits for all of them.
+    private void forEach(int n, IntConsumer action) {
+        SharedPools.forEach(nrThreads, n, action);
+    }
+
+    @Override
+    public double getNearIntegerRounderDiff() {
+        return NEAR_INTEGER_ROUNDER_DIFF;
+    }
+}
@@ -0,0 +1,375 @@
+package com.silviuned.service.algorithms;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.postProcessing.GlobalBiasCorrector;
+import com.silviuned.service.postProcessing.ItemBasedCorrector;
+import com.silviuned.utils.Float16;
+import com.silviuned.utils.SectionReader;
+import com.silviuned.utils.SectionWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A trained model on disk: the algorithm (SVD, EM, ALS, item kNN, a blend of two models, or a stack of models),
+ * the ids of the training data it was trained on, and optionally the corrections of its post processors.
+ *
+ * Layout (little endian): a fixed size header followed by sections aligned to 8 bytes, like the data snapshot.
+ * Loading maps the file and bulk copies the sections into the algorithm's arrays, with no parsing involved.
+ * The header holds a CRC32 of its other fields and of the sections (see SectionReader.headerChecksum); the ids are
+ * checked against the data manager the model is loaded with.
+ *
+ * The factor matrices (SVD features, ALS factors, EM probabilities, means and variances) can be stored with a
+ * reduced precision: FLOAT32, FLOAT16, or INT8 (symmetric, with one scale per matrix row). The baselines, the corrections and the
+ * SVD prediction cache are always stored exactly, and so are the SVD and EM configs (see SvdConfig and EmConfig).
+ */
+public class ModelFile {
+
+    public enum Precision {
+        FLOAT64, FLOAT32, FLOAT16, INT8
+    }
+
+    private static final int MAGIC = 0x43464D44; // "CFMD"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 64;
+    // The header's fields after the magic, the version and the checksum.
+    private static final int HEADER_FIELDS_OFFSET = 16;
+
+    private static final int SVD = 1;
+    private static final int EM = 2;
+    private static final int BLENDED = 3;
+    private static final int ALS = 4;
+    private static final int ITEM_KNN = 5;
+    private static final int STACKED = 6;
+
+    private final Algorithm algorithm;
+    private final ItemBasedCorrector itemBasedCorrector;
+    private final GlobalBiasCorrector globalBiasCorrector;
+
+    // The correctors are optional (null).
+    public ModelFile(Algorithm algorithm, ItemBasedCorrector itemBasedCorrector, GlobalBiasCorrector globalBiasCorrector) {
+        this.algorithm = algorithm;
+        this.itemBasedCorrector = itemBasedCorrector;
+        this.globalBiasCorrector = globalBiasCorrector;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public ItemBasedCorrector getItemBasedCorrector() {
+        return itemBasedCorrector;
+    }
+
+    public GlobalBiasCorrector getGlobalBiasCorrector() {
+        return globalBiasCorrector;
+    }
+
+    // Returns the default file of a model trained on a data folder: a sibling file named "<folder>.<name>.model".
+    public static Path defaultModelFile(String trainingDataPath, String name) {
+        Path folder = Paths.get(trainingDataPath).toAbsolutePath().normalize();
+        return folder.resolveSibling(folder.getFileName() + "." + name + ".model");
+    }
+
+    // Writes the model. Without the SVD prediction cache, the file is much smaller, but the loaded model predicts
+    // the training ratings from the features (and rebuilds the cache before training any further).
+    // The file is written next to the target and then moved in place.
+    public void save(Path file, Precision precision, boolean includePredictionCache) throws IOException {
+        RatingMatrix ratings = algorithm.getDataManager().getRatings();
+        int[] movieIds = new int[ratings.getNrMovies()];
+        for (int m = 0; m < movieIds.length; m++) {
+            movieIds[m] = ratings.getMovieId(m);
+        }
+        int[] userIds = new int[ratings.getNrUsers()];
+        for (int u = 0; u < userIds.length; u++) {
+            userIds[u] = ratings.getUserId(u);
+        }
+        double globalCorrection = globalBiasCorrector != null ? globalBiasCorrector.getCorrection() : 0;
+        write(file, new Writer(precision, includePredictionCache), movieIds, userIds, ratings.getNrRatings(),
+                itemBasedCorrector != null, globalBiasCorrector != null, globalCorrection, writer -> {
+                    if (itemBasedCorrector != null) {
+                        writer.putDoubles(itemBasedCorrector.getMovieCorrections());
+                    }
+                    writer.putAlgorithm(algorithm);
+                });
+    }
+
+    // Writes the sections of an algorithm.
+    interface AlgorithmWriter {
+
+        void write(Writer writer) throws IOException;
+    }
+
+    // Writes an SVD model that was trained without a data manager (see StreamingSvdTrainer), without correctors.
+    static void saveSvd(Path file, Precision precision, int[] movieIds, int[] userIds, int nrRatings,
+                        AlgorithmWriter svd) throws IOException {
+        write(file, new Writer(precision, false), movieIds, userIds, nrRatings, false, false, 0, writer -> {
+            writer.putInts(SVD);
+            svd.write(writer);
+        });
+    }
+
+    private static void write(Path file, Writer writer, int[] movieIds, int[] userIds, int nrRatings,
+                              boolean hasItemBasedCorrector, boolean hasGlobalBiasCorrector, double globalCorrection,
+                              AlgorithmWriter body) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writer.sections = new SectionWriter(channel, HEADER_SIZE);
+            writer.sections.putInts(movieIds);
+            writer.sections.putInts(userIds);
+            body.write(writer);
+            writer.sections.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(0);
+            header.putInt(writer.precision.ordinal());
+            header.putInt(movieIds.length);
+            header.putInt(userIds.length);
+            header.putInt(nrRatings);
+            header.putInt(hasItemBasedCorrector ? 1 : 0);
+            header.putInt(hasGlobalBiasCorrector ? 1 : 0);
+            header.putDouble(globalCorrection);
+            header.clear();
+            header.putLong(8, SectionReader.headerChecksum(header, HEADER_FIELDS_OFFSET, writer.sections.getChecksum()));
+            channel.write(header, 0);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Reads a model saved with the same training data as the data manager's.
+    // Throws an IOException if the file isn't a valid model, or if it was trained on other data.
+    public static ModelFile load(Path file, DataManager dm) throws IOException {
+        RatingMatrix ratings = dm.getRatings();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + ": truncated header");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + ": unknown format");
+            }
+            long crc = header.getLong();
+            if (SectionReader.headerChecksum(header, HEADER_FIELDS_OFFSET, SectionReader.checksum(channel, HEADER_SIZE)) != crc) {
+                throw new IOException(file + ": checksum mismatch");
+            }
+            int precisionOrdinal = header.getInt();
+            if (precisionOrdinal < 0 || precisionOrdinal >= Precision.values().length) {
+                throw new IOException(file + ": unknown precision " + precisionOrdinal);
+            }
+            Precision precision = Precision.values()[precisionOrdinal];
+            int nrMovies = header.getInt();
+            int nrUsers = header.getInt();
+            int nrRatings = header.getInt();
+            boolean hasItemBasedCorrector = header.getInt() != 0;
+            boolean hasGlobalBiasCorrector = header.getInt() != 0;
+            double globalCorrection = header.getDouble();
+
+            if (nrMovies != ratings.getNrMovies() || nrUsers != ratings.getNrUsers() || nrRatings != ratings.getNrRatings()) {
+                throw new IOException(file + ": trained on other data");
+            }
+
+            Reader reader = new Reader(new SectionReader(channel, HEADER_SIZE), precision);
+            int[] movieIds = reader.getInts(nrMovies);
+            int[] userIds = reader.getInts(nrUsers);
+            for (int m = 0; m < nrMovies; m++) {
+                if (movieIds[m] != ratings.getMovieId(m)) {
+                    throw new IOException(file + ": trained on other movies");
+                }
+            }
+            for (int u = 0; u < nrUsers; u++) {
+                if (userIds[u] != ratings.getUserId(u)) {
+                    throw new IOException(file + ": trained on other users");
+                }
+            }
+
+            ItemBasedCorrector itemBasedCorrector = null;
+            if (hasItemBasedCorrector) {
+                itemBasedCorrector = new ItemBasedCorrector(dm, reader.getDoubles(nrMovies));
+            }
+            GlobalBiasCorrector globalBiasCorrector = hasGlobalBiasCorrector ? new GlobalBiasCorrector(globalCorrection) : null;
+            return new ModelFile(reader.getAlgorithm(dm), itemBasedCorrector, globalBiasCorrector);
+        }
+    }
+
+    // Writes the sections of the algorithms (see the algorithms' save methods).
+    static class Writer {
+
+        private final Precision precision;
+        private final boolean includePredictionCache;
+        private SectionWriter sections;
+
+        private Writer(Precision precision, boolean includePredictionCache) {
+            this.precision = precision;
+            this.includePredictionCache = includePredictionCache;
+        }
+
+        boolean includesPredictionCache() {
+            return includePredictionCache;
+        }
+
+        void putAlgorithm(Algorithm algorithm) throws IOException {
+            if (algorithm instanceof SvdAlgorithm) {
+                putInts(SVD);
+                ((SvdAlgorithm) algorithm).save(this);
+            } else if (algorithm instanceof EmAlgorithm) {
+                putInts(EM);
+                ((EmAlgorithm) algorithm).save(this);
+            } else if (algorithm instanceof AlsAlgorithm) {
+                putInts(ALS);
+                ((AlsAlgorithm) algorithm).save(this);
+            } else if (algorithm instanceof ItemKnnAlgorithm) {
+                putInts(ITEM_KNN);
+                ((ItemKnnAlgorithm) algorithm).save(this);
+            } else if (algorithm instanceof BlendedAlgorithm) {
+                putInts(BLENDED);
+                ((BlendedAlgorithm) algorithm).save(this);
+            } else if (algorithm instanceof StackedAlgorithm) {
+                putInts(STACKED);
+                ((StackedAlgorithm) algorithm).save(this);
+            } else {
+                throw new IllegalArgumentException("Can't save a " + algorithm.getClass().getSimpleName());
+            }
+        }
+
+        void putInts(int... values) throws IOException {
+            sections.putInts(values);
+        }
+
+        void putFloats(float[] values) throws IOException {
+            sections.putFloats(values);
+        }
+
+        void putDoubles(double[] values) throws IOException {
+            sections.putDoubles(values);
+        }
+
+        // Writes the first rows * columns values of the (row-major) matrix, with the file's precision.
+        void putMatrix(double[] values, int rows, int columns) throws IOException {
+            int size = rows * columns;
+            switch (precision) {
+                case FLOAT64:
+                    sections.putDoubles(Arrays.copyOf(values, size));
+                    break;
+                case FLOAT32:
+                    for (int i = 0; i < size; i++) {
+                        sections.putFloat((float) values[i]);
+                    }
+                    sections.align();
+                    break;
+                case FLOAT16:
+                    for (int i = 0; i < size; i++) {
+                        sections.putShort(Float16.fromFloat((float) values[i]));
+                    }
+                    sections.align();
+                    break;
+                default:
+                    // The scales first, then the values: value = scale * byte.
+                    float[] scales = new float[rows];
+                    for (int r = 0; r < rows; r++) {
+                        double max = 0;
+                        for (int i = r * columns; i < (r + 1) * columns; i++) {
+                            max = Math.max(max, Math.abs(values[i]));
+                        }
+                        scales[r] = (float) (max / 127);
+                    }
+                    sections.putFloats(scales);
+                    for (int r = 0; r < rows; r++) {
+                        for (int i = r * columns; i < (r + 1) * columns; i++) {
+                            sections.putByte(scales[r] > 0 ? (int) Math.round(values[i] / scales[r]) : 0);
+                        }
+                    }
+                    sections.align();
+                    break;
+            }
+        }
+    }
+
+    // Reads the sections written by a Writer, in the same order.
+    static class Reader {
+
+        private final SectionReader sections;
+        private final Precision precision;
+
+        private Reader(SectionReader sections, Precision precision) {
+            this.sections = sections;
+            this.precision = precision;
+        }
+
+        Algorithm getAlgorithm(DataManager dm) throws IOException {
+            int type = getInts(1)[0];
+            switch (type) {
+                case SVD:
+                    return SvdAlgorithm.load(this, dm);
+                case EM:
+                    return EmAlgorithm.load(this, dm);
+                case BLENDED:
+                    return BlendedAlgorithm.load(this, dm);
+                case ALS:
+                    return AlsAlgorithm.load(this, dm);
+                case ITEM_KNN:
+                    return ItemKnnAlgorithm.load(this, dm);
+                case STACKED:
+                    return StackedAlgorithm.load(this, dm);
+                default:
+                    throw new IOException("Unknown algorithm type: " + type);
+            }
+        }
+
+        int[] getInts(int n) throws IOException {
+            return sections.getInts(n);
+        }
+
+        float[] getFloats(int n) throws IOException {
+            return sections.getFloats(n);
+        }
+
+        double[] getDoubles(int n) throws IOException {
+            return sections.getDoubles(n);
+        }
+
+        // Reads a matrix written by putMatrix into a new array of the provided length (at least rows * columns).
+        double[] getMatrix(int rows, int columns, int length) throws IOException {
+            int size = rows * columns;
+            double[] result = new double[length];
+            switch (precision) {
+                case FLOAT64:
+                    sections.map(8L * size).asDoubleBuffer().get(result, 0, size);
+                    break;
+                case FLOAT32:
+                    float[] floats = sections.getFloats(size);
+                    for (int i = 0; i < size; i++) {
+                        result[i] = floats[i];
+                    }
+                    break;
+                case FLOAT16:
+                    short[] halves = sections.getShorts(size);
+                    for (int i = 0; i < size; i++) {
+                        result[i] = Float16.toFloat(halves[i]);
+                    }
+                    break;
+                default:
+                    float[] scales = sections.getFloats(rows);
+                    byte[] bytes = sections.getBytes(size);
+                    for (int r = 0; r < rows; r++) {
+                        for (int i = r * columns; i < (r + 1) * columns; i++) {
+                            result[i] = scales[r] * bytes[i];
+                        }
+                    }
+                    break;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.silviuned.service.algorithms;
+
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.postProcessing.PredictionTruncator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A linear blend of any number of models: weights[0] + the sum of weights[k + 1] * the prediction of model k,
+ * truncated to a rating (the intercept can push it out of the range).
+ * The weights are meant to be fit over the models' stored predictions (see PredictionColumns.fitWeights), so that
+ * re-blending never calls the models again.
+ */
+public class StackedAlgorithm implements Algorithm {
+
+    private final List<Algorithm> models;
+    private final double[] weights;
+
+    public StackedAlgorithm(List<Algorithm> models, double[] weights) {
+        if (weights.length != models.size() + 1) {
+            throw new IllegalArgumentException("Expected " + (models.size() + 1) + " weights, got " + weights.length);
+        }
+        this.models = new ArrayList<>(models);
+        this.weights = weights.clone();
+    }
+
+    // Writes the weights and the models (see ModelFile).
+    void save(ModelFile.Writer writer) throws IOException {
+        writer.putInts(models.size());
+        writer.putDoubles(weights);
+        for (Algorithm model : models) {
+            writer.putAlgorithm(model);
+        }
+    }
+
+    static StackedAlgorithm load(ModelFile.Reader reader, DataManager dm) throws IOException {
+        int nrModels = reader.getInts(1)[0];
+        double[] weights = reader.getDoubles(nrModels + 1);
+        List<Algorithm> models = new ArrayList<>();
+        for (int k = 0; k < nrModels; k++) {
+            models.add(reader.getAlgorithm(dm));
+        }
+        return new StackedAlgorithm(models, weights);
+    }
+
+    @Override
+    public void train() {}
+
+    @Override
+    public double predictRating(int movieId, int userId) {
+        double result = weights[0];
+        for (int k = 0; k < models.size(); k++) {
+            result += weights[k + 1] * models.get(k).predictRating(movieId, userId);
+        }
+        return PredictionTruncator.truncate(result);
+    }
+
+    // Every model scores the whole batch, then the columns are blended (see blend).
+    @Override
+    public void predictRatings(int[] movieIds, int[] userIds, double[] out, int n) {
+        double[][] predictions = new double[models.size()][n];
+        for (int k = 0; k < models.size(); k++) {
+            models.get(k).predictRatings(movieIds, userIds, predictions[k], n);
+        }
+        blend(predictions, out, n);
+    }
+
+    @Override
+    public void predictMovieRatings(int movieId, double[] out) {
+        int n = getDataManager().getNrUsers();
+        double[][] predictions = new double[models.size()][n];
+        for (int k = 0; k < models.size(); k++) {
+            models.get(k).predictMovieRatings(movieId, predictions[k]);
+        }
+        blend(predictions, out, n);
+    }
+
+    @Override
+    public FoldedUser foldIn(int[] movieIds, int[] ratings) {
+        List<FoldedUser> users = new ArrayList<>();
+        for (Algorithm model : models) {
+            users.add(model.foldIn(movieIds, ratings));
+        }
+        return movieId -> {
+            double result = weights[0];
+            for (int k = 0; k < users.size(); k++) {
+                result += weights[k + 1] * users.get(k).predictRating(movieId);
+            }
+            return PredictionTruncator.truncate(result);
+        };
+    }
+
+    // Blends the first n predictions of every model (predictions[k] for model k) into out, truncated.
+    public void blend(double[][] predictions, double[] out, int n) {
+        for (int i = 0; i < n; i++) {
+            out[i] = weights[0];
+        }
+        for (int k = 0; k < predictions.length; k++) {
+            double weight = weights[k + 1];
+            double[] column = predictions[k];
+            for (int i = 0; i < n; i++) {
+                out[i] += weight * column[i];
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            out[i] = PredictionTruncator.truncate(out[i]);
+        }
+    }
+
+    public List<Algorithm> getModels() {
+        return models;
+    }
+
+    public double[] getWeights() {
+        return weights.clone();
+    }
+
+    @Override
+    public void update(int movieId, int userId) {
+        for (Algorithm model : models) {
+            model.update(movieId, userId);
+        }
+    }
+
+    @Override
+    public DataManager getDataManager() {
+        return models.get(0).getDataManager();
+    }
+
+    // The average of the models' differences, weighted by the absolute weights.
+    @Override
+    public double getNearIntegerRounderDiff() {
+        double sum = 0;
+        double totalWeight = 0;
+        for (int k = 0; k < models.size(); k++) {
+            sum += Math.abs(weights[k + 1]) * models.get(k).getNearIntegerRounderDiff();
+            totalWeight += Math.abs(weights[k + 1]);
+        }
+        return totalWeight > 0 ? sum / totalWeight : 0;
+    }
+}
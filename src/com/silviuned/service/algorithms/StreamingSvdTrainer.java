@@ -0,0 +1,301 @@
+package com.silviuned.service.algorithms;
+
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.data.RatingStream;
+import com.silviuned.service.postProcessing.PredictionTruncator;
+import com.silviuned.utils.MappedFloatArray;
+import com.silviuned.utils.SigmoidFunction;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Trains the SVD model out of core, for data sets that don't fit in memory: the ratings are streamed from disk
+ * (see {@link RatingStream}) and only the features and the baselines are kept on the heap. The cached predictions
+ * (one float per rating) live in a memory mapped side file, deleted on close.
+ *
+ * The training is the single-threaded one of {@link SvdAlgorithm} (same order, same updates, same convergence
+ * checks), so the features are the same as the ones of new SvdAlgorithm(dm, 1, config). Each epoch is one pass over the
+ * stream: the cache update of a trained feature is done by the first epoch of the next one. The result is saved
+ * as a model file, which loads as an SvdAlgorithm (see {@link ModelFile}).
+ */
+public class StreamingSvdTrainer implements Closeable {
+
+    private static final int INITIAL_FEATURE_CAPACITY = 32;
+
+    private static final boolean VERBOSE = false;
+
+    private final RatingStream stream;
+    private final SvdConfig config;
+    private final Path cacheFile;
+    private final MappedFloatArray predictionCache;
+    private final int nrMovies;
+    private final int nrUsers;
+
+    private double[] movieBaselines;
+    private double[] userBaselines;
+    private double globalMovieRatingAverage;
+    private double globalUserOffsetAverage;
+
+    // Feature-major, like the ones of SvdAlgorithm.
+    private double[] movieFeatures;
+    private double[] userFeatures;
+    private int currentFeature = -1;
+
+    // Creates the prediction cache file (4 bytes per rating).
+    public StreamingSvdTrainer(RatingStream stream, Path cacheFile) throws IOException {
+        this(stream, cacheFile, SvdConfig.DEFAULT);
+    }
+
+    public StreamingSvdTrainer(RatingStream stream, Path cacheFile, SvdConfig config) throws IOException {
+        this.stream = stream;
+        this.config = config;
+        this.cacheFile = cacheFile;
+        this.nrMovies = stream.getNrMovies();
+        this.nrUsers = stream.getNrUsers();
+        this.predictionCache = new MappedFloatArray(cacheFile, stream.getNrRatings());
+        this.movieFeatures = new double[INITIAL_FEATURE_CAPACITY * nrMovies];
+        this.userFeatures = new double[INITIAL_FEATURE_CAPACITY * nrUsers];
+    }
+
+    public void train() throws IOException {
+        long startTime = System.nanoTime();
+        initBaselines();
+
+        double previousOuterRmse = -1;
+        double currentRmse = -1;
+
+        while (previousOuterRmse == -1 || currentRmse - previousOuterRmse < config.getRmseDifference()) {
+            addFeature();
+            previousOuterRmse = currentRmse;
+
+            double previousInnerRmse = -1;
+            currentRmse = -1;
+
+            while (previousInnerRmse == -1 || currentRmse - previousInnerRmse < config.getRmseDifference()) {
+                previousInnerRmse = currentRmse;
+                // The very first pass measures the errors against the baseline prediction. The first pass of
+                // the other features adds the previous feature to the cache before reading it.
+                boolean fromBaseline = currentFeature == 0 && currentRmse == -1;
+                int cachedFeature = currentFeature > 0 && currentRmse == -1 ? currentFeature - 1 : -1;
+                currentRmse = trainEpoch(fromBaseline, cachedFeature) / stream.getNrRatings();
+            }
+
+            if (VERBOSE) {
+                System.out.println(currentFeature + ": " + currentRmse);
+            }
+        }
+
+        if (VERBOSE) {
+            System.out.println("Trained " + (currentFeature + 1) + " features out of core in "
+                    + String.format("%.2f", (System.nanoTime() - startTime) / 1e9) + " sec.");
+        }
+    }
+
+    // Computes the baselines like the DataManager does, in two passes: the movie averages, then the user offsets
+    // (the ratings of a user are summed in the same order as the user-major view would).
+    private void initBaselines() throws IOException {
+        int[] movieSums = new int[nrMovies];
+        int[] movie = new int[1];
+        stream.forEachChunk(chunk -> {
+            for (int k = 0, i = chunk.getFrom(); k < chunk.getSize(); k++, i++) {
+                while (i >= stream.getMovieEnd(movie[0])) {
+                    movie[0]++;
+                }
+                movieSums[movie[0]] += chunk.getRating(k);
+            }
+        });
+
+        double[] movieAverages = new double[nrMovies];
+        globalMovieRatingAverage = 0;
+        for (int m = 0; m < nrMovies; m++) {
+            movieAverages[m] = movieSums[m] * 1.0 / getMovieRatingCount(m);
+            globalMovieRatingAverage += movieAverages[m];
+        }
+        globalMovieRatingAverage /= nrMovies;
+
+        double[] userTotals = new double[nrUsers];
+        int[] userCounts = new int[nrUsers];
+        movie[0] = 0;
+        stream.forEachChunk(chunk -> {
+            for (int k = 0, i = chunk.getFrom(); k < chunk.getSize(); k++, i++) {
+                while (i >= stream.getMovieEnd(movie[0])) {
+                    movie[0]++;
+                }
+                int user = chunk.getUser(k);
+                userTotals[user] += chunk.getRating(k) - movieAverages[movie[0]];
+                userCounts[user]++;
+            }
+        });
+
+        double[] userAverages = new double[nrUsers];
+        globalUserOffsetAverage = 0;
+        for (int u = 0; u < nrUsers; u++) {
+            userAverages[u] = userTotals[u] / userCounts[u];
+            globalUserOffsetAverage += userAverages[u];
+        }
+        globalUserOffsetAverage /= nrUsers;
+
+        movieBaselines = new double[nrMovies];
+        for (int m = 0; m < nrMovies; m++) {
+            movieBaselines[m] = DataManager.getTrueAverage(movieAverages[m], getMovieRatingCount(m),
+                    globalMovieRatingAverage);
+        }
+        userBaselines = new double[nrUsers];
+        for (int u = 0; u < nrUsers; u++) {
+            userBaselines[u] = DataManager.getTrueAverage(userAverages[u], userCounts[u], globalUserOffsetAverage);
+        }
+    }
+
+    // One SGD pass over the stream for the current feature (see SvdAlgorithm.trainMovie), first adding the
+    // contribution of cachedFeature (if not -1) to the cached prediction of every rating.
+    // Returns the sum of the squared errors.
+    private double trainEpoch(boolean fromBaseline, int cachedFeature) throws IOException {
+        EpochPass pass = new EpochPass(fromBaseline, cachedFeature);
+        stream.forEachChunk(pass);
+        pass.endMovie();
+        return pass.squaredErrors;
+    }
+
+    // The state of trainEpoch, carried from one chunk to the next (a movie's ratings may span two chunks).
+    private class EpochPass implements RatingStream.ChunkConsumer {
+
+        private final boolean fromBaseline;
+        private final int cachedFeature;
+        private final boolean cachedNonLinear;
+        private final int userOffset = currentFeature * nrUsers;
+        private final boolean nonLinear = config.isNonLinear(currentFeature);
+        private final double learningRate = config.getLearningRate();
+        private final double regularizationCoef = config.getRegularizationCoef();
+
+        private int movie = -1;
+        private int movieEnd = 0;
+        private double movieFeature;
+        private double cachedMovieFeature;
+        private double squaredErrors;
+
+        private EpochPass(boolean fromBaseline, int cachedFeature) {
+            this.fromBaseline = fromBaseline;
+            this.cachedFeature = cachedFeature;
+            this.cachedNonLinear = config.isNonLinear(cachedFeature);
+        }
+
+        @Override
+        public void accept(RatingStream.Chunk chunk) {
+            for (int k = 0, i = chunk.getFrom(); k < chunk.getSize(); k++, i++) {
+                while (i >= movieEnd) {
+                    endMovie();
+                    movie++;
+                    movieEnd = stream.getMovieEnd(movie);
+                    movieFeature = movieFeatures[currentFeature * nrMovies + movie];
+                    if (cachedFeature >= 0) {
+                        cachedMovieFeature = movieFeatures[cachedFeature * nrMovies + movie];
+                    }
+                }
+                int user = chunk.getUser(k);
+
+                float cached = 0;
+                if (cachedFeature >= 0) {
+                    double temp = userFeatures[cachedFeature * nrUsers + user] * cachedMovieFeature;
+                    if (cachedNonLinear) {
+                        temp = SigmoidFunction.eval(temp);
+                    }
+                    cached = predictionCache.get(i);
+                    cached += temp;
+                    predictionCache.set(i, cached);
+                } else if (!fromBaseline) {
+                    cached = predictionCache.get(i);
+                }
+
+                double userFeature = userFeatures[userOffset + user];
+                double prediction;
+                if (fromBaseline) {
+                    prediction = PredictionTruncator.truncate(movieBaselines[movie] + userBaselines[user]);
+                } else {
+                    double temp = userFeature * movieFeature;
+                    if (nonLinear) {
+                        temp = SigmoidFunction.eval(temp);
+                    }
+                    prediction = PredictionTruncator.truncate(cached + temp);
+                }
+                double error = chunk.getRating(k) - prediction;
+                squaredErrors += error * error;
+
+                userFeatures[userOffset + user] = config.limit(userFeature + learningRate * (error * movieFeature - regularizationCoef * userFeature));
+                movieFeature = config.limit(movieFeature + learningRate * (error * userFeature - regularizationCoef * movieFeature));
+            }
+        }
+
+        // Stores the feature of the movie whose ratings were just processed.
+        private void endMovie() {
+            if (movie >= 0) {
+                movieFeatures[currentFeature * nrMovies + movie] = movieFeature;
+            }
+        }
+    }
+
+    // Starts training a new feature: initializes it everywhere.
+    private void addFeature() {
+        currentFeature++;
+        int capacity = userFeatures.length / Math.max(nrUsers, 1);
+        if (currentFeature >= capacity) {
+            capacity *= 2;
+            userFeatures = Arrays.copyOf(userFeatures, capacity * nrUsers);
+            movieFeatures = Arrays.copyOf(movieFeatures, capacity * nrMovies);
+        }
+        Arrays.fill(userFeatures, currentFeature * nrUsers, (currentFeature + 1) * nrUsers, config.getInitialFeatureValue());
+        Arrays.fill(movieFeatures, currentFeature * nrMovies, (currentFeature + 1) * nrMovies, config.getInitialFeatureValue());
+    }
+
+    private int getMovieRatingCount(int movie) {
+        return stream.getMovieEnd(movie) - stream.getMovieStart(movie);
+    }
+
+    // Predicts from the features (and falls back to the baseline for movies or users that weren't in the stream).
+    public double predictRating(int movieId, int userId) {
+        int movie = stream.getMovieOrdinal(movieId);
+        int user = stream.getUserOrdinal(userId);
+        if (movie == -1 || user == -1) {
+            double movieBaseline = movie != -1 ? movieBaselines[movie] : globalMovieRatingAverage;
+            double userBaseline = user != -1 ? userBaselines[user] : globalUserOffsetAverage;
+            return PredictionTruncator.truncate(movieBaseline + userBaseline);
+        }
+        double result = 0;
+        for (int f = 0; f <= currentFeature; f++) {
+            result += config.getFeatureContribution(f,
+                    movieFeatures[f * nrMovies + movie] * userFeatures[f * nrUsers + user]);
+        }
+        return PredictionTruncator.truncate(result);
+    }
+
+    public int getNrFeatures() {
+        return currentFeature + 1;
+    }
+
+    // Saves the trained model, without the prediction cache (the loaded SvdAlgorithm rebuilds it if trained further).
+    public void save(Path modelFile, ModelFile.Precision precision) throws IOException {
+        int[] movieIds = new int[nrMovies];
+        for (int m = 0; m < nrMovies; m++) {
+            movieIds[m] = stream.getMovieId(m);
+        }
+        int[] userIds = new int[nrUsers];
+        for (int u = 0; u < nrUsers; u++) {
+            userIds[u] = stream.getUserId(u);
+        }
+        // The last feature isn't in the cache file, but the features are final: it's "cached" as far as a loaded
+        // model is concerned, like it is once SvdAlgorithm.train returns.
+        ModelFile.saveSvd(modelFile, precision, movieIds, userIds, stream.getNrRatings(), writer ->
+                SvdAlgorithm.save(writer, config, currentFeature, currentFeature, movieBaselines, userBaselines,
+                        movieFeatures, userFeatures, nrMovies, nrUsers, null));
+    }
+
+    // Deletes the prediction cache file.
+    @Override
+    public void close() throws IOException {
+        predictionCache.close();
+        Files.deleteIfExists(cacheFile);
+    }
+}
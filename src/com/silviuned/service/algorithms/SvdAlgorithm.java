@@ -1,149 +1,474 @@
 package com.silviuned.service.algorithms;
 
-import com.silviuned.model.UserRating;
+import com.silviuned.model.RatingLog;
+import com.silviuned.model.RatingMatrix;
 import com.silviuned.service.data.DataManager;
-import com.silviuned.service.RmseEvaluator;
+import com.silviuned.service.data.RatingBlocks;
+import com.silviuned.service.ConvergenceMonitor;
+import com.silviuned.service.metrics.Metrics;
+import com.silviuned.service.metrics.TrainingRecorder;
 import com.silviuned.service.postProcessing.PredictionTruncator;
+import com.silviuned.utils.Cholesky;
+import com.silviuned.utils.SharedPools;
 import com.silviuned.utils.SigmoidFunction;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by Silviu on 5/15/2017.
  */
 public class SvdAlgorithm implements Algorithm {
 
-    private static final boolean USE_LIMIT = true;
-    private static final int FEATURE_LIMIT = 22;
+    private static final boolean USE_CACHE = true;
 
-    private static final boolean USE_SIGMOID = true;
-    private static final int NR_NON_LINEAR_FEATURES = 12;
+    // SGD steps applied to the factors of a rating added after training (see update).
+    private static final int NR_UPDATE_STEPS = 5;
+    private static final double UPDATE_LEARNING_RATE = 0.002;
 
-    private static final boolean USE_CACHE = true;
-    private static final double INITIAL_FEATURE_VALUE = 0.1;
-    private static final double LEARNING_RATE = 0.0004;
-    private static final double RMSE_DIFFERENCE = -0.00008;
-    private static final double REGULARIZATION_COEF = 0.02;
+    // Gauss-Newton iterations and ridge coefficient used to fold in a user who isn't in the training data.
+    private static final int NR_FOLD_IN_ITERATIONS = 5;
+    private static final double FOLD_IN_REGULARIZATION = 1;
 
     private static final double NEAR_INTEGER_ROUNDER_DIFF = 0.001;
 
+    private static final int INITIAL_FEATURE_CAPACITY = 32;
+
     private static final boolean VERBOSE = false;
 
+    // The lookups of the prediction cache by predictRating(s), counted when the metrics are on (see Metrics).
+    private static final LongAdder CACHE_HITS = Metrics.counter("svd.predictionCache.hits");
+    private static final LongAdder CACHE_MISSES = Metrics.counter("svd.predictionCache.misses");
+
     private DataManager dm;
 
-    private Map<Integer, Map<Integer, Double>> predictionCache = new HashMap<>();
+    private final SvdConfig config;
+
+    // Sum of the contributions of features [0, lastCachedFeature] for every training rating.
+    // Aligned with the movie-major view of the rating matrix.
+    private float[] predictionCache;
+
+    // The same, for the ratings added to the data manager (see DataManager.addRating), by index in its log.
+    // Rebuilt before training when the log grew, or when update changed the features.
+    private float[] addedPredictionCache;
+
+    // Feature-major factor matrices: feature f of user u is found at userFeatures[f * nrUsers + u].
+    private double[] userFeatures;
+    private double[] movieFeatures;
+    private final int nrUsers;
+    private final int nrMovies;
 
-    private Map<Integer, List<Double>> userFeatureVectors;
-    private Map<Integer, List<Double>> movieFeatureVectors;
+    // Baseline predictions (movie average and user offset), by ordinal.
+    private double[] movieBaselines;
+    private double[] userBaselines;
 
     private int currentFeature = -1;
     private int lastCachedFeature = -1;
 
+    // The errors measured after training the last two features, for the convergence check of train.
+    private double featureRmse = -1;
+    private double previousFeatureRmse = -1;
+
+    // Mean of the features of the training users, the prior of the folded in users (computed on demand).
+    private double[] meanUserFeatures;
+
+    private final int nrThreads;
+    private RatingBlocks blocks;
+
+    private ConvergenceMonitor.Mode convergenceMode = ConvergenceMonitor.Mode.TRAINING_ERROR;
+
     public SvdAlgorithm(DataManager dm) {
-        this.dm = dm;
+        this(dm, 1);
+    }
 
-        userFeatureVectors = new HashMap<>(dm.getNrUsers());
-        for (Integer userId : dm.getUserRatingsMap().keySet()) {
-            userFeatureVectors.put(userId, new ArrayList<>());
+    // With nrThreads > 1, every SGD pass is split in blocks trained concurrently (see RatingBlocks).
+    // The result is reproducible for a given nr of threads, and close to (but not equal to) the serial one.
+    public SvdAlgorithm(DataManager dm, int nrThreads) {
+        this(dm, nrThreads, SvdConfig.DEFAULT);
+    }
+
+    public SvdAlgorithm(DataManager dm, int nrThreads, SvdConfig config) {
+        this(dm, nrThreads, config, new double[INITIAL_FEATURE_CAPACITY * dm.getNrMovies()],
+                new double[INITIAL_FEATURE_CAPACITY * dm.getNrUsers()], new float[dm.getRatings().getNrRatings()]);
+    }
+
+    // The prediction cache may be null (see ensurePredictionCache).
+    private SvdAlgorithm(DataManager dm, int nrThreads, SvdConfig config, double[] movieFeatures, double[] userFeatures,
+                         float[] predictionCache) {
+        if (nrThreads < 1) {
+            throw new IllegalArgumentException("nrThreads must be positive: " + nrThreads);
         }
+        this.dm = dm;
+        this.config = config;
+        this.nrThreads = nrThreads;
+        this.nrUsers = dm.getNrUsers();
+        this.nrMovies = dm.getNrMovies();
+        this.movieFeatures = movieFeatures;
+        this.userFeatures = userFeatures;
+        this.predictionCache = predictionCache;
+    }
 
-        movieFeatureVectors = new HashMap<>(dm.getNrMovies());
-        for (Map.Entry<Integer, List<UserRating>> entry : dm.getData().entrySet()) {
-            movieFeatureVectors.put(entry.getKey(), new ArrayList<>());
+    // Writes the trained state: the counters, the config, the baselines, the features and (optionally) the
+    // prediction cache.
+    void save(ModelFile.Writer writer) throws IOException {
+        save(writer, config, currentFeature, lastCachedFeature, movieBaselines, userBaselines, movieFeatures, userFeatures,
+                nrMovies, nrUsers, writer.includesPredictionCache() ? predictionCache : null);
+    }
 
-            Map<Integer, Double> movieCache = new HashMap<>();
-            for (UserRating userRating : entry.getValue()) {
-                movieCache.put(userRating.getUserId(), 0.0);
-            }
-            predictionCache.put(entry.getKey(), movieCache);
+    // Also used for the models trained out of core (see StreamingSvdTrainer). The baselines and the cache may be null.
+    static void save(ModelFile.Writer writer, SvdConfig config, int currentFeature, int lastCachedFeature, double[] movieBaselines,
+                     double[] userBaselines, double[] movieFeatures, double[] userFeatures, int nrMovies, int nrUsers,
+                     float[] predictionCache) throws IOException {
+        int nrFeatures = currentFeature + 1;
+        boolean hasBaselines = movieBaselines != null;
+        boolean hasCache = predictionCache != null;
+        writer.putInts(currentFeature, lastCachedFeature, hasBaselines ? 1 : 0, hasCache ? 1 : 0);
+        config.save(writer);
+        if (hasBaselines) {
+            writer.putDoubles(movieBaselines);
+            writer.putDoubles(userBaselines);
         }
+        writer.putMatrix(movieFeatures, nrFeatures, nrMovies);
+        writer.putMatrix(userFeatures, nrFeatures, nrUsers);
+        if (hasCache) {
+            writer.putFloats(predictionCache);
+        }
+    }
+
+    // Reads a model written by save. The loaded algorithm trains on a single thread.
+    static SvdAlgorithm load(ModelFile.Reader reader, DataManager dm) throws IOException {
+        int[] state = reader.getInts(4);
+        SvdConfig config = SvdConfig.load(reader);
+        int nrFeatures = state[0] + 1;
+        double[] movieBaselines = null;
+        double[] userBaselines = null;
+        if (state[2] != 0) {
+            movieBaselines = reader.getDoubles(dm.getNrMovies());
+            userBaselines = reader.getDoubles(dm.getNrUsers());
+        }
+        int capacity = Math.max(nrFeatures, INITIAL_FEATURE_CAPACITY);
+        double[] movieFeatures = reader.getMatrix(nrFeatures, dm.getNrMovies(), capacity * dm.getNrMovies());
+        double[] userFeatures = reader.getMatrix(nrFeatures, dm.getNrUsers(), capacity * dm.getNrUsers());
+        float[] predictionCache = state[3] != 0 ? reader.getFloats(dm.getRatings().getNrRatings()) : null;
+
+        SvdAlgorithm result = new SvdAlgorithm(dm, 1, config, movieFeatures, userFeatures, predictionCache);
+        result.currentFeature = state[0];
+        result.lastCachedFeature = state[1];
+        result.movieBaselines = movieBaselines;
+        result.userBaselines = userBaselines;
+        return result;
     }
 
     @Override
     public void train() {
-        double previousOuterRmse = -1;
-        double currentRmse = -1;
-
-        while (previousOuterRmse == -1 || currentRmse - previousOuterRmse < RMSE_DIFFERENCE) {
-            currentFeature++;
-            previousOuterRmse = currentRmse;
+        featureRmse = -1;
+        previousFeatureRmse = -1;
+        trainFeatures(Integer.MAX_VALUE);
+    }
 
-            // Initialize the new feature everywhere.
-            for (List<Double> list : userFeatureVectors.values()) {
-                list.add(INITIAL_FEATURE_VALUE);
-            }
-            for (List<Double> list : movieFeatureVectors.values()) {
-                list.add(INITIAL_FEATURE_VALUE);
-            }
+    // Trains at most maxNewFeatures more features, stopping earlier when the last feature didn't lower the error
+    // enough (see SvdConfig.rmseDifference). Returns true when training converged. Can be called again to go on
+    // training where the previous call stopped (see SweepRunner). Like EM's and ALS's, the training covers the
+    // ratings added to the data manager (after the matrix's, in every pass).
+    public boolean trainFeatures(int maxNewFeatures) {
+        RatingMatrix ratings = dm.getRatings();
+        initBaselines(ratings);
+        ensurePredictionCache();
+        meanUserFeatures = null;
+        ConvergenceMonitor monitor = new ConvergenceMonitor(convergenceMode, ratings);
+        int nrRatings = ratings.getNrRatings() + dm.getAddedRatings().size();
+        TrainingRecorder recorder = new TrainingRecorder("svd", nrRatings);
+
+        ExecutorService executor = getExecutor();
+        RatingBlocks blocks = executor != null ? getBlocks() : null;
+
+        for (int n = 0; n < maxNewFeatures && !isConverged(); n++) {
+            addFeature();
+            previousFeatureRmse = featureRmse;
+            recorder.beginFeature();
 
             double previousInnerRmse = -1;
-            currentRmse = -1;
+            double currentRmse = -1;
+            int nrEpochs = 0;
 
-            while (previousInnerRmse == -1 || currentRmse - previousInnerRmse < RMSE_DIFFERENCE) {
+            while (previousInnerRmse == -1 || currentRmse - previousInnerRmse < config.getRmseDifference()) {
                 previousInnerRmse = currentRmse;
-                for (Map.Entry<Integer, List<UserRating>> entry : dm.getData().entrySet()) {
-                    int movieId = entry.getKey();
-                    for (UserRating userRating : entry.getValue()) {
-                        int userId = userRating.getUserId();
-                        double prediction;
-                        if (currentFeature == 0 && currentRmse == -1) {
-                            prediction = predictRatingInit(movieId, userId);
-
-                        } else {
-                            prediction = predictRating(movieId, userId);
-                        }
-
-                        double error = userRating.getRating() - prediction;
-
-                        double userFeatureOld = userFeatureVectors.get(userId).get(currentFeature);
-                        double movieFeatureOld = movieFeatureVectors.get(movieId).get(currentFeature);
-                        double userDelta = LEARNING_RATE * (error * movieFeatureOld - REGULARIZATION_COEF * userFeatureOld);
-                        double movieDelta = LEARNING_RATE * (error * userFeatureOld - REGULARIZATION_COEF * movieFeatureOld);
-
-                        double userFeatureNew = userFeatureOld + userDelta;
-                        double movieFeatureNew = movieFeatureOld + movieDelta;
-                        userFeatureNew = limit(userFeatureNew);
-                        movieFeatureNew = limit(movieFeatureNew);
-                        userFeatureVectors.get(userId).set(currentFeature, userFeatureNew);
-                        movieFeatureVectors.get(movieId).set(currentFeature, movieFeatureNew);
-                    }
+                recorder.beginEpoch();
+                // The very first pass measures the errors against the baseline prediction.
+                boolean fromBaseline = currentFeature == 0 && currentRmse == -1;
+                double squaredErrors;
+                if (executor != null) {
+                    squaredErrors = trainEpoch(blocks, executor, fromBaseline);
+                } else {
+                    squaredErrors = trainEpoch(ratings, fromBaseline);
                 }
-                currentRmse = RmseEvaluator.eval(this, dm.getData());
+                squaredErrors += trainAddedRatings(fromBaseline);
+                monitor.add(squaredErrors, nrRatings);
+                currentRmse = monitor.endEpoch(this);
+                recorder.endEpoch(currentFeature, nrEpochs++, currentRmse);
             }
 
-            updateCache();
+            featureRmse = currentRmse;
+            updateCache(blocks, executor);
+            recorder.endFeature(currentFeature, nrEpochs, currentRmse);
             if (VERBOSE) {
                 System.out.println(currentFeature + ": " + currentRmse);
             }
         }
+        return isConverged();
+    }
+
+    // Whether the last trained feature didn't lower the error enough.
+    private boolean isConverged() {
+        return previousFeatureRmse != -1 && !(featureRmse - previousFeatureRmse < config.getRmseDifference());
+    }
+
+    // Runs a single SGD pass for the current feature (adding the first feature if there is none yet), without
+    // any convergence check. Returns the mean squared error measured during the pass. Meant for benchmarks.
+    public double runEpoch() {
+        RatingMatrix ratings = dm.getRatings();
+        ensurePredictionCache();
+        meanUserFeatures = null;
+        boolean fromBaseline = false;
+        if (currentFeature == -1) {
+            initBaselines(ratings);
+            addFeature();
+            fromBaseline = true;
+        }
+
+        ExecutorService executor = getExecutor();
+        double squaredErrors;
+        if (executor != null) {
+            squaredErrors = trainEpoch(getBlocks(), executor, fromBaseline);
+        } else {
+            squaredErrors = trainEpoch(ratings, fromBaseline);
+        }
+        squaredErrors += trainAddedRatings(fromBaseline);
+        return squaredErrors / (ratings.getNrRatings() + dm.getAddedRatings().size());
+    }
+
+    // Prepares a model trained block by block by DistributedSvdTrainer: the baselines, and the prediction cache if
+    // the model trains blocks (the coordinator's model only holds the features).
+    void initTraining(boolean withPredictionCache) {
+        initBaselines(dm.getRatings());
+        if (withPredictionCache) {
+            ensurePredictionCache();
+        } else {
+            // Dropped rather than left empty: predictRating would read it once a feature is marked as cached.
+            predictionCache = null;
+            addedPredictionCache = null;
+        }
+        meanUserFeatures = null;
+    }
+
+    // Marks the current feature as trained, adding it to the cached predictions of movies [movieFrom, movieTo).
+    void endFeature(int movieFrom, int movieTo) {
+        if (predictionCache != null) {
+            updateCache(currentFeature, movieFrom, movieTo);
+        }
+        lastCachedFeature = currentFeature;
+    }
+
+    // Starts training a new feature: initializes it everywhere.
+    void addFeature() {
+        currentFeature++;
+        ensureFeatureCapacity(currentFeature + 1);
+        Arrays.fill(userFeatures, currentFeature * nrUsers, (currentFeature + 1) * nrUsers, config.getInitialFeatureValue());
+        Arrays.fill(movieFeatures, currentFeature * nrMovies, (currentFeature + 1) * nrMovies, config.getInitialFeatureValue());
+    }
+
+    // Returns the pool used for multi-threaded training (shared by all the epochs and models, see SharedPools), or
+    // null when training on a single thread.
+    private ExecutorService getExecutor() {
+        return nrThreads > 1 ? SharedPools.get(nrThreads) : null;
+    }
+
+    // Returns the blocks used for multi-threaded training (computed once).
+    private RatingBlocks getBlocks() {
+        if (blocks == null) {
+            blocks = new RatingBlocks(dm.getRatings(), nrThreads);
+        }
+        return blocks;
+    }
+
+    // One SGD pass over all ratings for the current feature, in the movie-major order.
+    // Returns the sum of the squared errors.
+    private double trainEpoch(RatingMatrix ratings, boolean fromBaseline) {
+        double squaredErrors = 0;
+        for (int m = 0; m < nrMovies; m++) {
+            squaredErrors += trainMovie(ratings, null, m, ratings.getMovieStart(m), ratings.getMovieEnd(m), fromBaseline);
+        }
+        return squaredErrors;
+    }
+
+    // One SGD pass over all ratings for the current feature, on nrThreads threads. The pass is split in
+    // nrThreads sub-epochs; in sub-epoch s, thread t trains block (t, (t + s) % nrThreads). The blocks of a
+    // sub-epoch share no movie and no user, so the result only depends on the nr of threads.
+    // Returns the sum of the squared errors.
+    private double trainEpoch(RatingBlocks blocks, ExecutorService executor, boolean fromBaseline) {
+        double[] squaredErrors = new double[nrThreads];
+        for (int s = 0; s < nrThreads; s++) {
+            List<Callable<Void>> tasks = new ArrayList<>(nrThreads);
+            for (int t = 0; t < nrThreads; t++) {
+                int movieBlock = t;
+                int userBlock = (t + s) % nrThreads;
+                tasks.add(() -> {
+                    squaredErrors[movieBlock] += trainBlock(blocks, movieBlock, userBlock, fromBaseline);
+                    return null;
+                });
+            }
+            invokeAll(executor, tasks);
+        }
+
+        double result = 0;
+        for (double sum : squaredErrors) {
+            result += sum;
+        }
+        return result;
+    }
+
+    // One SGD pass over the ratings of a block, for the current feature. Returns the sum of the squared errors.
+    double trainBlock(RatingBlocks blocks, int movieBlock, int userBlock, boolean fromBaseline) {
+        RatingMatrix ratings = dm.getRatings();
+        double result = 0;
+        for (int r = blocks.getFirstRun(movieBlock, userBlock); r < blocks.getEndRun(movieBlock, userBlock); r++) {
+            result += trainMovie(ratings, blocks, blocks.getRunMovie(r), blocks.getRunStart(r), blocks.getRunStart(r + 1), fromBaseline);
+        }
+        return result;
+    }
+
+    // Applies one SGD step for each rating of movie m found at positions [from, to). The positions are movie-major
+    // indexes, or block positions if blocks isn't null. The errors are measured before each step (with the
+    // baseline prediction on the very first pass). Returns the sum of the squared errors.
+    private double trainMovie(RatingMatrix ratings, RatingBlocks blocks, int m, int from, int to, boolean fromBaseline) {
+        int userOffset = currentFeature * nrUsers;
+        int movieIndex = currentFeature * nrMovies + m;
+        boolean nonLinear = config.isNonLinear(currentFeature);
+        double learningRate = config.getLearningRate();
+        double regularizationCoef = config.getRegularizationCoef();
+        double movieBaseline = movieBaselines[m];
+        double movieFeature = movieFeatures[movieIndex];
+        double squaredErrors = 0;
+
+        for (int k = from; k < to; k++) {
+            int i = blocks != null ? blocks.getIndex(k) : k;
+            int user = ratings.getUser(i);
+            double userFeature = userFeatures[userOffset + user];
+
+            double prediction;
+            if (fromBaseline) {
+                prediction = PredictionTruncator.truncate(movieBaseline + userBaselines[user]);
+            } else {
+                double temp = userFeature * movieFeature;
+                if (nonLinear) {
+                    temp = SigmoidFunction.eval(temp);
+                }
+                prediction = PredictionTruncator.truncate(predictionCache[i] + temp);
+            }
+            double error = ratings.getRating(i) - prediction;
+            squaredErrors += error * error;
+
+            userFeatures[userOffset + user] = config.limit(userFeature + learningRate * (error * movieFeature - regularizationCoef * userFeature));
+            movieFeature = config.limit(movieFeature + learningRate * (error * userFeature - regularizationCoef * movieFeature));
+        }
+
+        movieFeatures[movieIndex] = movieFeature;
+        return squaredErrors;
+    }
+
+    // Applies one SGD step for each added rating (see DataManager.addRating), in the order they were added, on the
+    // caller's thread. It follows the pass over the rating matrix, like trainMovie does. Returns the sum of the
+    // squared errors.
+    private double trainAddedRatings(boolean fromBaseline) {
+        RatingLog addedRatings = dm.getAddedRatings();
+        int userOffset = currentFeature * nrUsers;
+        int movieOffset = currentFeature * nrMovies;
+        boolean nonLinear = config.isNonLinear(currentFeature);
+        double learningRate = config.getLearningRate();
+        double regularizationCoef = config.getRegularizationCoef();
+        double squaredErrors = 0;
+
+        for (int i = 0; i < addedRatings.size(); i++) {
+            int movie = addedRatings.getMovie(i);
+            int user = addedRatings.getUser(i);
+            double movieFeature = movieFeatures[movieOffset + movie];
+            double userFeature = userFeatures[userOffset + user];
+
+            double prediction;
+            if (fromBaseline) {
+                prediction = PredictionTruncator.truncate(movieBaselines[movie] + userBaselines[user]);
+            } else {
+                double temp = userFeature * movieFeature;
+                if (nonLinear) {
+                    temp = SigmoidFunction.eval(temp);
+                }
+                prediction = PredictionTruncator.truncate(addedPredictionCache[i] + temp);
+            }
+            double error = addedRatings.getRating(i) - prediction;
+            squaredErrors += error * error;
+
+            userFeatures[userOffset + user] = config.limit(userFeature + learningRate * (error * movieFeature - regularizationCoef * userFeature));
+            movieFeatures[movieOffset + movie] = config.limit(movieFeature + learningRate * (error * userFeature - regularizationCoef * movieFeature));
+        }
+        return squaredErrors;
+    }
+
+    // Caches the baseline predictions (used by the first pass) by movie and user ordinal.
+    private void initBaselines(RatingMatrix ratings) {
+        movieBaselines = new double[nrMovies];
+        for (int m = 0; m < nrMovies; m++) {
+            movieBaselines[m] = dm.getTrueAverageMovieRating(ratings.getMovieId(m));
+        }
+        userBaselines = new double[nrUsers];
+        for (int u = 0; u < nrUsers; u++) {
+            userBaselines[u] = dm.getTrueAverageUserOffset(ratings.getUserId(u));
+        }
+    }
+
+    // Runs the tasks and waits for all of them to finish.
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Selects how the error is measured after each pass. By default, the errors of the pass itself are used.
+    public void setConvergenceMode(ConvergenceMonitor.Mode convergenceMode) {
+        this.convergenceMode = convergenceMode;
     }
 
     @Override
     public double predictRating(int movieId, int userId) {
+        RatingMatrix ratings = dm.getRatings();
+        int movie = ratings.getMovieOrdinal(movieId);
+        int user = ratings.getUserOrdinal(userId);
+
         double result;
-        if (dm.existsMovie(movieId) && dm.existsUser(userId)) {
-            if (USE_CACHE) {
-                Double cachedPrediction = predictionCache.get(movieId).get(userId);
-                if (cachedPrediction != null) {
-                    if (currentFeature > lastCachedFeature) {
-                        double temp = userFeatureVectors.get(userId).get(currentFeature) * movieFeatureVectors
-                                .get(movieId).get(currentFeature);
-                        if (USE_SIGMOID && currentFeature <= NR_NON_LINEAR_FEATURES) {
-                            temp = SigmoidFunction.eval(temp);
-                        }
-                        result = cachedPrediction + temp;
-                    } else {
-                        result = cachedPrediction;
-                    }
-                } else {
-                    // This combination of user <-> movie was not found in train data.
-                    result = predictRatingWithoutCache(movieId, userId);
-                }
+        if (movie != -1 && user != -1) {
+            int index = useCache() ? ratings.findRating(movie, user) : -1;
+            if (index != -1) {
+                result = predictCachedRating(index, movie, user);
             } else {
-                result = predictRatingWithoutCache(movieId, userId);
+                // This combination of user <-> movie was not found in train data (or USE_CACHE is false).
+                result = predictRatingWithoutCache(movie, user);
+            }
+            if (Metrics.ENABLED) {
+                (index != -1 ? CACHE_HITS : CACHE_MISSES).increment();
             }
         } else {
             result = dm.getTrueAverageMovieRating(movieId)
@@ -155,17 +480,127 @@ public class SvdAlgorithm implements Algorithm {
         return result;
     }
 
-    // Predicts the rating without using the cache.
-    // Usually called when USE_CACHE is false or when the <movie, user> tuple was not found in the cache.
-    private double predictRatingWithoutCache(int movieId, int userId) {
-        List<Double> movieFeatures = movieFeatureVectors.get(movieId);
-        List<Double> userFeatures = userFeatureVectors.get(userId);
+    // The ordinals are resolved once per pair. The pairs rated in the training data come from the cache, and the
+    // other ones are computed one feature at a time for the whole batch.
+    @Override
+    public void predictRatings(int[] movieIds, int[] userIds, double[] out, int n) {
+        RatingMatrix ratings = dm.getRatings();
+        int[] movies = new int[n];
+        int[] users = new int[n];
+        int[] positions = new int[n];
+        int nrComputed = 0;
+        int nrCached = 0;
+
+        for (int k = 0; k < n; k++) {
+            int movie = ratings.getMovieOrdinal(movieIds[k]);
+            int user = ratings.getUserOrdinal(userIds[k]);
+            if (movie == -1 || user == -1) {
+                out[k] = PredictionTruncator.truncate(dm.getTrueAverageMovieRating(movieIds[k])
+                        + dm.getTrueAverageUserOffset(userIds[k]));
+                continue;
+            }
+
+            int index = useCache() ? ratings.findRating(movie, user) : -1;
+            if (index != -1) {
+                out[k] = PredictionTruncator.truncate(predictCachedRating(index, movie, user));
+                nrCached++;
+            } else {
+                movies[nrComputed] = movie;
+                users[nrComputed] = user;
+                positions[nrComputed] = k;
+                nrComputed++;
+            }
+        }
+        if (Metrics.ENABLED) {
+            CACHE_HITS.add(nrCached);
+            CACHE_MISSES.add(nrComputed);
+        }
+
+        double[] sums = new double[nrComputed];
+        for (int f = 0; f <= currentFeature; f++) {
+            int movieOffset = f * nrMovies;
+            int userOffset = f * nrUsers;
+            if (config.isNonLinear(f)) {
+                for (int k = 0; k < nrComputed; k++) {
+                    sums[k] += SigmoidFunction.eval(movieFeatures[movieOffset + movies[k]] * userFeatures[userOffset + users[k]]);
+                }
+            } else {
+                for (int k = 0; k < nrComputed; k++) {
+                    sums[k] += movieFeatures[movieOffset + movies[k]] * userFeatures[userOffset + users[k]];
+                }
+            }
+        }
+        for (int k = 0; k < nrComputed; k++) {
+            out[positions[k]] = PredictionTruncator.truncate(sums[k]);
+        }
+    }
+
+    // The features are accumulated for all the users at once, reading the contiguous user factors of each feature.
+    // The users who rated the movie get the cached prediction, as with predictRating.
+    @Override
+    public void predictMovieRatings(int movieId, double[] out) {
+        RatingMatrix ratings = dm.getRatings();
+        int movie = ratings.getMovieOrdinal(movieId);
+        if (movie == -1) {
+            double movieAverage = dm.getTrueAverageMovieRating(movieId);
+            for (int u = 0; u < nrUsers; u++) {
+                out[u] = PredictionTruncator.truncate(movieAverage + dm.getTrueAverageUserOffset(ratings.getUserId(u)));
+            }
+            return;
+        }
+
+        Arrays.fill(out, 0, nrUsers, 0);
+        for (int f = 0; f <= currentFeature; f++) {
+            double movieFeature = movieFeatures[f * nrMovies + movie];
+            int userOffset = f * nrUsers;
+            if (config.isNonLinear(f)) {
+                for (int u = 0; u < nrUsers; u++) {
+                    out[u] += SigmoidFunction.eval(movieFeature * userFeatures[userOffset + u]);
+                }
+            } else {
+                for (int u = 0; u < nrUsers; u++) {
+                    out[u] += movieFeature * userFeatures[userOffset + u];
+                }
+            }
+        }
+        for (int u = 0; u < nrUsers; u++) {
+            out[u] = PredictionTruncator.truncate(out[u]);
+        }
+
+        if (useCache()) {
+            for (int i = ratings.getMovieStart(movie); i < ratings.getMovieEnd(movie); i++) {
+                int user = ratings.getUser(i);
+                out[user] = PredictionTruncator.truncate(predictCachedRating(i, movie, user));
+            }
+        }
+    }
 
+    // The cache isn't used when it's disabled, or when the model was loaded without it.
+    private boolean useCache() {
+        return USE_CACHE && predictionCache != null;
+    }
+
+    // Predicts a training rating (movie-major index) from the cache, adding the current feature if it isn't cached yet.
+    private double predictCachedRating(int index, int movie, int user) {
+        double result = predictionCache[index];
+        if (currentFeature > lastCachedFeature) {
+            double temp = userFeatures[currentFeature * nrUsers + user] * movieFeatures[currentFeature * nrMovies + movie];
+            if (config.isNonLinear(currentFeature)) {
+                temp = SigmoidFunction.eval(temp);
+            }
+            result += temp;
+        }
+        return result;
+    }
+
+    // Predicts the rating without using the cache (by movie and user ordinal).
+    // Usually called when USE_CACHE is false or when the <movie, user> tuple was not found in the cache.
+    private double predictRatingWithoutCache(int movie, int user) {
         double result = 0;
         for (int i = 0; i <= currentFeature; i++) {
-            double temp = movieFeatures.get(i) * userFeatures.get(i);
+            double temp = movieFeatures[i * nrMovies + movie] * userFeatures[i * nrUsers + user];
 
-            if (USE_SIGMOID && i <= NR_NON_LINEAR_FEATURES) {
+            if (config.isNonLinear(i)) {
                 result += SigmoidFunction.eval(temp);
             } else {
                 result += temp;
@@ -177,45 +612,269 @@ public class SvdAlgorithm implements Algorithm {
         return result;
     }
 
-    // Returns the initial prediction for the <movie, user> tuple.
-    private double predictRatingInit(int movieId, int userId)
-    {
-        double result = dm.getTrueAverageMovieRating(movieId) + dm.getTrueAverageUserOffset(userId);
-        result = PredictionTruncator.truncate(result);
+    // A few SGD steps on the factors of the movie and of the user, over the added rating and all the features at
+    // once. The baselines of both are refreshed, and so are the cached predictions of their training ratings:
+    // O(features * (ratings of the movie + ratings of the user)). Not thread safe.
+    @Override
+    public void update(int movieId, int userId) {
+        RatingMatrix ratings = dm.getRatings();
+        int movie = ratings.getMovieOrdinal(movieId);
+        int user = ratings.getUserOrdinal(userId);
+        if (movie == -1 || user == -1 || currentFeature == -1) {
+            return;
+        }
+        int rating = dm.getRating(userId, movieId);
+
+        if (movieBaselines != null) {
+            movieBaselines[movie] = dm.getTrueAverageMovieRating(movieId);
+            userBaselines[user] = dm.getTrueAverageUserOffset(userId);
+        }
+
+        for (int s = 0; s < NR_UPDATE_STEPS; s++) {
+            double error = rating - predictRatingWithoutCache(movie, user);
+            for (int f = 0; f <= currentFeature; f++) {
+                int userIndex = f * nrUsers + user;
+                int movieIndex = f * nrMovies + movie;
+                double userFeature = userFeatures[userIndex];
+                double movieFeature = movieFeatures[movieIndex];
+                userFeatures[userIndex] = config.limit(userFeature + UPDATE_LEARNING_RATE * (error * movieFeature - config.getRegularizationCoef() * userFeature));
+                movieFeatures[movieIndex] = config.limit(movieFeature + UPDATE_LEARNING_RATE * (error * userFeature - config.getRegularizationCoef() * movieFeature));
+            }
+        }
+
+        if (predictionCache != null) {
+            for (int i = ratings.getMovieStart(movie); i < ratings.getMovieEnd(movie); i++) {
+                predictionCache[i] = computeCachedPrediction(movie, ratings.getUser(i));
+            }
+            for (int j = ratings.getUserStart(user); j < ratings.getUserEnd(user); j++) {
+                predictionCache[ratings.getUserRatingIndex(j)] = computeCachedPrediction(ratings.getUserMovie(j), user);
+            }
+        }
+        addedPredictionCache = null;
+    }
+
+    // The cached prediction of a (movie, user) pair: features [0, lastCachedFeature], summed like updateCache does.
+    private float computeCachedPrediction(int movie, int user) {
+        float result = 0;
+        for (int f = 0; f <= lastCachedFeature; f++) {
+            double temp = userFeatures[f * nrUsers + user] * movieFeatures[f * nrMovies + movie];
+            if (config.isNonLinear(f)) {
+                temp = SigmoidFunction.eval(temp);
+            }
+            result += temp;
+        }
         return result;
     }
 
+    // Gauss-Newton iterations of a ridge regression of the user's features on the frozen movie features. The
+    // features start at the mean features of the training users, and are regularized towards them. Each iteration
+    // solves a (nr of features)^2 system: O(ratings * features^2). The ratings of unknown movies are ignored.
+    @Override
+    public FoldedUser foldIn(int[] movieIds, int[] ratings) {
+        RatingMatrix matrix = dm.getRatings();
+        int nrFeatures = currentFeature + 1;
+        int[] movies = new int[movieIds.length];
+        int[] values = new int[movieIds.length];
+        int n = 0;
+        for (int k = 0; k < movieIds.length; k++) {
+            int movie = matrix.getMovieOrdinal(movieIds[k]);
+            if (movie != -1) {
+                movies[n] = movie;
+                values[n] = ratings[k];
+                n++;
+            }
+        }
+        FoldedUser baseline = Algorithm.super.foldIn(movieIds, ratings);
+        if (n == 0 || nrFeatures == 0) {
+            return baseline;
+        }
+
+        double[] prior = getMeanUserFeatures();
+        double[] features = Arrays.copyOf(prior, nrFeatures);
+        double[] gradient = new double[nrFeatures];
+        for (int iteration = 0; iteration < NR_FOLD_IN_ITERATIONS; iteration++) {
+            // Normal equations of the linearized problem (lower triangle only): (J^T J + lambda I) step = J^T e - lambda (features - prior).
+            double[] a = new double[nrFeatures * nrFeatures];
+            double[] b = new double[nrFeatures];
+            for (int f = 0; f < nrFeatures; f++) {
+                a[f * nrFeatures + f] = FOLD_IN_REGULARIZATION;
+                b[f] = FOLD_IN_REGULARIZATION * (prior[f] - features[f]);
+            }
+            for (int k = 0; k < n; k++) {
+                double prediction = 0;
+                for (int f = 0; f < nrFeatures; f++) {
+                    double movieFeature = movieFeatures[f * nrMovies + movies[k]];
+                    if (config.isNonLinear(f)) {
+                        double temp = SigmoidFunction.eval(movieFeature * features[f]);
+                        prediction += temp;
+                        gradient[f] = (0.25 - temp * temp) * movieFeature;
+                    } else {
+                        prediction += movieFeature * features[f];
+                        gradient[f] = movieFeature;
+                    }
+                }
+                double error = values[k] - prediction;
+                for (int f = 0; f < nrFeatures; f++) {
+                    b[f] += gradient[f] * error;
+                    for (int g = 0; g <= f; g++) {
+                        a[f * nrFeatures + g] += gradient[f] * gradient[g];
+                    }
+                }
+            }
+            if (!Cholesky.solve(a, b, nrFeatures)) {
+                break;
+            }
+            for (int f = 0; f < nrFeatures; f++) {
+                features[f] = config.limit(features[f] + b[f]);
+            }
+        }
+
+        return movieId -> {
+            int movie = matrix.getMovieOrdinal(movieId);
+            return movie != -1 ? predictFoldedRating(movie, features) : baseline.predictRating(movieId);
+        };
+    }
+
+    private double predictFoldedRating(int movie, double[] features) {
+        double result = 0;
+        for (int f = 0; f < features.length; f++) {
+            double temp = movieFeatures[f * nrMovies + movie] * features[f];
+            if (config.isNonLinear(f)) {
+                temp = SigmoidFunction.eval(temp);
+            }
+            result += temp;
+        }
+        return PredictionTruncator.truncate(result);
+    }
+
+    private synchronized double[] getMeanUserFeatures() {
+        if (meanUserFeatures == null || meanUserFeatures.length != currentFeature + 1) {
+            double[] result = new double[currentFeature + 1];
+            for (int f = 0; f <= currentFeature; f++) {
+                double sum = 0;
+                for (int u = f * nrUsers; u < (f + 1) * nrUsers; u++) {
+                    sum += userFeatures[u];
+                }
+                result[f] = sum / nrUsers;
+            }
+            meanUserFeatures = result;
+        }
+        return meanUserFeatures;
+    }
+
+    // Nr of features trained so far (including the one being trained).
+    public int getNrFeatures() {
+        return currentFeature + 1;
+    }
+
+    public double getMovieFeature(int feature, int movie) {
+        return movieFeatures[feature * nrMovies + movie];
+    }
+
+    public double getUserFeature(int feature, int user) {
+        return userFeatures[feature * nrUsers + user];
+    }
+
+    void setMovieFeature(int feature, int movie, double value) {
+        movieFeatures[feature * nrMovies + movie] = value;
+    }
+
+    void setUserFeature(int feature, int user, double value) {
+        userFeatures[feature * nrUsers + user] = value;
+    }
+
+    // Contribution of a feature to a prediction, given the product of the movie and user feature values.
+    // It's non decreasing in the product.
+    public double getFeatureContribution(int feature, double product) {
+        return config.getFeatureContribution(feature, product);
+    }
+
+    public SvdConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public Map<String, Object> getParameters() {
+        return config.getParameters();
+    }
+
     @Override
     public DataManager getDataManager() {
         return dm;
     }
 
-    // Updates the cache
-    private void updateCache() {
-        for (Map.Entry<Integer, Map<Integer, Double>>  entry : predictionCache.entrySet()) {
-            int movieId = entry.getKey();
-            for (Map.Entry<Integer, Double> userEntry : entry.getValue().entrySet()) {
-                double temp = userFeatureVectors.get(userEntry.getKey()).get(currentFeature) * movieFeatureVectors.get(movieId).get(currentFeature);
-                if (USE_SIGMOID && currentFeature <= NR_NON_LINEAR_FEATURES) {
+    // Updates the cache (split by movie blocks when training on several threads).
+    private void updateCache(RatingBlocks blocks, ExecutorService executor) {
+        if (executor != null) {
+            List<Callable<Void>> tasks = new ArrayList<>(nrThreads);
+            for (int t = 0; t < nrThreads; t++) {
+                int movieBlock = t;
+                tasks.add(() -> {
+                    updateCache(currentFeature, blocks.getMovieBlockStart(movieBlock), blocks.getMovieBlockEnd(movieBlock));
+                    return null;
+                });
+            }
+            invokeAll(executor, tasks);
+        } else {
+            updateCache(currentFeature, 0, nrMovies);
+        }
+        RatingLog addedRatings = dm.getAddedRatings();
+        for (int i = 0; i < addedPredictionCache.length; i++) {
+            int movie = addedRatings.getMovie(i);
+            double temp = userFeatures[currentFeature * nrUsers + addedRatings.getUser(i)] * movieFeatures[currentFeature * nrMovies + movie];
+            if (config.isNonLinear(currentFeature)) {
+                temp = SigmoidFunction.eval(temp);
+            }
+            addedPredictionCache[i] += temp;
+        }
+        lastCachedFeature = currentFeature;
+    }
+
+    // Adds the feature's contribution to the cached predictions of movies [movieFrom, movieTo).
+    private void updateCache(int feature, int movieFrom, int movieTo) {
+        RatingMatrix ratings = dm.getRatings();
+        int userOffset = feature * nrUsers;
+        int movieOffset = feature * nrMovies;
+        boolean nonLinear = config.isNonLinear(feature);
+
+        for (int m = movieFrom; m < movieTo; m++) {
+            double movieFeature = movieFeatures[movieOffset + m];
+            for (int i = ratings.getMovieStart(m), end = ratings.getMovieEnd(m); i < end; i++) {
+                double temp = userFeatures[userOffset + ratings.getUser(i)] * movieFeature;
+                if (nonLinear) {
                     temp = SigmoidFunction.eval(temp);
                 }
-                userEntry.setValue(userEntry.getValue() + temp);
+                predictionCache[i] += temp;
             }
-            lastCachedFeature = currentFeature;
         }
     }
 
-    // Applies limit filtering to the provided feature (truncates the feature if it's too small/large).
-    private double limit(double x) {
-        if (USE_LIMIT) {
-            if (x > FEATURE_LIMIT) {
-                return FEATURE_LIMIT;
-            } else if (x < FEATURE_LIMIT * (-1)) {
-                return FEATURE_LIMIT * (-1);
+    // Rebuilds the prediction cache of a model loaded without it, adding the cached features in the training order
+    // (so the cache is the same as the saved one would have been).
+    private void ensurePredictionCache() {
+        if (predictionCache == null) {
+            predictionCache = new float[dm.getRatings().getNrRatings()];
+            for (int f = 0; f <= lastCachedFeature; f++) {
+                updateCache(f, 0, nrMovies);
+            }
+        }
+        RatingLog addedRatings = dm.getAddedRatings();
+        if (addedPredictionCache == null || addedPredictionCache.length != addedRatings.size()) {
+            addedPredictionCache = new float[addedRatings.size()];
+            for (int i = 0; i < addedPredictionCache.length; i++) {
+                addedPredictionCache[i] = computeCachedPrediction(addedRatings.getMovie(i), addedRatings.getUser(i));
             }
         }
+    }
 
-        return x;
+    // Grows the factor matrices so that they can hold the specified nr of features.
+    private void ensureFeatureCapacity(int nrFeatures) {
+        int capacity = userFeatures.length / Math.max(nrUsers, 1);
+        if (nrFeatures > capacity) {
+            capacity = Math.max(nrFeatures, capacity * 2);
+            userFeatures = Arrays.copyOf(userFeatures, capacity * nrUsers);
+            movieFeatures = Arrays.copyOf(movieFeatures, capacity * nrMovies);
+        }
     }
 
     @Override
@@ -0,0 +1,221 @@
+package com.silviuned.service.algorithms;
+
+import com.silviuned.utils.SigmoidFunction;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The hyperparameters of an {@link SvdAlgorithm}. Immutable: variants are derived with {@link #toBuilder()}, e.g.
+ * {@code SvdConfig.DEFAULT.toBuilder().learningRate(0.001).build()}.
+ */
+public class SvdConfig {
+
+    public static final SvdConfig DEFAULT = builder().build();
+
+    private final boolean useLimit;
+    private final double featureLimit;
+    private final boolean useSigmoid;
+    private final int nrNonLinearFeatures;
+    private final double initialFeatureValue;
+    private final double learningRate;
+    private final double rmseDifference;
+    private final double regularizationCoef;
+
+    private SvdConfig(Builder builder) {
+        this.useLimit = builder.useLimit;
+        this.featureLimit = builder.featureLimit;
+        this.useSigmoid = builder.useSigmoid;
+        this.nrNonLinearFeatures = builder.nrNonLinearFeatures;
+        this.initialFeatureValue = builder.initialFeatureValue;
+        this.learningRate = builder.learningRate;
+        this.rmseDifference = builder.rmseDifference;
+        this.regularizationCoef = builder.regularizationCoef;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Builder toBuilder() {
+        return new Builder()
+                .useLimit(useLimit)
+                .featureLimit(featureLimit)
+                .useSigmoid(useSigmoid)
+                .nrNonLinearFeatures(nrNonLinearFeatures)
+                .initialFeatureValue(initialFeatureValue)
+                .learningRate(learningRate)
+                .rmseDifference(rmseDifference)
+                .regularizationCoef(regularizationCoef);
+    }
+
+    public static class Builder {
+
+        private boolean useLimit = true;
+        private double featureLimit = 22;
+        private boolean useSigmoid = true;
+        private int nrNonLinearFeatures = 12;
+        private double initialFeatureValue = 0.1;
+        private double learningRate = 0.0004;
+        // A feature (or a pass) is kept training while it lowers the error by more than -rmseDifference.
+        private double rmseDifference = -0.00008;
+        private double regularizationCoef = 0.02;
+
+        private Builder() {}
+
+        // Whether the features are truncated to [-featureLimit, featureLimit].
+        public Builder useLimit(boolean useLimit) {
+            this.useLimit = useLimit;
+            return this;
+        }
+
+        public Builder featureLimit(double featureLimit) {
+            this.featureLimit = featureLimit;
+            return this;
+        }
+
+        // Whether the contributions of the first features go through a sigmoid.
+        public Builder useSigmoid(boolean useSigmoid) {
+            this.useSigmoid = useSigmoid;
+            return this;
+        }
+
+        // Features [0, nrNonLinearFeatures] are non linear (when using the sigmoid).
+        public Builder nrNonLinearFeatures(int nrNonLinearFeatures) {
+            this.nrNonLinearFeatures = nrNonLinearFeatures;
+            return this;
+        }
+
+        public Builder initialFeatureValue(double initialFeatureValue) {
+            this.initialFeatureValue = initialFeatureValue;
+            return this;
+        }
+
+        public Builder learningRate(double learningRate) {
+            this.learningRate = learningRate;
+            return this;
+        }
+
+        public Builder rmseDifference(double rmseDifference) {
+            this.rmseDifference = rmseDifference;
+            return this;
+        }
+
+        public Builder regularizationCoef(double regularizationCoef) {
+            this.regularizationCoef = regularizationCoef;
+            return this;
+        }
+
+        public SvdConfig build() {
+            if (learningRate <= 0 || regularizationCoef < 0 || featureLimit <= 0) {
+                throw new IllegalArgumentException("Invalid SVD config: learningRate " + learningRate
+                        + ", regularizationCoef " + regularizationCoef + ", featureLimit " + featureLimit);
+            }
+            // A non negative difference would keep training as long as the error doesn't go up.
+            if (rmseDifference >= 0) {
+                throw new IllegalArgumentException("Invalid SVD config: rmseDifference " + rmseDifference
+                        + " (must be negative)");
+            }
+            return new SvdConfig(this);
+        }
+    }
+
+    // Writes the hyperparameters which the predictions depend on, and the training ones (see ModelFile).
+    void save(ModelFile.Writer writer) throws IOException {
+        writer.putDoubles(new double[] {useLimit ? 1 : 0, featureLimit, useSigmoid ? 1 : 0, nrNonLinearFeatures,
+                initialFeatureValue, learningRate, rmseDifference, regularizationCoef});
+    }
+
+    static SvdConfig load(ModelFile.Reader reader) throws IOException {
+        double[] values = reader.getDoubles(8);
+        return builder()
+                .useLimit(values[0] != 0)
+                .featureLimit(values[1])
+                .useSigmoid(values[2] != 0)
+                .nrNonLinearFeatures((int) values[3])
+                .initialFeatureValue(values[4])
+                .learningRate(values[5])
+                .rmseDifference(values[6])
+                .regularizationCoef(values[7])
+                .build();
+    }
+
+    // Whether the contribution of the feature goes through the sigmoid.
+    public boolean isNonLinear(int feature) {
+        return useSigmoid && feature <= nrNonLinearFeatures;
+    }
+
+    // Contribution of a feature to a prediction, given the product of the movie and user feature values.
+    // It's non decreasing in the product.
+    public double getFeatureContribution(int feature, double product) {
+        if (isNonLinear(feature)) {
+            return SigmoidFunction.eval(product);
+        }
+        return product;
+    }
+
+    // Applies limit filtering to the provided feature (truncates the feature if it's too small/large).
+    public double limit(double x) {
+        if (useLimit) {
+            if (x > featureLimit) {
+                return featureLimit;
+            } else if (x < featureLimit * (-1)) {
+                return featureLimit * (-1);
+            }
+        }
+
+        return x;
+    }
+
+    public boolean isUseLimit() {
+        return useLimit;
+    }
+
+    public double getFeatureLimit() {
+        return featureLimit;
+    }
+
+    public boolean isUseSigmoid() {
+        return useSigmoid;
+    }
+
+    public int getNrNonLinearFeatures() {
+        return nrNonLinearFeatures;
+    }
+
+    public double getInitialFeatureValue() {
+        return initialFeatureValue;
+    }
+
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    public double getRmseDifference() {
+        return rmseDifference;
+    }
+
+    public double getRegularizationCoef() {
+        return regularizationCoef;
+    }
+
+    // The hyperparameters by name, in a fixed order (see SweepRunner's leaderboards).
+    public Map<String, Object> getParameters() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("useLimit", useLimit);
+        result.put("featureLimit", featureLimit);
+        result.put("useSigmoid", useSigmoid);
+        result.put("nrNonLinearFeatures", nrNonLinearFeatures);
+        result.put("initialFeatureValue", initialFeatureValue);
+        result.put("learningRate", learningRate);
+        result.put("rmseDifference", rmseDifference);
+        result.put("regularizationCoef", regularizationCoef);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "SvdConfig" + getParameters();
+    }
+}
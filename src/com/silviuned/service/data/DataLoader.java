@@ -1,12 +1,13 @@
 package com.silviuned.service.data;
 
-import java.io.*;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
-import com.silviuned.model.UserRating;
+import com.silviuned.model.RatingMatrix;
 
 public class DataLoader {
 
@@ -14,58 +15,216 @@ public class DataLoader {
     public static final String TRAINING_DATA_PATH = "E:\\Development\\Facultate\\Disertatie\\Implementation\\training\\";
     public static final String TEST_DATA_PATH = "E:\\Development\\Facultate\\Disertatie\\Implementation\\test\\";
 
-    // Loads the data from the provided file.
-    public static Map<Integer, List<UserRating>> loadData(String folderPath) {
+    private static final boolean VERBOSE = false;
 
-        Map<Integer, List<UserRating>> result = new HashMap<>();
+    // Ids fit an int with up to 9 digits.
+    private static final int MAX_ID_DIGITS = 9;
+
+    // Loads the data from the files of the provided folder (one "mv_*.txt" file per movie).
+    // The files are memory mapped and parsed in parallel, without creating a String per line.
+    public static RatingMatrix loadData(String folderPath) {
+        long startTime = System.nanoTime();
 
         File folder = new File(folderPath);
-        File[] files = folder.listFiles();
-        if (files != null && files.length > 0) {
-            for (File file : files) {
-                BufferedReader br = null;
-                FileReader fr = null;
-                try {
-                    fr = new FileReader(file);
-                    br = new BufferedReader(fr);
-
-                    String line = br.readLine();
-                    int movieId = Integer.valueOf(line.split(":")[0]);
-
-                    while ((line = br.readLine()) != null) {
-                        String[] split = line.split(",");
-
-                        int userId = Integer.valueOf(split[0]);
-                        UserRating userRating = new UserRating(userId, Short.valueOf(split[1]), split[2]);
-
-                        if (result.containsKey(movieId)) {
-                            result.get(movieId).add(userRating);
-                        } else {
-                            List<UserRating> list = new ArrayList<>();
-                            list.add(userRating);
-                            result.put(movieId,  list);
-                        }
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } catch (Exception e) {
-                    e.printStackTrace();
+        File[] files = folder.listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            throw new IllegalStateException("No data files found in " + folderPath);
+        }
+        Arrays.sort(files);
+
+        MovieRatings[] movies = Arrays.stream(files).parallel()
+                .map(DataLoader::loadFile)
+                .toArray(MovieRatings[]::new);
+
+        int nrRatings = 0;
+        for (MovieRatings movie : movies) {
+            if (movie != null) {
+                nrRatings += movie.size;
+            }
+        }
+
+        RatingMatrix.Builder builder = new RatingMatrix.Builder(nrRatings);
+        for (MovieRatings movie : movies) {
+            if (movie != null) {
+                builder.addAll(movie.movieId, movie.userIds, movie.ratings, movie.epochDays, movie.size);
+            }
+        }
+        RatingMatrix result = builder.build();
+
+        if (VERBOSE) {
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            System.out.println("Loaded " + nrRatings + " ratings from " + files.length + " files in "
+                    + String.format("%.2f", seconds) + " sec. (" + (long) (nrRatings / seconds) + " ratings/sec.)");
+        }
+
+        return result;
+    }
+
+    // Receives the ratings of a single movie file (see parseFile).
+    interface MovieConsumer {
+
+        // The movie's ratings are (userIds[k], ratings[k]) for k in [0, n), in the order of the file.
+        void accept(int movieId, int[] userIds, byte[] ratings, int n) throws IOException;
+    }
+
+    // Parses a single movie file and hands its ratings to the consumer (used to stream a folder file by file).
+    static void parseFile(File file, MovieConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MovieRatings movie = parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            if (movie.nrSkippedLines > 0) {
+                System.err.println("Skipped " + movie.nrSkippedLines + " malformed lines of " + file);
+            }
+            consumer.accept(movie.movieId, movie.userIds, movie.ratings, movie.size);
+        }
+    }
+
+    // Parses a single movie file. Returns null if the file can't be read or has no movie id (the other files are
+    // still loaded).
+    private static MovieRatings loadFile(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MovieRatings result = parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            if (result.nrSkippedLines > 0) {
+                System.err.println("Skipped " + result.nrSkippedLines + " malformed lines of " + file);
+            }
+            return result;
+        } catch (IOException e) {
+            System.err.println("Can't load " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Parses "movieId:" followed by "userId,rating,yyyy-mm-dd" lines. The lines which don't match (or whose rating
+    // isn't in [1, 5]) are skipped and counted; a file without the movie id is rejected.
+    private static MovieRatings parse(MappedByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+        LineReader reader = new LineReader(buffer);
+        reader.startLine(0);
+        int movieId = reader.readNumber(MAX_ID_DIGITS, ':');
+        if (movieId == -1) {
+            throw new IOException("No movie id on the first line");
+        }
+        int position = reader.end + 1;
+
+        // Every line has at least 16 bytes ("1,1,2000-01-01\n").
+        MovieRatings result = new MovieRatings(movieId, Math.max(limit / 16, 1));
+        while (position < limit) {
+            reader.startLine(position);
+            position = reader.end + 1;
+            if (reader.isBlank()) {
+                continue;
+            }
+
+            int userId = reader.readNumber(MAX_ID_DIGITS, ',');
+            int rating = userId != -1 ? reader.readNumber(1, ',') : -1;
+            int year = rating != -1 ? reader.readNumber(4, '-') : -1;
+            int month = year != -1 ? reader.readNumber(2, '-') : -1;
+            int day = month != -1 ? reader.readNumber(2, '\n') : -1;
+            if (day == -1 || rating < 1 || rating > 5 || month < 1 || month > 12 || day < 1 || day > 31) {
+                result.nrSkippedLines++;
+                continue;
+            }
+
+            result.add(userId, rating, epochDay(year, month, day));
+        }
+
+        return result;
+    }
+
+    // Reads the fields of a line of a mapped file, never past the end of the line.
+    private static class LineReader {
+
+        private final MappedByteBuffer buffer;
+        private int position;
+        // The position of the line break (or the limit, on the last line).
+        private int end;
+
+        private LineReader(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private void startLine(int position) {
+            int limit = buffer.limit();
+            int end = position;
+            while (end < limit && buffer.get(end) != '\n') {
+                end++;
+            }
+            this.position = position;
+            this.end = end;
+        }
+
+        // Whether the rest of the line is only whitespace.
+        private boolean isBlank() {
+            for (int p = position; p < end; p++) {
+                byte b = buffer.get(p);
+                if (b != ' ' && b != '\t' && b != '\r') {
+                    return false;
                 }
-                finally {
-                    try {
-                        if (br != null)
-                            br.close();
-                        if (fr != null)
-                            fr.close();
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
+            }
+            return true;
+        }
+
+        // Reads 1 to maxDigits decimal digits followed by the separator ('\n' for the end of the line, where a
+        // trailing '\r' is ignored), and moves past the separator. Returns -1 (and leaves the position anywhere) if
+        // the line doesn't continue this way.
+        private int readNumber(int maxDigits, char separator) {
+            int result = 0;
+            int nrDigits = 0;
+            while (position < end) {
+                byte b = buffer.get(position++);
+                if (b >= '0' && b <= '9') {
+                    if (++nrDigits > maxDigits) {
+                        return -1;
                     }
+                    result = result * 10 + (b - '0');
+                } else if (b == separator && nrDigits > 0) {
+                    return result;
+                } else if (separator == '\n' && b == '\r' && position == end && nrDigits > 0) {
+                    return result;
+                } else {
+                    return -1;
                 }
             }
-        } else {
-            throw new IllegalStateException();
+            return separator == '\n' && nrDigits > 0 ? result : -1;
         }
+    }
 
-        return result;
+    // Returns the number of days since 1970-01-01 for the provided (proleptic Gregorian) date.
+    static int epochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    // The ratings parsed from a single movie file.
+    private static class MovieRatings {
+
+        private final int movieId;
+        private int size;
+        private int nrSkippedLines;
+        private int[] userIds;
+        private byte[] ratings;
+        private short[] epochDays;
+
+        private MovieRatings(int movieId, int capacity) {
+            this.movieId = movieId;
+            this.userIds = new int[capacity];
+            this.ratings = new byte[capacity];
+            this.epochDays = new short[capacity];
+        }
+
+        private void add(int userId, int rating, int epochDay) {
+            if (size == userIds.length) {
+                userIds = Arrays.copyOf(userIds, size * 2);
+                ratings = Arrays.copyOf(ratings, size * 2);
+                epochDays = Arrays.copyOf(epochDays, size * 2);
+            }
+            userIds[size] = userId;
+            ratings[size] = (byte) rating;
+            epochDays[size] = (short) epochDay;
+            size++;
+        }
     }
 }
@@ -1,5 +1,7 @@
 package com.silviuned.service.data;
 
+import com.silviuned.model.RatingLog;
+import com.silviuned.model.RatingMatrix;
 import com.silviuned.model.UserRating;
 import com.silviuned.service.RmseEvaluator;
 import com.silviuned.service.algorithms.Algorithm;
@@ -11,105 +13,152 @@ import java.util.*;
  */
 public class DataManager {
 
-    // movieId -> list of ratings for this movie
-    private Map<Integer, List<UserRating>> data;
+    // Ratings, indexed both by movie and by user.
+    private RatingMatrix ratings;
 
-    // What follows is duplicate data, cached for performance considerations.
+    // Ratings added after loading (see addRating). They're kept apart from the matrix, which is immutable.
+    private final RatingLog addedRatings;
 
-    // userId -> list of movies rated by the user
-    private Map<Integer, List<Integer>> userRatingsMap;
+    // What follows is duplicate data, cached for performance considerations. Indexed by movie/user ordinal.
 
     private double globalMovieRatingAverage;
-    private Map<Integer, Double> movieRatingAverageMap;
+    private double[] movieRatingAverages;
 
     // User offset refers to the offset between the user's rating for a movie and the average rating for that movie.
     private double globalUserOffsetAverage;
-    private Map<Integer, Double> userOffsetAverageMap;
+    private double[] userOffsetAverages;
 
     private static final double DEFAULT_RATIO = 25;
 
 
     public DataManager(Map<Integer, List<UserRating>> data) {
-        this.data = data;
-        this.userRatingsMap = new HashMap<>();
-        this.movieRatingAverageMap = new HashMap<>();
-        this.userOffsetAverageMap = new HashMap<>();
+        this(RatingMatrix.fromMap(data));
+    }
+
+    public DataManager(RatingMatrix ratings) {
+        this.ratings = ratings;
+        this.movieRatingAverages = new double[ratings.getNrMovies()];
+        this.userOffsetAverages = new double[ratings.getNrUsers()];
+        this.addedRatings = new RatingLog(ratings.getNrMovies(), ratings.getNrUsers());
 
         initCache();
     }
 
+    // Used when the cached statistics were already computed (i.e. read from a snapshot).
+    DataManager(RatingMatrix ratings, double[] movieRatingAverages, double[] userOffsetAverages,
+                double globalMovieRatingAverage, double globalUserOffsetAverage) {
+        this.ratings = ratings;
+        this.movieRatingAverages = movieRatingAverages;
+        this.userOffsetAverages = userOffsetAverages;
+        this.globalMovieRatingAverage = globalMovieRatingAverage;
+        this.globalUserOffsetAverage = globalUserOffsetAverage;
+        this.addedRatings = new RatingLog(ratings.getNrMovies(), ratings.getNrUsers());
+    }
+
+    // A copy sharing the (immutable) rating matrix, with its own statistics and added ratings: adding ratings to
+    // either one doesn't affect the other.
+    public DataManager copy() {
+        DataManager result = new DataManager(ratings, movieRatingAverages.clone(), userOffsetAverages.clone(),
+                globalMovieRatingAverage, globalUserOffsetAverage);
+        for (int i = 0; i < addedRatings.size(); i++) {
+            result.addedRatings.add(addedRatings.getMovie(i), addedRatings.getUser(i), addedRatings.getRating(i),
+                    addedRatings.getEpochDay(i));
+        }
+        return result;
+    }
+
     private void initCache() {
-        // Calulating movieRatingAverageMap & extracting userRatingsMap.
-        for (Map.Entry<Integer, List<UserRating>> entry : data.entrySet()) {
+        // Calulating movieRatingAverages.
+        for (int m = 0; m < ratings.getNrMovies(); m++) {
             int sum = 0;
-            int movieId = entry.getKey();
-
-            for (UserRating userRating : entry.getValue()) {
-                int userId = userRating.getUserId();
-
-                /* Adding rating to the userRatingMap */
-                if (userRatingsMap.containsKey(userId)) {
-                    userRatingsMap.get(userId).add(movieId);
-                } else {
-                    List<Integer> list = new ArrayList<>();
-                    list.add(movieId);
-                    userRatingsMap.put(userId, list);
-                }
-
-                /* Calulating sun of ratings for the movieRatingAverageMap. */
-                sum += userRating.getRating();
+            for (int i = ratings.getMovieStart(m); i < ratings.getMovieEnd(m); i++) {
+                /* Calulating sun of ratings for the movieRatingAverages. */
+                sum += ratings.getRating(i);
             }
-            double movieRatingAverage = sum * 1.0 / entry.getValue().size();
-            movieRatingAverageMap.put(entry.getKey(), movieRatingAverage);
+            double movieRatingAverage = sum * 1.0 / ratings.getMovieRatingCount(m);
+            movieRatingAverages[m] = movieRatingAverage;
 
             globalMovieRatingAverage += movieRatingAverage;
         }
 
         // Calculating globalMovieRatingAverage
-        globalMovieRatingAverage /= movieRatingAverageMap.size();
+        globalMovieRatingAverage /= ratings.getNrMovies();
 
 
-        // Calculating userOffsetAverageMap
-        for (Map.Entry<Integer, List<Integer>> entry : userRatingsMap.entrySet()) {
+        // Calculating userOffsetAverages
+        for (int u = 0; u < ratings.getNrUsers(); u++) {
             double totalOffset = 0;
-            for (Integer movieId : entry.getValue()) {
-                totalOffset += getRating(entry.getKey(), movieId) - getAverageRating(movieId);
+            for (int j = ratings.getUserStart(u); j < ratings.getUserEnd(u); j++) {
+                totalOffset += ratings.getUserRating(j) - movieRatingAverages[ratings.getUserMovie(j)];
             }
-            double userOffsetAverage = totalOffset / entry.getValue().size();
-            userOffsetAverageMap.put(entry.getKey(), userOffsetAverage);
+            double userOffsetAverage = totalOffset / ratings.getUserRatingCount(u);
+            userOffsetAverages[u] = userOffsetAverage;
 
             globalUserOffsetAverage += userOffsetAverage;
         }
 
         // Calculating globalUserOffsetAverage.
-        globalUserOffsetAverage /= userOffsetAverageMap.size();
+        globalUserOffsetAverage /= ratings.getNrUsers();
+    }
+
+    // Adds a rating of a known movie and user, who didn't rate the movie yet, and returns its index in the log
+    // of added ratings. The statistics are updated in O(1): the movie's average, the user's offset (measured
+    // against the new movie average) and the global averages. The offsets of the other users of the movie
+    // aren't revisited; they're exact again once the data manager is rebuilt with the added ratings.
+    public int addRating(int movieId, int userId, int rating, int epochDay) {
+        int movie = ratings.getMovieOrdinal(movieId);
+        int user = ratings.getUserOrdinal(userId);
+        if (movie == -1 || user == -1) {
+            throw new IllegalArgumentException("Unknown movie " + movieId + " or user " + userId);
+        }
+        if (ratings.findUserRating(user, movie) != -1 || addedRatings.find(movie, user) != -1) {
+            throw new IllegalArgumentException("User " + userId + " already rated movie " + movieId);
+        }
+
+        double movieRatingAverage = movieRatingAverages[movie];
+        movieRatingAverages[movie] += (rating - movieRatingAverage) / (getMovieRatingCount(movie) + 1);
+        globalMovieRatingAverage += (movieRatingAverages[movie] - movieRatingAverage) / ratings.getNrMovies();
+
+        double userOffsetAverage = userOffsetAverages[user];
+        double offset = rating - movieRatingAverages[movie];
+        userOffsetAverages[user] += (offset - userOffsetAverage) / (getUserRatingCount(user) + 1);
+        globalUserOffsetAverage += (userOffsetAverages[user] - userOffsetAverage) / ratings.getNrUsers();
+
+        return addedRatings.add(movie, user, rating, epochDay);
     }
 
     // Returns true if the user exists. Returns false, otherwise.
     public boolean existsUser(int userId) {
-        return userRatingsMap.get(userId) != null;
+        return ratings.getUserOrdinal(userId) != -1;
     }
 
     // Returns true if the movie exists. Returns false, otherwise.
     public boolean existsMovie(int movieId) {
-        return data.get(movieId) != null;
+        return ratings.getMovieOrdinal(movieId) != -1;
     }
 
     // Returns the total nr of users.
     public int getNrUsers() {
-        return userRatingsMap.size();
+        return ratings.getNrUsers();
     }
 
     // Returns the total nr of movies.
     public int getNrMovies() {
-        return data.size();
+        return ratings.getNrMovies();
     }
 
-    // Returns the rating the user gave to the movie.
+    // Returns the rating the user gave to the movie (including the added ratings).
     public short getRating(int userId, int movieId) {
-        for (UserRating userRating : data.get(movieId)) {
-            if (userRating.getUserId() == userId) {
-                return userRating.getRating();
+        int movie = ratings.getMovieOrdinal(movieId);
+        int user = ratings.getUserOrdinal(userId);
+        if (movie != -1 && user != -1) {
+            int position = ratings.findUserRating(user, movie);
+            if (position != -1) {
+                return (short) ratings.getUserRating(position);
+            }
+            int index = addedRatings.find(movie, user);
+            if (index != -1) {
+                return (short) addedRatings.getRating(index);
             }
         }
         throw new java.util.NoSuchElementException();
@@ -117,51 +166,94 @@ public class DataManager {
 
     // Returns the movie's average rating if the movie exists, and the global average otherwise.
     public double getAverageRating(int movieId) {
-        Double result = movieRatingAverageMap.get(movieId);
-        return result != null ? result : globalMovieRatingAverage;
+        int movie = ratings.getMovieOrdinal(movieId);
+        return movie != -1 ? movieRatingAverages[movie] : globalMovieRatingAverage;
     }
 
     // Returns the "true" (statistical) average of the movie.
     public double getTrueAverageMovieRating(int movieId) {
-        List<UserRating> userRatings = data.get(movieId);
-        if (userRatings == null) {
+        int movie = ratings.getMovieOrdinal(movieId);
+        if (movie == -1) {
             return globalMovieRatingAverage;
-        } else if (userRatings.size() == 1) {
-            return (movieRatingAverageMap.get(movieId) + globalMovieRatingAverage) / 2;
-        } else {
-            double ratio = DEFAULT_RATIO;
-            double numerator = globalMovieRatingAverage * ratio + movieRatingAverageMap.get(movieId) * userRatings.size();
-            double denominator = ratio + userRatings.size();
-            return numerator / denominator;
         }
+        return getTrueAverage(movieRatingAverages[movie], getMovieRatingCount(movie), globalMovieRatingAverage);
     }
 
     // Returns the "true" (statistical) average offset of the user.
     public double getTrueAverageUserOffset(int userId) {
-        List<Integer> movieIds = userRatingsMap.get(userId);
-        if (movieIds == null) {
+        int user = ratings.getUserOrdinal(userId);
+        if (user == -1) {
             return globalUserOffsetAverage;
-        } else if (movieIds.size() == 1) {
-            return (userOffsetAverageMap.get(userId) + globalUserOffsetAverage) / 2;
+        }
+        return getTrueAverage(userOffsetAverages[user], getUserRatingCount(user), globalUserOffsetAverage);
+    }
+
+    // Returns the "true" (statistical) average offset of a user who isn't in the training data, out of the user's
+    // ratings (ratings[k] for movieIds[k]). The ratings of unknown movies are ignored.
+    public double getTrueAverageUserOffset(int[] movieIds, int[] ratings) {
+        double totalOffset = 0;
+        int count = 0;
+        for (int k = 0; k < movieIds.length; k++) {
+            int movie = this.ratings.getMovieOrdinal(movieIds[k]);
+            if (movie != -1) {
+                totalOffset += ratings[k] - movieRatingAverages[movie];
+                count++;
+            }
+        }
+        return count > 0 ? getTrueAverage(totalOffset / count, count, globalUserOffsetAverage) : globalUserOffsetAverage;
+    }
+
+    // Shrinks the average of count values towards the global average (the fewer the values, the stronger).
+    public static double getTrueAverage(double average, int count, double globalAverage) {
+        if (count == 1) {
+            return (average + globalAverage) / 2;
         } else {
             double ratio = DEFAULT_RATIO;
-            double numerator = globalUserOffsetAverage * ratio + userOffsetAverageMap.get(userId) * movieIds.size();
-            double denominator = ratio + movieIds.size();
+            double numerator = globalAverage * ratio + average * count;
+            double denominator = ratio + count;
             return numerator / denominator;
         }
     }
 
     // Returns the RMSE of running the provided algorithm on the current data.
     public double getRmse(Algorithm algorithm) {
-        return RmseEvaluator.eval(algorithm, data);
+        return RmseEvaluator.eval(algorithm, ratings);
+    }
+
+    public RatingMatrix getRatings() {
+        return ratings;
+    }
+
+    public RatingLog getAddedRatings() {
+        return addedRatings;
+    }
+
+    // Nr of ratings of the movie (ordinal), including the added ones.
+    public int getMovieRatingCount(int movie) {
+        return ratings.getMovieRatingCount(movie) + addedRatings.getMovieRatingCount(movie);
+    }
+
+    // Nr of ratings of the user (ordinal), including the added ones.
+    public int getUserRatingCount(int user) {
+        return ratings.getUserRatingCount(user) + addedRatings.getUserRatingCount(user);
+    }
+
+    double getGlobalMovieRatingAverage() {
+        return globalMovieRatingAverage;
+    }
+
+    double getGlobalUserOffsetAverage() {
+        return globalUserOffsetAverage;
     }
 
-    public Map<Integer, List<UserRating>> getData() {
-        return data;
+    // The movie's average rating, by movie ordinal.
+    double getMovieRatingAverage(int movie) {
+        return movieRatingAverages[movie];
     }
 
-    public Map<Integer, List<Integer>> getUserRatingsMap() {
-        return userRatingsMap;
+    // The user's average offset, by user ordinal.
+    double getUserOffsetAverage(int user) {
+        return userOffsetAverages[user];
     }
 
 }
@@ -0,0 +1,257 @@
+package com.silviuned.service.data;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.utils.SectionReader;
+import com.silviuned.utils.SectionWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Binary snapshot of a loaded data set: the rating matrix plus the statistics cached by the {@link DataManager}.
+ * The file is written once after the text files were parsed, and memory mapped on the following runs.
+ *
+ * Layout (little endian): a fixed size header, followed by the sections of the matrix and of the statistics,
+ * each one aligned to 8 bytes. The header holds a CRC32 of its own fields and of everything that follows it, and a
+ * fingerprint of the source folder (file names, sizes and modification times), so that a snapshot of a changed
+ * folder is rejected.
+ */
+public class DataSnapshot {
+
+    private static final int MAGIC = 0x43465344; // "CFSD"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    // The header's fields after the magic, the version, the fingerprint and the checksum.
+    private static final int HEADER_FIELDS_OFFSET = 24;
+
+    private static final boolean VERBOSE = false;
+
+    // Returns the data manager of the provided folder. The snapshot is used if it's valid; otherwise
+    // the text files are parsed and the snapshot is (re)written.
+    public static DataManager loadOrCreate(String folderPath, Path snapshotFile) {
+        long fingerprint = fingerprint(folderPath);
+
+        DataManager result = read(snapshotFile, fingerprint);
+        if (result == null) {
+            result = new DataManager(DataLoader.loadData(folderPath));
+            try {
+                write(result, snapshotFile, fingerprint);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return result;
+    }
+
+    // Returns the default snapshot file of a data folder: a sibling file named "<folder>.snapshot".
+    public static Path defaultSnapshotFile(String folderPath) {
+        Path folder = Paths.get(folderPath).toAbsolutePath().normalize();
+        return folder.resolveSibling(folder.getFileName() + ".snapshot");
+    }
+
+    // Returns a fingerprint of the folder's files (names, sizes and modification times).
+    public static long fingerprint(String folderPath) {
+        File[] files = new File(folderPath).listFiles(File::isFile);
+        if (files == null) {
+            throw new IllegalStateException("No data files found in " + folderPath);
+        }
+        Arrays.sort(files);
+
+        long result = 1125899906842597L;
+        for (File file : files) {
+            result = 31 * result + file.getName().hashCode();
+            result = 31 * result + file.length();
+            result = 31 * result + file.lastModified();
+        }
+        return result;
+    }
+
+    // Writes the snapshot of the data manager. The file is written next to the target and then moved in place.
+    // The added ratings aren't part of the snapshot, so a data manager with added ratings can't be written.
+    public static void write(DataManager dm, Path snapshotFile, long sourceFingerprint) throws IOException {
+        if (dm.getAddedRatings().size() > 0) {
+            throw new IllegalStateException("The data manager has added ratings");
+        }
+        long startTime = System.nanoTime();
+        RatingMatrix ratings = dm.getRatings();
+        int nrMovies = ratings.getNrMovies();
+        int nrUsers = ratings.getNrUsers();
+        int nrRatings = ratings.getNrRatings();
+
+        Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            SectionWriter writer = new SectionWriter(channel, HEADER_SIZE);
+
+            for (int m = 0; m < nrMovies; m++) {
+                writer.putInt(ratings.getMovieId(m));
+            }
+            writer.align();
+            for (int u = 0; u < nrUsers; u++) {
+                writer.putInt(ratings.getUserId(u));
+            }
+            writer.align();
+            for (int m = 0; m < nrMovies; m++) {
+                writer.putInt(ratings.getMovieStart(m));
+            }
+            writer.putInt(nrRatings);
+            writer.align();
+            for (int i = 0; i < nrRatings; i++) {
+                writer.putInt(ratings.getUser(i));
+            }
+            writer.align();
+            for (int i = 0; i < nrRatings; i++) {
+                writer.putByte(ratings.getRating(i));
+            }
+            writer.align();
+            for (int i = 0; i < nrRatings; i++) {
+                writer.putShort(ratings.getEpochDay(i));
+            }
+            writer.align();
+            for (int u = 0; u < nrUsers; u++) {
+                writer.putInt(ratings.getUserStart(u));
+            }
+            writer.putInt(nrRatings);
+            writer.align();
+            for (int j = 0; j < nrRatings; j++) {
+                writer.putInt(ratings.getUserMovie(j));
+            }
+            writer.align();
+            for (int j = 0; j < nrRatings; j++) {
+                writer.putByte(ratings.getUserRating(j));
+            }
+            writer.align();
+            for (int m = 0; m < nrMovies; m++) {
+                writer.putDouble(dm.getMovieRatingAverage(m));
+            }
+            for (int u = 0; u < nrUsers; u++) {
+                writer.putDouble(dm.getUserOffsetAverage(u));
+            }
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(sourceFingerprint);
+            header.putLong(0);
+            header.putInt(nrMovies);
+            header.putInt(nrUsers);
+            header.putInt(nrRatings);
+            header.putInt(0);
+            header.putDouble(dm.getGlobalMovieRatingAverage());
+            header.putDouble(dm.getGlobalUserOffsetAverage());
+            header.clear();
+            header.putLong(16, SectionReader.headerChecksum(header, HEADER_FIELDS_OFFSET, writer.getChecksum()));
+            channel.write(header, 0);
+        }
+        Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING);
+
+        if (VERBOSE) {
+            System.out.println("Wrote snapshot " + snapshotFile + " in " + (System.nanoTime() - startTime) / 1000000 + " ms.");
+        }
+    }
+
+    // Reads the snapshot. Returns null if the file doesn't exist, if it was written by another version,
+    // if it's corrupted or if it was built from another version of the source folder.
+    public static DataManager read(Path snapshotFile, long expectedFingerprint) {
+        if (!Files.isRegularFile(snapshotFile)) {
+            return null;
+        }
+
+        long startTime = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return invalid(snapshotFile, "truncated header");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return invalid(snapshotFile, "unknown format");
+            }
+            if (header.getLong() != expectedFingerprint) {
+                return invalid(snapshotFile, "source folder changed");
+            }
+            long crc = header.getLong();
+            int nrMovies = header.getInt();
+            int nrUsers = header.getInt();
+            int nrRatings = header.getInt();
+            header.getInt();
+            double globalMovieRatingAverage = header.getDouble();
+            double globalUserOffsetAverage = header.getDouble();
+
+            if (SectionReader.headerChecksum(header, HEADER_FIELDS_OFFSET, SectionReader.checksum(channel, HEADER_SIZE)) != crc) {
+                return invalid(snapshotFile, "checksum mismatch");
+            }
+
+            SectionReader reader = new SectionReader(channel, HEADER_SIZE);
+            int[] movieIds = reader.getInts(nrMovies);
+            int[] userIds = reader.getInts(nrUsers);
+            int[] movieOffsets = reader.getInts(nrMovies + 1);
+            int[] ratingUsers = reader.getInts(nrRatings);
+            byte[] ratingValues = reader.getBytes(nrRatings);
+            short[] ratingDates = reader.getShorts(nrRatings);
+            int[] userOffsets = reader.getInts(nrUsers + 1);
+            int[] userMovies = reader.getInts(nrRatings);
+            byte[] userRatingValues = reader.getBytes(nrRatings);
+            double[] movieRatingAverages = reader.getDoubles(nrMovies);
+            double[] userOffsetAverages = reader.getDoubles(nrUsers);
+
+            RatingMatrix ratings = RatingMatrix.fromArrays(movieIds, userIds, movieOffsets, ratingUsers, ratingValues,
+                    ratingDates, userOffsets, userMovies, userRatingValues);
+
+            if (VERBOSE) {
+                System.out.println("Read snapshot " + snapshotFile + " (" + nrRatings + " ratings) in "
+                        + (System.nanoTime() - startTime) / 1000000 + " ms.");
+            }
+            return new DataManager(ratings, movieRatingAverages, userOffsetAverages,
+                    globalMovieRatingAverage, globalUserOffsetAverage);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Opens the snapshot as a stream of its movie-major ratings (see RatingStream), without loading them.
+    // The checksum (one sequential pass over the file) and the source fingerprint are verified.
+    public static RatingStream openStream(Path snapshotFile, long expectedFingerprint) throws IOException {
+        FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(snapshotFile + ": truncated header");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(snapshotFile + ": unknown format");
+            }
+            if (header.getLong() != expectedFingerprint) {
+                throw new IOException(snapshotFile + ": source folder changed");
+            }
+            long crc = header.getLong();
+            int nrMovies = header.getInt();
+            int nrUsers = header.getInt();
+            int nrRatings = header.getInt();
+            if (SectionReader.headerChecksum(header, HEADER_FIELDS_OFFSET, SectionReader.checksum(channel, HEADER_SIZE)) != crc) {
+                throw new IOException(snapshotFile + ": checksum mismatch");
+            }
+            return new RatingStream(channel, new SectionReader(channel, HEADER_SIZE), nrMovies, nrUsers, nrRatings);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static DataManager invalid(Path snapshotFile, String reason) {
+        if (VERBOSE) {
+            System.out.println("Ignoring snapshot " + snapshotFile + ": " + reason + ".");
+        }
+        return null;
+    }
+}
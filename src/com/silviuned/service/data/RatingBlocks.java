@@ -0,0 +1,152 @@
+package com.silviuned.service.data;
+
+import com.silviuned.model.RatingMatrix;
+
+/**
+ * Splits the ratings into n x n blocks: n ranges of movies times n ranges of users, each range holding
+ * roughly the same number of ratings. Blocks (i, (i + s) % n) for i = 0..n-1 share no movie and no user,
+ * so they can be trained concurrently (stratified / DSGD training).
+ *
+ * Inside a block the ratings are grouped in runs of the same movie. Run r is movie getRunMovie(r), and its
+ * ratings are the movie-major indexes getIndex(k) for k in [getRunStart(r), getRunStart(r + 1)).
+ */
+public class RatingBlocks {
+
+    private final int nrBlocks;
+
+    // movie / user range boundaries: block b covers ordinals [boundaries[b], boundaries[b + 1]).
+    private final int[] movieBoundaries;
+    private final int[] userBoundaries;
+
+    // The runs of block (movieBlock, userBlock) are [blockRuns[movieBlock * n + userBlock], blockRuns[... + 1]).
+    private final int[] blockRuns;
+    private final int[] runMovies;
+    private final int[] runStarts;
+    private final int[] indexes;
+
+    public RatingBlocks(RatingMatrix ratings, int nrBlocks) {
+        this.nrBlocks = nrBlocks;
+        int nrMovies = ratings.getNrMovies();
+        int nrUsers = ratings.getNrUsers();
+
+        int[] movieCounts = new int[nrMovies];
+        for (int m = 0; m < nrMovies; m++) {
+            movieCounts[m] = ratings.getMovieRatingCount(m);
+        }
+        int[] userCounts = new int[nrUsers];
+        for (int u = 0; u < nrUsers; u++) {
+            userCounts[u] = ratings.getUserRatingCount(u);
+        }
+        movieBoundaries = balancedBoundaries(movieCounts, nrBlocks, ratings.getNrRatings());
+        userBoundaries = balancedBoundaries(userCounts, nrBlocks, ratings.getNrRatings());
+
+        int[] userBlocks = new int[nrUsers];
+        for (int b = 0; b < nrBlocks; b++) {
+            for (int u = userBoundaries[b]; u < userBoundaries[b + 1]; u++) {
+                userBlocks[u] = b;
+            }
+        }
+
+        // counts[m * n + userBlock] = nr of ratings of movie m given by users of the user block.
+        int[] counts = new int[nrMovies * nrBlocks];
+        int nrRuns = 0;
+        for (int m = 0; m < nrMovies; m++) {
+            for (int i = ratings.getMovieStart(m); i < ratings.getMovieEnd(m); i++) {
+                if (counts[m * nrBlocks + userBlocks[ratings.getUser(i)]]++ == 0) {
+                    nrRuns++;
+                }
+            }
+        }
+
+        blockRuns = new int[nrBlocks * nrBlocks + 1];
+        runMovies = new int[nrRuns];
+        runStarts = new int[nrRuns + 1];
+        int run = 0;
+        int position = 0;
+        for (int movieBlock = 0; movieBlock < nrBlocks; movieBlock++) {
+            for (int userBlock = 0; userBlock < nrBlocks; userBlock++) {
+                blockRuns[movieBlock * nrBlocks + userBlock] = run;
+                for (int m = movieBoundaries[movieBlock]; m < movieBoundaries[movieBlock + 1]; m++) {
+                    int count = counts[m * nrBlocks + userBlock];
+                    if (count > 0) {
+                        runMovies[run] = m;
+                        runStarts[run] = position;
+                        // From now on, counts holds the next free position of the run.
+                        counts[m * nrBlocks + userBlock] = position;
+                        position += count;
+                        run++;
+                    }
+                }
+            }
+        }
+        blockRuns[nrBlocks * nrBlocks] = run;
+        runStarts[nrRuns] = position;
+
+        indexes = new int[ratings.getNrRatings()];
+        for (int m = 0; m < nrMovies; m++) {
+            for (int i = ratings.getMovieStart(m); i < ratings.getMovieEnd(m); i++) {
+                indexes[counts[m * nrBlocks + userBlocks[ratings.getUser(i)]]++] = i;
+            }
+        }
+    }
+
+    // Splits [0, counts.length) into nrBlocks contiguous ranges with roughly total / nrBlocks elements each.
+    private static int[] balancedBoundaries(int[] counts, int nrBlocks, long total) {
+        int[] result = new int[nrBlocks + 1];
+        long sum = 0;
+        int block = 1;
+        for (int i = 0; i < counts.length && block < nrBlocks; i++) {
+            sum += counts[i];
+            while (block < nrBlocks && sum >= total * block / nrBlocks) {
+                result[block++] = i + 1;
+            }
+        }
+        while (block <= nrBlocks) {
+            result[block++] = counts.length;
+        }
+        return result;
+    }
+
+    public int getNrBlocks() {
+        return nrBlocks;
+    }
+
+    public int getMovieBlockStart(int movieBlock) {
+        return movieBoundaries[movieBlock];
+    }
+
+    public int getMovieBlockEnd(int movieBlock) {
+        return movieBoundaries[movieBlock + 1];
+    }
+
+    public int getUserBlockStart(int userBlock) {
+        return userBoundaries[userBlock];
+    }
+
+    public int getUserBlockEnd(int userBlock) {
+        return userBoundaries[userBlock + 1];
+    }
+
+    // First run of the block.
+    public int getFirstRun(int movieBlock, int userBlock) {
+        return blockRuns[movieBlock * nrBlocks + userBlock];
+    }
+
+    // Run after the last run of the block.
+    public int getEndRun(int movieBlock, int userBlock) {
+        return blockRuns[movieBlock * nrBlocks + userBlock + 1];
+    }
+
+    public int getRunMovie(int run) {
+        return runMovies[run];
+    }
+
+    public int getRunStart(int run) {
+        return runStarts[run];
+    }
+
+    // Movie-major index of the k-th rating, in block order.
+    public int getIndex(int k) {
+        return indexes[k];
+    }
+}
@@ -0,0 +1,388 @@
+package com.silviuned.service.data;
+
+import com.silviuned.utils.SectionReader;
+import com.silviuned.utils.SectionWriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The ratings of a data set, streamed from disk in the movie-major order of a {@link com.silviuned.model.RatingMatrix}
+ * (same ordinals, same order), without holding them in memory. Only the ids and the movie offsets are loaded.
+ *
+ * The ratings are read from a data snapshot (see {@link DataSnapshot#openStream}) or from a stream file, which is
+ * converted from a text folder one file at a time. The stream file has the snapshot's layout, without the dates
+ * and the user-major view: a header, then the movie ids, the user ids, the movie offsets, the user ordinal of every
+ * rating, and the value of every rating.
+ */
+public class RatingStream implements Closeable {
+
+    private static final int MAGIC = 0x43465253; // "CFRS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    // Nr of ratings per chunk, and nr of chunks in flight (one being processed, the other ones being read).
+    public static final int CHUNK_SIZE = 1 << 20;
+    private static final int NR_BUFFERS = 3;
+
+    private static final boolean VERBOSE = false;
+
+    private final FileChannel channel;
+    private final int[] movieIds;
+    private final int[] userIds;
+    private final int[] movieOrdinals;
+    private final int[] userOrdinals;
+    private final int[] movieOffsets;
+    // File positions of the sections holding the user ordinals and the values of the ratings.
+    private final long usersPosition;
+    private final long valuesPosition;
+
+    // The buffers of forEachChunk (allocated by the first pass).
+    private Chunk[] chunks;
+    // Handed over by the reader of forEachChunk once all the chunks were read (or on failure).
+    private static final Chunk END = new Chunk(0);
+
+    // Reads the sections that follow the ids and the offsets with the provided reader (positioned on them).
+    RatingStream(FileChannel channel, SectionReader reader, int nrMovies, int nrUsers, int nrRatings) throws IOException {
+        this.channel = channel;
+        this.movieIds = reader.getInts(nrMovies);
+        this.userIds = reader.getInts(nrUsers);
+        this.movieOffsets = reader.getInts(nrMovies + 1);
+        this.usersPosition = reader.skip(4L * nrRatings);
+        this.valuesPosition = reader.skip(nrRatings);
+        this.movieOrdinals = lookup(movieIds);
+        this.userOrdinals = lookup(userIds);
+        if (movieOffsets[nrMovies] != nrRatings) {
+            throw new IOException("Inconsistent movie offsets");
+        }
+    }
+
+    // Returns the stream of the provided folder. The stream file is used if it's valid; otherwise it's (re)written
+    // out of the text files.
+    public static RatingStream openOrConvert(String folderPath, Path streamFile) throws IOException {
+        long fingerprint = DataSnapshot.fingerprint(folderPath);
+        if (Files.isRegularFile(streamFile)) {
+            try {
+                return open(streamFile, fingerprint);
+            } catch (IOException e) {
+                if (VERBOSE) {
+                    System.out.println("Ignoring stream " + streamFile + ": " + e.getMessage() + ".");
+                }
+            }
+        }
+        convert(folderPath, streamFile, fingerprint);
+        return open(streamFile, fingerprint);
+    }
+
+    // Returns the default stream file of a data folder: a sibling file named "<folder>.stream".
+    public static Path defaultStreamFile(String folderPath) {
+        Path folder = Paths.get(folderPath).toAbsolutePath().normalize();
+        return folder.resolveSibling(folder.getFileName() + ".stream");
+    }
+
+    // Opens a stream file, checking its checksum (one sequential pass over the file) and the source fingerprint.
+    public static RatingStream open(Path streamFile, long expectedFingerprint) throws IOException {
+        FileChannel channel = FileChannel.open(streamFile, StandardOpenOption.READ);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("truncated header");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("unknown format");
+            }
+            if (header.getLong() != expectedFingerprint) {
+                throw new IOException("source folder changed");
+            }
+            long crc = header.getLong();
+            int nrMovies = header.getInt();
+            int nrUsers = header.getInt();
+            int nrRatings = header.getInt();
+            if (SectionReader.checksum(channel, HEADER_SIZE) != crc) {
+                throw new IOException("checksum mismatch");
+            }
+            return new RatingStream(channel, new SectionReader(channel, HEADER_SIZE), nrMovies, nrUsers, nrRatings);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Writes the stream file of a text folder, parsing one file at a time: a first pass collects the ids and
+    // counts the ratings of every movie, then the user ordinals and the values are written in two more passes.
+    public static void convert(String folderPath, Path streamFile, long sourceFingerprint) throws IOException {
+        long startTime = System.nanoTime();
+        File[] files = new File(folderPath).listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            throw new IllegalStateException("No data files found in " + folderPath);
+        }
+
+        int[] fileMovieIds = new int[files.length];
+        int[] fileCounts = new int[files.length];
+        BitSet users = new BitSet();
+        for (int f = 0; f < files.length; f++) {
+            int file = f;
+            DataLoader.parseFile(files[f], (movieId, ratingUserIds, ratings, n) -> {
+                fileMovieIds[file] = movieId;
+                fileCounts[file] = n;
+                for (int k = 0; k < n; k++) {
+                    users.set(ratingUserIds[k]);
+                }
+            });
+        }
+
+        // The movies (and so the files) in the order of their ids, like the movie ordinals of a rating matrix.
+        long[] order = new long[files.length];
+        for (int f = 0; f < files.length; f++) {
+            order[f] = (long) fileMovieIds[f] << 32 | f;
+        }
+        Arrays.sort(order);
+        File[] sortedFiles = new File[files.length];
+        int[] movieIds = new int[files.length];
+        int[] movieOffsets = new int[files.length + 1];
+        for (int m = 0; m < files.length; m++) {
+            int f = (int) order[m];
+            sortedFiles[m] = files[f];
+            movieIds[m] = fileMovieIds[f];
+            movieOffsets[m + 1] = movieOffsets[m] + fileCounts[f];
+        }
+        int[] userIds = users.stream().toArray();
+        int[] userOrdinals = lookup(userIds);
+        int nrRatings = movieOffsets[files.length];
+
+        Path tempFile = streamFile.resolveSibling(streamFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            SectionWriter writer = new SectionWriter(channel, HEADER_SIZE);
+            writer.putInts(movieIds);
+            writer.putInts(userIds);
+            writer.putInts(movieOffsets);
+            for (File file : sortedFiles) {
+                DataLoader.parseFile(file, (movieId, ratingUserIds, ratings, n) -> {
+                    for (int k = 0; k < n; k++) {
+                        writer.putInt(userOrdinals[ratingUserIds[k]]);
+                    }
+                });
+            }
+            writer.align();
+            for (File file : sortedFiles) {
+                DataLoader.parseFile(file, (movieId, ratingUserIds, ratings, n) -> {
+                    for (int k = 0; k < n; k++) {
+                        writer.putByte(ratings[k]);
+                    }
+                });
+            }
+            writer.align();
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(sourceFingerprint);
+            header.putLong(writer.getChecksum());
+            header.putInt(movieIds.length);
+            header.putInt(userIds.length);
+            header.putInt(nrRatings);
+            header.clear();
+            channel.write(header, 0);
+        }
+        Files.move(tempFile, streamFile, StandardCopyOption.REPLACE_EXISTING);
+
+        if (VERBOSE) {
+            System.out.println("Wrote stream " + streamFile + " (" + nrRatings + " ratings) in "
+                    + (System.nanoTime() - startTime) / 1000000 + " ms.");
+        }
+    }
+
+    // Returns the id -> ordinal lookup table for the provided (ascending) ordinal -> id array.
+    private static int[] lookup(int[] ids) {
+        int[] result = new int[ids.length > 0 ? ids[ids.length - 1] + 1 : 0];
+        Arrays.fill(result, -1);
+        for (int ordinal = 0; ordinal < ids.length; ordinal++) {
+            result[ids[ordinal]] = ordinal;
+        }
+        return result;
+    }
+
+    public int getNrMovies() {
+        return movieIds.length;
+    }
+
+    public int getNrUsers() {
+        return userIds.length;
+    }
+
+    public int getNrRatings() {
+        return movieOffsets[movieIds.length];
+    }
+
+    public int getMovieId(int movie) {
+        return movieIds[movie];
+    }
+
+    public int getUserId(int user) {
+        return userIds[user];
+    }
+
+    // Returns the ordinal of the movie, or -1 if the movie doesn't exist.
+    public int getMovieOrdinal(int movieId) {
+        return movieId >= 0 && movieId < movieOrdinals.length ? movieOrdinals[movieId] : -1;
+    }
+
+    // Returns the ordinal of the user, or -1 if the user doesn't exist.
+    public int getUserOrdinal(int userId) {
+        return userId >= 0 && userId < userOrdinals.length ? userOrdinals[userId] : -1;
+    }
+
+    // Index of the first rating of the movie.
+    public int getMovieStart(int movie) {
+        return movieOffsets[movie];
+    }
+
+    // Index after the last rating of the movie.
+    public int getMovieEnd(int movie) {
+        return movieOffsets[movie + 1];
+    }
+
+    /**
+     * Consecutive ratings of the stream: users[k] and values[k] belong to the rating found at index from + k,
+     * for k in [0, size). The arrays are reused once the chunk was processed.
+     */
+    public static class Chunk {
+
+        private int from;
+        private int size;
+        private final int[] users;
+        private final byte[] values;
+        private final ByteBuffer buffer;
+
+        private Chunk(int capacity) {
+            users = new int[capacity];
+            values = new byte[capacity];
+            buffer = ByteBuffer.allocateDirect(4 * capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public int getFrom() {
+            return from;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        // User ordinal of the rating found at index getFrom() + k.
+        public int getUser(int k) {
+            return users[k];
+        }
+
+        public int getRating(int k) {
+            return values[k];
+        }
+    }
+
+    public interface ChunkConsumer {
+
+        void accept(Chunk chunk);
+    }
+
+    // Streams all the ratings, in order, in chunks of at most CHUNK_SIZE ratings (one sequential pass over the
+    // file). A background thread reads the next chunks while the consumer processes the current one.
+    // The chunks are allocated once, and reused by the following passes (so only one pass can run at a time).
+    public synchronized void forEachChunk(ChunkConsumer consumer) throws IOException {
+        if (chunks == null) {
+            chunks = new Chunk[NR_BUFFERS];
+            for (int b = 0; b < NR_BUFFERS; b++) {
+                chunks[b] = new Chunk(CHUNK_SIZE);
+            }
+        }
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(NR_BUFFERS, false, Arrays.asList(chunks));
+        BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(NR_BUFFERS + 1);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        IOException[] failure = new IOException[1];
+
+        // The reads aren't interrupted (that would close the channel): the reader stops when cancelled is set.
+        Thread prefetcher = new Thread(() -> {
+            try {
+                for (int from = 0; from < getNrRatings(); from += CHUNK_SIZE) {
+                    Chunk chunk = free.take();
+                    if (cancelled.get()) {
+                        return;
+                    }
+                    read(chunk, from, Math.min(CHUNK_SIZE, getNrRatings() - from));
+                    full.put(chunk);
+                }
+            } catch (IOException e) {
+                failure[0] = e;
+            } catch (InterruptedException e) {
+                return;
+            }
+            full.add(END);
+        }, "rating-stream-prefetch");
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+
+        Chunk chunk = null;
+        try {
+            for (chunk = full.take(); chunk != END; chunk = full.take()) {
+                consumer.accept(chunk);
+                free.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            if (chunk != END) {
+                cancelled.set(true);
+                free.offer(chunk != null ? chunk : END);
+            }
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private void read(Chunk chunk, int from, int size) throws IOException {
+        chunk.from = from;
+        chunk.size = size;
+        ByteBuffer buffer = chunk.buffer;
+
+        buffer.clear().limit(4 * size);
+        readFully(buffer, usersPosition + 4L * from);
+        buffer.flip();
+        buffer.asIntBuffer().get(chunk.users, 0, size);
+
+        buffer.clear().limit(size);
+        readFully(buffer, valuesPosition + from);
+        buffer.flip();
+        buffer.get(chunk.values, 0, size);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of the rating stream");
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,400 @@
+package com.silviuned.service.index;
+
+import com.silviuned.utils.SectionReader;
+import com.silviuned.utils.SectionWriter;
+import com.silviuned.utils.TopNHeap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Approximate maximum inner product (or cosine) search over a set of float vectors: an inverted file with
+ * product quantization (IVF-PQ).
+ *
+ * The vectors are clustered with k-means in nrLists lists. Inside a list, every vector is stored as the byte codes
+ * of its residual (vector - list centroid): the dimensions are split in nrSubspaces subspaces, each with its own
+ * codebook of up to 256 centroids. A query scores the list centroids, scans the nrProbes best lists with a lookup
+ * table per subspace, and re-scores the nrReranked best candidates with the exact vectors (which are kept too).
+ * More probes and more re-ranked candidates give a better recall for a higher latency.
+ *
+ * The index is immutable and thread safe. It can be saved and loaded (see {@link #save(Path)}).
+ */
+public class IvfPqIndex {
+
+    public enum Metric {
+        INNER_PRODUCT, COSINE
+    }
+
+    public static final int DEFAULT_NR_PROBES = 8;
+    public static final int DEFAULT_NR_RERANKED = 100;
+
+    private static final int MAX_NR_CENTROIDS = 256;
+
+    private static final int MAGIC = 0x43464149; // "CFAI"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    // The header's fields after the magic, the version and the checksum (see SectionReader.headerChecksum).
+    private static final int HEADER_FIELDS_OFFSET = 16;
+
+    private final Metric metric;
+    private final int nrVectors;
+    private final int dim;
+    private final int nrLists;
+    private final int nrSubspaces;
+    private final int nrCentroids;
+
+    // Subspace s covers the dimensions [subspaceStarts[s], subspaceStarts[s + 1]).
+    private final int[] subspaceStarts;
+
+    // List centroids (row-major, dim values each).
+    private final float[] listCentroids;
+
+    // Centroid c of subspace s is codebooks[c * dim + d], for the dimensions d of the subspace.
+    private final float[] codebooks;
+
+    // The vectors are stored by list: list l holds the positions [listStarts[l], listStarts[l + 1]).
+    private final int[] listStarts;
+    private final int[] ids;
+    private final byte[] codes;
+    private final float[] vectors;
+
+    private IvfPqIndex(Metric metric, int nrVectors, int dim, int nrLists, int nrSubspaces, int nrCentroids,
+                       int[] subspaceStarts, float[] listCentroids, float[] codebooks, int[] listStarts, int[] ids,
+                       byte[] codes, float[] vectors) {
+        this.metric = metric;
+        this.nrVectors = nrVectors;
+        this.dim = dim;
+        this.nrLists = nrLists;
+        this.nrSubspaces = nrSubspaces;
+        this.nrCentroids = nrCentroids;
+        this.subspaceStarts = subspaceStarts;
+        this.listCentroids = listCentroids;
+        this.codebooks = codebooks;
+        this.listStarts = listStarts;
+        this.ids = ids;
+        this.codes = codes;
+        this.vectors = vectors;
+    }
+
+    public Metric getMetric() {
+        return metric;
+    }
+
+    public int getNrVectors() {
+        return nrVectors;
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    public int getNrLists() {
+        return nrLists;
+    }
+
+    public List<Neighbour> search(float[] query, int k) {
+        return search(query, k, DEFAULT_NR_PROBES, DEFAULT_NR_RERANKED);
+    }
+
+    // Returns (approximately) the k vectors with the highest similarity to the query, best first. The ids are
+    // the indexes of the vectors the index was built from. With nrReranked = 0 the scores are the quantized ones.
+    public List<Neighbour> search(float[] query, int k, int nrProbes, int nrReranked) {
+        float[] q = prepareQuery(query);
+
+        TopNHeap probedLists = new TopNHeap(Math.min(Math.max(nrProbes, 1), nrLists));
+        float[] listScores = new float[nrLists];
+        for (int l = 0; l < nrLists; l++) {
+            listScores[l] = dot(q, 0, listCentroids, l * dim, dim);
+            probedLists.offer(listScores[l], l);
+        }
+        double[] ignored = new double[probedLists.size()];
+        int[] lists = new int[probedLists.size()];
+        probedLists.drain(ignored, lists);
+
+        // table[s * nrCentroids + c] = contribution of centroid c of subspace s to the score.
+        float[] table = new float[nrSubspaces * nrCentroids];
+        for (int s = 0; s < nrSubspaces; s++) {
+            int from = subspaceStarts[s];
+            int width = subspaceStarts[s + 1] - from;
+            for (int c = 0; c < nrCentroids; c++) {
+                table[s * nrCentroids + c] = dot(q, from, codebooks, c * dim + from, width);
+            }
+        }
+
+        TopNHeap candidates = new TopNHeap(Math.max(k, nrReranked));
+        for (int l : lists) {
+            for (int position = listStarts[l]; position < listStarts[l + 1]; position++) {
+                float score = listScores[l];
+                int codeOffset = position * nrSubspaces;
+                for (int s = 0; s < nrSubspaces; s++) {
+                    score += table[s * nrCentroids + (codes[codeOffset + s] & 0xFF)];
+                }
+                candidates.offer(score, position);
+            }
+        }
+
+        TopNHeap result = candidates;
+        if (nrReranked > 0) {
+            double[] approximateScores = new double[candidates.size()];
+            int[] positions = new int[candidates.size()];
+            candidates.drain(approximateScores, positions);
+            result = new TopNHeap(k);
+            for (int position : positions) {
+                result.offer(dot(q, 0, vectors, position * dim, dim), position);
+            }
+        }
+        return toNeighbours(result, k);
+    }
+
+    // Exact search over all the vectors (the reference for the recall of the approximate search).
+    public List<Neighbour> searchExact(float[] query, int k) {
+        float[] q = prepareQuery(query);
+        TopNHeap result = new TopNHeap(k);
+        for (int position = 0; position < nrVectors; position++) {
+            result.offer(dot(q, 0, vectors, position * dim, dim), position);
+        }
+        return toNeighbours(result, k);
+    }
+
+    private float[] prepareQuery(float[] query) {
+        if (query.length != dim) {
+            throw new IllegalArgumentException("Expected a query of " + dim + " dimensions, got " + query.length);
+        }
+        if (metric == Metric.COSINE) {
+            float[] result = query.clone();
+            normalize(result, 0, dim);
+            return result;
+        }
+        return query;
+    }
+
+    // Keeps the best k of the heap, mapping the positions to the vectors' ids.
+    private List<Neighbour> toNeighbours(TopNHeap heap, int k) {
+        double[] scores = new double[heap.size()];
+        int[] positions = new int[heap.size()];
+        heap.drain(scores, positions);
+
+        List<Neighbour> result = new ArrayList<>(Math.min(k, positions.length));
+        for (int i = 0; i < positions.length && i < k; i++) {
+            result.add(new Neighbour(ids[positions[i]], (float) scores[i]));
+        }
+        return result;
+    }
+
+    private static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float result = 0;
+        for (int d = 0; d < length; d++) {
+            result += a[aOffset + d] * b[bOffset + d];
+        }
+        return result;
+    }
+
+    // Scales vectors[offset, offset + length) to unit length (unless it's all zeros).
+    private static void normalize(float[] vectors, int offset, int length) {
+        double norm = Math.sqrt(dot(vectors, offset, vectors, offset, length));
+        if (norm > 0) {
+            for (int d = 0; d < length; d++) {
+                vectors[offset + d] /= norm;
+            }
+        }
+    }
+
+    // Writes the index. The file is written next to the target and then moved in place.
+    public void save(Path file) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            SectionWriter writer = new SectionWriter(channel, HEADER_SIZE);
+            writer.putInts(subspaceStarts);
+            writer.putFloats(listCentroids);
+            writer.putFloats(codebooks);
+            writer.putInts(listStarts);
+            writer.putInts(ids);
+            writer.putBytes(codes);
+            writer.putFloats(vectors);
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(0);
+            header.putInt(metric.ordinal());
+            header.putInt(nrVectors);
+            header.putInt(dim);
+            header.putInt(nrLists);
+            header.putInt(nrSubspaces);
+            header.putInt(nrCentroids);
+            header.clear();
+            header.putLong(8, SectionReader.headerChecksum(header, HEADER_FIELDS_OFFSET, writer.getChecksum()));
+            channel.write(header, 0);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Reads an index written by save. Throws an IOException if the file isn't a valid index.
+    public static IvfPqIndex load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + ": truncated header");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + ": unknown format");
+            }
+            long crc = header.getLong();
+            if (SectionReader.headerChecksum(header, HEADER_FIELDS_OFFSET, SectionReader.checksum(channel, HEADER_SIZE)) != crc) {
+                throw new IOException(file + ": checksum mismatch");
+            }
+            int metricOrdinal = header.getInt();
+            if (metricOrdinal < 0 || metricOrdinal >= Metric.values().length) {
+                throw new IOException(file + ": unknown metric " + metricOrdinal);
+            }
+            Metric metric = Metric.values()[metricOrdinal];
+            int nrVectors = header.getInt();
+            int dim = header.getInt();
+            int nrLists = header.getInt();
+            int nrSubspaces = header.getInt();
+            int nrCentroids = header.getInt();
+
+            SectionReader reader = new SectionReader(channel, HEADER_SIZE);
+            int[] subspaceStarts = reader.getInts(nrSubspaces + 1);
+            float[] listCentroids = reader.getFloats(nrLists * dim);
+            float[] codebooks = reader.getFloats(nrCentroids * dim);
+            int[] listStarts = reader.getInts(nrLists + 1);
+            int[] ids = reader.getInts(nrVectors);
+            byte[] codes = reader.getBytes(nrVectors * nrSubspaces);
+            float[] vectors = reader.getFloats(nrVectors * dim);
+            return new IvfPqIndex(metric, nrVectors, dim, nrLists, nrSubspaces, nrCentroids, subspaceStarts,
+                    listCentroids, codebooks, listStarts, ids, codes, vectors);
+        }
+    }
+
+    /**
+     * Builds an index. By default: inner product, about sqrt(n) lists, one subspace per 2 dimensions.
+     */
+    public static class Builder {
+
+        private Metric metric = Metric.INNER_PRODUCT;
+        private int nrLists;
+        private int nrSubspaces;
+        private int nrIterations = 10;
+        private int trainingSampleSize = 65536;
+        private long seed = 42;
+
+        public Builder metric(Metric metric) {
+            this.metric = metric;
+            return this;
+        }
+
+        public Builder nrLists(int nrLists) {
+            this.nrLists = nrLists;
+            return this;
+        }
+
+        public Builder nrSubspaces(int nrSubspaces) {
+            this.nrSubspaces = nrSubspaces;
+            return this;
+        }
+
+        // Nr of k-means iterations, for the lists and for every codebook.
+        public Builder nrIterations(int nrIterations) {
+            this.nrIterations = nrIterations;
+            return this;
+        }
+
+        // The k-means run on a random sample of at most that many vectors; then all the vectors are assigned.
+        public Builder trainingSampleSize(int trainingSampleSize) {
+            this.trainingSampleSize = trainingSampleSize;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        // Builds the index of the vectors (row-major, dim values each). The id of vector i is i.
+        public IvfPqIndex build(float[] vectors, int dim) {
+            if (dim <= 0 || vectors.length % dim != 0 || vectors.length == 0) {
+                throw new IllegalArgumentException("Expected a non empty array of " + dim + " dimensional vectors");
+            }
+            int n = vectors.length / dim;
+            int lists = Math.min(n, nrLists > 0 ? nrLists : (int) Math.max(1, Math.round(Math.sqrt(n))));
+            int subspaces = Math.min(dim, nrSubspaces > 0 ? nrSubspaces : (dim + 1) / 2);
+            int centroids = Math.min(MAX_NR_CENTROIDS, n);
+            Random random = new Random(seed);
+
+            float[] data = vectors.clone();
+            if (metric == Metric.COSINE) {
+                for (int i = 0; i < n; i++) {
+                    normalize(data, i * dim, dim);
+                }
+            }
+            int sampleSize = Math.min(n, Math.max(trainingSampleSize, Math.max(lists, centroids)));
+            int[] sample = random.ints(0, n).distinct().limit(sampleSize).toArray();
+
+            // Coarse lists.
+            KMeans coarse = new KMeans(data, dim, 0, dim);
+            float[] listCentroids = coarse.train(sample, lists, nrIterations, random);
+            int[] assignments = new int[n];
+            int[] listStarts = new int[lists + 1];
+            for (int i = 0; i < n; i++) {
+                assignments[i] = coarse.nearest(i, listCentroids, lists);
+                listStarts[assignments[i] + 1]++;
+            }
+            for (int l = 0; l < lists; l++) {
+                listStarts[l + 1] += listStarts[l];
+            }
+
+            // Residuals, and one codebook per subspace.
+            float[] residuals = new float[n * dim];
+            for (int i = 0; i < n; i++) {
+                for (int d = 0; d < dim; d++) {
+                    residuals[i * dim + d] = data[i * dim + d] - listCentroids[assignments[i] * dim + d];
+                }
+            }
+            int[] subspaceStarts = new int[subspaces + 1];
+            for (int s = 0; s <= subspaces; s++) {
+                subspaceStarts[s] = s * dim / subspaces;
+            }
+            float[] codebooks = new float[centroids * dim];
+            byte[] vectorCodes = new byte[n * subspaces];
+            for (int s = 0; s < subspaces; s++) {
+                int from = subspaceStarts[s];
+                int width = subspaceStarts[s + 1] - from;
+                KMeans quantizer = new KMeans(residuals, dim, from, subspaceStarts[s + 1]);
+                float[] codebook = quantizer.train(sample, centroids, nrIterations, random);
+                for (int c = 0; c < centroids; c++) {
+                    System.arraycopy(codebook, c * width, codebooks, c * dim + from, width);
+                }
+                for (int i = 0; i < n; i++) {
+                    vectorCodes[i * subspaces + s] = (byte) quantizer.nearest(i, codebook, centroids);
+                }
+            }
+
+            // Lays the vectors out by list.
+            int[] next = listStarts.clone();
+            int[] ids = new int[n];
+            byte[] codes = new byte[n * subspaces];
+            float[] listVectors = new float[n * dim];
+            for (int i = 0; i < n; i++) {
+                int position = next[assignments[i]]++;
+                ids[position] = i;
+                System.arraycopy(vectorCodes, i * subspaces, codes, position * subspaces, subspaces);
+                System.arraycopy(data, i * dim, listVectors, position * dim, dim);
+            }
+
+            return new IvfPqIndex(metric, n, dim, lists, subspaces, centroids, subspaceStarts, listCentroids,
+                    codebooks, listStarts, ids, codes, listVectors);
+        }
+    }
+}
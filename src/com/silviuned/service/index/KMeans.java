@@ -0,0 +1,91 @@
+package com.silviuned.service.index;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Lloyd's k-means over a range of columns [from, to) of row-major float vectors (dim values per vector).
+ * Used for the coarse lists of the {@link IvfPqIndex} (all the columns) and for its product quantization
+ * codebooks (the columns of one subspace).
+ */
+class KMeans {
+
+    private final float[] vectors;
+    private final int dim;
+    private final int from;
+    private final int to;
+
+    KMeans(float[] vectors, int dim, int from, int to) {
+        this.vectors = vectors;
+        this.dim = dim;
+        this.from = from;
+        this.to = to;
+    }
+
+    // Returns k centroids (row-major, to - from values each), trained on the provided vectors (indexes).
+    // The centroids start as distinct random vectors; empty clusters are restarted from a random vector.
+    float[] train(int[] sample, int k, int nrIterations, Random random) {
+        int width = to - from;
+        float[] centroids = new float[k * width];
+        int[] initial = random.ints(0, sample.length).distinct().limit(k).toArray();
+        for (int c = 0; c < k; c++) {
+            System.arraycopy(vectors, sample[initial[c]] * dim + from, centroids, c * width, width);
+        }
+
+        int[] assignments = new int[sample.length];
+        double[] sums = new double[k * width];
+        int[] counts = new int[k];
+        for (int iteration = 0; iteration < nrIterations; iteration++) {
+            boolean changed = false;
+            for (int i = 0; i < sample.length; i++) {
+                int nearest = nearest(sample[i], centroids, k);
+                changed |= iteration == 0 || nearest != assignments[i];
+                assignments[i] = nearest;
+            }
+            if (!changed) {
+                break;
+            }
+
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < sample.length; i++) {
+                int offset = sample[i] * dim + from;
+                int centroidOffset = assignments[i] * width;
+                for (int d = 0; d < width; d++) {
+                    sums[centroidOffset + d] += vectors[offset + d];
+                }
+                counts[assignments[i]]++;
+            }
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) {
+                    System.arraycopy(vectors, sample[random.nextInt(sample.length)] * dim + from, centroids, c * width, width);
+                    continue;
+                }
+                for (int d = 0; d < width; d++) {
+                    centroids[c * width + d] = (float) (sums[c * width + d] / counts[c]);
+                }
+            }
+        }
+        return centroids;
+    }
+
+    // Returns the centroid closest (L2) to the columns of the vector.
+    int nearest(int vector, float[] centroids, int k) {
+        int width = to - from;
+        int offset = vector * dim + from;
+        int result = 0;
+        double best = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < k; c++) {
+            double distance = 0;
+            for (int d = 0; d < width; d++) {
+                double diff = vectors[offset + d] - centroids[c * width + d];
+                distance += diff * diff;
+            }
+            if (distance < best) {
+                best = distance;
+                result = c;
+            }
+        }
+        return result;
+    }
+}
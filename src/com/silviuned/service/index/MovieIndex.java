@@ -0,0 +1,123 @@
+package com.silviuned.service.index;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.algorithms.SvdAlgorithm;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link IvfPqIndex} over the movie factors of a trained {@link SvdAlgorithm}, for "movies similar to X" queries
+ * (with the COSINE metric) and for the candidate generation of top-N recommendations (INNER_PRODUCT metric).
+ *
+ * The candidates of a user are ranked by the plain dot product of the factors, which ignores the sigmoid of the
+ * first features; they are meant to be re-scored by the model. The results hold movie ids.
+ */
+public class MovieIndex {
+
+    private final SvdAlgorithm algorithm;
+    private final RatingMatrix ratings;
+    private final IvfPqIndex index;
+
+    private int nrProbes = IvfPqIndex.DEFAULT_NR_PROBES;
+    private int nrReranked = IvfPqIndex.DEFAULT_NR_RERANKED;
+
+    // Wraps an index of the algorithm's movie factors (built by build, or loaded from a file).
+    public MovieIndex(SvdAlgorithm algorithm, IvfPqIndex index) {
+        this.algorithm = algorithm;
+        this.ratings = algorithm.getDataManager().getRatings();
+        this.index = index;
+        if (index.getNrVectors() != ratings.getNrMovies() || index.getDim() != algorithm.getNrFeatures()) {
+            throw new IllegalArgumentException("The index (" + index.getNrVectors() + " x " + index.getDim()
+                    + ") doesn't match the model (" + ratings.getNrMovies() + " x " + algorithm.getNrFeatures() + ")");
+        }
+    }
+
+    public static MovieIndex build(SvdAlgorithm algorithm, IvfPqIndex.Builder builder) {
+        return new MovieIndex(algorithm, builder.build(getMovieVectors(algorithm), algorithm.getNrFeatures()));
+    }
+
+    public static MovieIndex load(SvdAlgorithm algorithm, Path file) throws IOException {
+        return new MovieIndex(algorithm, IvfPqIndex.load(file));
+    }
+
+    public void save(Path file) throws IOException {
+        index.save(file);
+    }
+
+    // The movie factors, row-major by movie ordinal.
+    public static float[] getMovieVectors(SvdAlgorithm algorithm) {
+        int nrMovies = algorithm.getDataManager().getNrMovies();
+        int nrFeatures = algorithm.getNrFeatures();
+        float[] result = new float[nrMovies * nrFeatures];
+        for (int m = 0; m < nrMovies; m++) {
+            for (int f = 0; f < nrFeatures; f++) {
+                result[m * nrFeatures + f] = (float) algorithm.getMovieFeature(f, m);
+            }
+        }
+        return result;
+    }
+
+    // The user factors, row-major by user ordinal (to build a user index, or to query this one).
+    public static float[] getUserVectors(SvdAlgorithm algorithm) {
+        int nrUsers = algorithm.getDataManager().getNrUsers();
+        int nrFeatures = algorithm.getNrFeatures();
+        float[] result = new float[nrUsers * nrFeatures];
+        for (int u = 0; u < nrUsers; u++) {
+            for (int f = 0; f < nrFeatures; f++) {
+                result[u * nrFeatures + f] = (float) algorithm.getUserFeature(f, u);
+            }
+        }
+        return result;
+    }
+
+    public IvfPqIndex getIndex() {
+        return index;
+    }
+
+    // Recall / latency trade-off of the queries (see IvfPqIndex.search).
+    public void setSearchParameters(int nrProbes, int nrReranked) {
+        this.nrProbes = nrProbes;
+        this.nrReranked = nrReranked;
+    }
+
+    // Returns the k movies closest to the movie (not including itself), best first.
+    public List<Neighbour> similarMovies(int movieId, int k) {
+        int movie = ratings.getMovieOrdinal(movieId);
+        if (movie == -1) {
+            throw new IllegalArgumentException("Unknown movie: " + movieId);
+        }
+        float[] query = new float[index.getDim()];
+        for (int f = 0; f < query.length; f++) {
+            query[f] = (float) algorithm.getMovieFeature(f, movie);
+        }
+
+        List<Neighbour> result = new ArrayList<>(k);
+        for (Neighbour neighbour : index.search(query, k + 1, nrProbes, Math.max(nrReranked, k + 1))) {
+            if (neighbour.getId() != movie && result.size() < k) {
+                result.add(new Neighbour(ratings.getMovieId(neighbour.getId()), neighbour.getScore()));
+            }
+        }
+        return result;
+    }
+
+    // Returns the k movies with the highest factor dot product for the user, best first (rated movies included).
+    public List<Neighbour> candidates(int userId, int k) {
+        int user = ratings.getUserOrdinal(userId);
+        if (user == -1) {
+            throw new IllegalArgumentException("Unknown user: " + userId);
+        }
+        float[] query = new float[index.getDim()];
+        for (int f = 0; f < query.length; f++) {
+            query[f] = (float) algorithm.getUserFeature(f, user);
+        }
+
+        List<Neighbour> result = new ArrayList<>(k);
+        for (Neighbour neighbour : index.search(query, k, nrProbes, Math.max(nrReranked, k))) {
+            result.add(new Neighbour(ratings.getMovieId(neighbour.getId()), neighbour.getScore()));
+        }
+        return result;
+    }
+}
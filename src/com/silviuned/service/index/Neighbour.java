@@ -0,0 +1,28 @@
+package com.silviuned.service.index;
+
+/**
+ * A search result: the id of an indexed vector (or of the movie it stands for) and its similarity to the query.
+ */
+public class Neighbour {
+
+    private final int id;
+    private final double score;
+
+    public Neighbour(int id, double score) {
+        this.id = id;
+        this.score = score;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return id + ": " + score;
+    }
+}
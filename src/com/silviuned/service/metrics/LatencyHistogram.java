@@ -0,0 +1,115 @@
+package com.silviuned.service.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies (in nanoseconds) with a bounded relative error, like HdrHistogram's: the values below
+ * 128 have a bucket each, and every power of two above is split in 64 linear buckets, so a value is reported with
+ * an error below 1 / 64. The buckets cover all the positive longs in a fixed array of 3712 counters.
+ * Recording is thread safe and doesn't allocate.
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NR_BUCKETS = LINEAR_BUCKETS + (62 - 7 + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NR_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // Records a value (negative values are recorded as 0).
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(getBucket(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    // The bucket of a value: the value itself below 128, then 64 buckets per power of two.
+    private static int getBucket(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (msb - 7) * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+    }
+
+    // The highest value which falls in the bucket.
+    private static long getHighestValue(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int group = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS;
+        int shift = group + 7 - SUB_BUCKET_BITS;
+        long lowest = (long) ((bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n > 0 ? (double) sum.sum() / n : 0;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // The value below which the percentile (in [0, 100]) of the recorded values fall, up to the bucket precision.
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[NR_BUCKETS];
+        for (int b = 0; b < NR_BUCKETS; b++) {
+            snapshot[b] = counts.get(b);
+            total += snapshot[b];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long cumulative = 0;
+        for (int b = 0; b < NR_BUCKETS; b++) {
+            cumulative += snapshot[b];
+            if (cumulative >= target) {
+                return Math.min(getHighestValue(b), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    // The count, the mean, the usual percentiles and the max, by name (values in nanoseconds).
+    public Map<String, Object> getSummary() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", getCount());
+        result.put("mean", getMean());
+        result.put("p50", getValueAtPercentile(50));
+        result.put("p90", getValueAtPercentile(90));
+        result.put("p99", getValueAtPercentile(99));
+        result.put("p999", getValueAtPercentile(99.9));
+        result.put("max", getMax());
+        return result;
+    }
+
+    public void reset() {
+        for (int b = 0; b < NR_BUCKETS; b++) {
+            counts.set(b, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+}
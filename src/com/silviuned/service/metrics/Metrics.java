@@ -0,0 +1,103 @@
+package com.silviuned.service.metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of training and scoring, written as JSON lines to the file of the "cf.metrics.log" system property
+ * (e.g. -Dcf.metrics.log=metrics.jsonl). Without the property, the metrics are off: ENABLED is a constant, so the
+ * counters and timers of the hot paths (guarded by it) are compiled away.
+ *
+ * The JDK Flight Recorder events (see TrainingRecorder) don't depend on the property: they cost nothing unless a
+ * recording is running (e.g. -XX:StartFlightRecording=filename=training.jfr).
+ */
+public class Metrics {
+
+    private static final String LOG_FILE = System.getProperty("cf.metrics.log");
+
+    public static final boolean ENABLED = LOG_FILE != null;
+
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private static BufferedWriter writer;
+
+    // Returns the named histogram (created on first use).
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    // Returns the named counter (created on first use).
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    // Writes a log line: {"type": type, "time": <epoch millis>, fields...}. Does nothing when the metrics are off.
+    public static synchronized void log(String type, Map<String, Object> fields) {
+        if (!ENABLED) {
+            return;
+        }
+        StringBuilder line = new StringBuilder("{\"type\": ").append(toJson(type))
+                .append(", \"time\": ").append(System.currentTimeMillis());
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            line.append(", ").append(toJson(field.getKey())).append(": ").append(toJson(field.getValue()));
+        }
+        line.append('}');
+        try {
+            if (writer == null) {
+                writer = Files.newBufferedWriter(Paths.get(LOG_FILE), StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+            }
+            writer.write(line.toString());
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Logs the value of every counter, and a summary of every histogram (see LatencyHistogram.getSummary).
+    public static void logSummary() {
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("name", counter.getKey());
+            fields.put("value", counter.getValue().sum());
+            log("counter", fields);
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("name", histogram.getKey());
+            fields.putAll(histogram.getValue().getSummary());
+            log("latency", fields);
+        }
+    }
+
+    private static String toJson(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            return Double.isNaN(number) || Double.isInfinite(number) ? "null" : Double.toString(number);
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        StringBuilder result = new StringBuilder("\"");
+        for (char c : String.valueOf(value).toCharArray()) {
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+}
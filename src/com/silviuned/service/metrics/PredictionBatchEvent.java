@@ -0,0 +1,25 @@
+package com.silviuned.service.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A call to Algorithm.predictRatings. See ScoringMetrics.
+ */
+@Name("com.silviuned.PredictionBatch")
+@Label("Prediction Batch")
+@Category({"Collaborative Filtering", "Scoring"})
+@Description("The batched prediction of ratings by an algorithm")
+@StackTrace(false)
+class PredictionBatchEvent extends Event {
+
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Ratings")
+    int ratings;
+}
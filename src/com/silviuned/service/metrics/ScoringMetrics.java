@@ -0,0 +1,35 @@
+package com.silviuned.service.metrics;
+
+import com.silviuned.service.algorithms.Algorithm;
+
+/**
+ * Times the batched predictions: every call is a PredictionBatchEvent for the JDK Flight Recorder and, when the
+ * metrics are on, a sample of the "predictRatings.<algorithm class>" histogram (the latency of the batch, in
+ * nanoseconds).
+ */
+public class ScoringMetrics {
+
+    // Same as algorithm.predictRatings(movieIds, userIds, predictions, n), timed.
+    public static void predictRatings(Algorithm algorithm, int[] movieIds, int[] userIds, double[] predictions, int n) {
+        PredictionBatchEvent event = new PredictionBatchEvent();
+        if (!Metrics.ENABLED && !event.isEnabled()) {
+            algorithm.predictRatings(movieIds, userIds, predictions, n);
+            return;
+        }
+
+        event.begin();
+        long startTime = System.nanoTime();
+        algorithm.predictRatings(movieIds, userIds, predictions, n);
+        long latency = System.nanoTime() - startTime;
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.algorithm = algorithm.getClass().getSimpleName();
+            event.ratings = n;
+            event.commit();
+        }
+        if (Metrics.ENABLED) {
+            Metrics.histogram("predictRatings." + algorithm.getClass().getSimpleName()).record(latency);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.silviuned.service.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A training epoch (an SVD pass over the ratings for a feature, or an EM / ALS iteration). See TrainingRecorder.
+ */
+@Name("com.silviuned.TrainingEpoch")
+@Label("Training Epoch")
+@Category({"Collaborative Filtering", "Training"})
+@Description("A pass of a training algorithm over the ratings")
+@StackTrace(false)
+class TrainingEpochEvent extends Event {
+
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Feature")
+    @Description("The trained feature (SVD), or -1")
+    int feature;
+
+    @Label("Epoch")
+    @Description("The epoch of the feature (SVD), or the iteration")
+    int epoch;
+
+    @Label("Ratings")
+    long ratings;
+
+    @Label("Ratings Per Second")
+    double ratingsPerSecond;
+
+    @Label("Error")
+    @Description("The mean squared error measured at the end of the epoch")
+    double error;
+
+    @Label("Allocated")
+    @Description("The bytes allocated by the live threads during the epoch")
+    @DataAmount
+    long allocated;
+
+    @Label("GC Count")
+    long gcCount;
+
+    @Label("GC Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long gcTime;
+}
@@ -0,0 +1,32 @@
+package com.silviuned.service.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The training of an SVD feature, all its epochs included. See TrainingRecorder.
+ */
+@Name("com.silviuned.TrainingFeature")
+@Label("Training Feature")
+@Category({"Collaborative Filtering", "Training"})
+@Description("The training of a feature, until its error stopped decreasing")
+@StackTrace(false)
+class TrainingFeatureEvent extends Event {
+
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Feature")
+    int feature;
+
+    @Label("Epochs")
+    int epochs;
+
+    @Label("Error")
+    @Description("The mean squared error measured at the end of the last epoch")
+    double error;
+}
@@ -0,0 +1,159 @@
+package com.silviuned.service.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the epochs (and the SVD features) of a training run: their duration, the throughput in ratings per
+ * second, the error, and the bytes allocated and the garbage collections during the epoch. Every epoch is a
+ * TrainingEpochEvent for the JDK Flight Recorder and, when the metrics are on, an "epoch" line of the metrics log;
+ * the successive lines are the error trajectory of the run.
+ *
+ * When neither is on, an epoch costs a couple of nanoTime calls. The allocations are the ones of the live threads
+ * (the JVM doesn't keep the counts of the threads that ended).
+ */
+public class TrainingRecorder {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final List<GarbageCollectorMXBean> COLLECTORS = ManagementFactory.getGarbageCollectorMXBeans();
+
+    private final String algorithm;
+    private final long nrRatings;
+
+    private TrainingEpochEvent epochEvent;
+    private boolean sampling;
+    private long epochStartTime;
+    private long epochStartAllocated;
+    private long epochStartGcCount;
+    private long epochStartGcTime;
+
+    private TrainingFeatureEvent featureEvent;
+    private long featureStartTime;
+
+    // nrRatings: the ratings visited by an epoch.
+    public TrainingRecorder(String algorithm, long nrRatings) {
+        this.algorithm = algorithm;
+        this.nrRatings = nrRatings;
+    }
+
+    public void beginEpoch() {
+        epochEvent = new TrainingEpochEvent();
+        sampling = Metrics.ENABLED || epochEvent.isEnabled();
+        if (sampling) {
+            epochStartAllocated = getAllocatedBytes();
+            epochStartGcCount = getGcCount();
+            epochStartGcTime = getGcTime();
+        }
+        epochEvent.begin();
+        epochStartTime = System.nanoTime();
+    }
+
+    // feature is -1 for the algorithms without features. error is the mean squared error of the epoch.
+    public void endEpoch(int feature, int epoch, double error) {
+        double seconds = (System.nanoTime() - epochStartTime) / 1e9;
+        epochEvent.end();
+        if (!sampling) {
+            return;
+        }
+        long allocated = Math.max(0, getAllocatedBytes() - epochStartAllocated);
+        long gcCount = getGcCount() - epochStartGcCount;
+        long gcTime = getGcTime() - epochStartGcTime;
+        double ratingsPerSecond = seconds > 0 ? nrRatings / seconds : 0;
+
+        if (epochEvent.shouldCommit()) {
+            epochEvent.algorithm = algorithm;
+            epochEvent.feature = feature;
+            epochEvent.epoch = epoch;
+            epochEvent.ratings = nrRatings;
+            epochEvent.ratingsPerSecond = ratingsPerSecond;
+            epochEvent.error = error;
+            epochEvent.allocated = allocated;
+            epochEvent.gcCount = gcCount;
+            epochEvent.gcTime = gcTime;
+            epochEvent.commit();
+        }
+        if (Metrics.ENABLED) {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("algorithm", algorithm);
+            fields.put("feature", feature);
+            fields.put("epoch", epoch);
+            fields.put("seconds", seconds);
+            fields.put("ratings", nrRatings);
+            fields.put("ratingsPerSecond", ratingsPerSecond);
+            fields.put("error", error);
+            fields.put("rmse", Math.sqrt(error));
+            fields.put("allocatedBytes", allocated);
+            fields.put("gcCount", gcCount);
+            fields.put("gcMillis", gcTime);
+            Metrics.log("epoch", fields);
+        }
+    }
+
+    public void beginFeature() {
+        featureEvent = new TrainingFeatureEvent();
+        featureEvent.begin();
+        featureStartTime = System.nanoTime();
+    }
+
+    // nrEpochs: the epochs the feature took. error is the mean squared error of its last epoch.
+    public void endFeature(int feature, int nrEpochs, double error) {
+        double seconds = (System.nanoTime() - featureStartTime) / 1e9;
+        featureEvent.end();
+        if (featureEvent.shouldCommit()) {
+            featureEvent.algorithm = algorithm;
+            featureEvent.feature = feature;
+            featureEvent.epochs = nrEpochs;
+            featureEvent.error = error;
+            featureEvent.commit();
+        }
+        if (Metrics.ENABLED) {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("algorithm", algorithm);
+            fields.put("feature", feature);
+            fields.put("epochs", nrEpochs);
+            fields.put("seconds", seconds);
+            fields.put("error", error);
+            fields.put("rmse", Math.sqrt(error));
+            Metrics.log("feature", fields);
+        }
+    }
+
+    // The bytes allocated so far by the live threads, or 0 if the JVM doesn't count them.
+    private static long getAllocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return 0;
+        }
+        long result = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                result += bytes;
+            }
+        }
+        return result;
+    }
+
+    private static long getGcCount() {
+        long result = 0;
+        for (GarbageCollectorMXBean collector : COLLECTORS) {
+            result += Math.max(0, collector.getCollectionCount());
+        }
+        return result;
+    }
+
+    // In milliseconds.
+    private static long getGcTime() {
+        long result = 0;
+        for (GarbageCollectorMXBean collector : COLLECTORS) {
+            result += Math.max(0, collector.getCollectionTime());
+        }
+        return result;
+    }
+}
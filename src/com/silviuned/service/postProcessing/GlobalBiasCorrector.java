@@ -1,11 +1,9 @@
 package com.silviuned.service.postProcessing;
 
-import com.silviuned.model.UserRating;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.BatchPredictor;
 import com.silviuned.service.algorithms.Algorithm;
 
-import java.util.List;
-import java.util.Map;
-
 /**
  * Created by Silviu on 6/19/2017.
  * Reduces the RMSE, by shifting the predictions with a constant 'correction'.
@@ -15,29 +13,48 @@ public class GlobalBiasCorrector {
 
     private final double correction;
 
-    public GlobalBiasCorrector(Map<Integer, List<UserRating>> testData, Algorithm algorithm, ItemBasedCorrector itemBasedCorrector) {
-        int count = 0;
-        double predictionMean = 0;
-        double actualMean = 0;
+    public GlobalBiasCorrector(RatingMatrix testData, Algorithm algorithm, ItemBasedCorrector itemBasedCorrector) {
+        double[] sums = new double[2];
 
-        for (Map.Entry<Integer, List<UserRating>> entry : testData.entrySet()) {
-            int movieId = entry.getKey();
-            for (UserRating userRating : entry.getValue()) {
-                actualMean += userRating.getRating();
-                double temp = algorithm.predictRating(movieId, userRating.getUserId());
+        BatchPredictor.forEachBatch(algorithm, testData, (m, from, to, predictions) -> {
+            int movieId = testData.getMovieId(m);
+            for (int i = from; i < to; i++) {
+                sums[0] += testData.getRating(i);
+                double temp = predictions[i - from];
                 if (itemBasedCorrector != null) {
-                    predictionMean += itemBasedCorrector.correct(movieId, temp);
+                    sums[1] += itemBasedCorrector.correct(movieId, temp);
                 } else {
-                    predictionMean += temp;
+                    sums[1] += temp;
                 }
-
-                count++;
             }
-        }
+        });
+        double actualMean = sums[0];
+        double predictionMean = sums[1];
+        int count = testData.getNrRatings();
 
         correction = (actualMean - predictionMean) / count;
     }
 
+    // Fits the corrector out of the (already corrected) predictions of the test data: predictions[i] is the
+    // prediction of the rating found at the movie-major index i.
+    public static GlobalBiasCorrector fit(RatingMatrix testData, double[] predictions) {
+        double actualMean = 0;
+        double predictionMean = 0;
+        for (int i = 0; i < testData.getNrRatings(); i++) {
+            actualMean += testData.getRating(i);
+            predictionMean += predictions[i];
+        }
+        return new GlobalBiasCorrector((actualMean - predictionMean) / testData.getNrRatings());
+    }
+
+    public GlobalBiasCorrector(double correction) {
+        this.correction = correction;
+    }
+
+    public double getCorrection() {
+        return correction;
+    }
+
     public double correct(double prediction) {
         return prediction + correction;
     }
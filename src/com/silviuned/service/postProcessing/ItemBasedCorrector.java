@@ -1,13 +1,10 @@
 package com.silviuned.service.postProcessing;
 
-import com.silviuned.model.UserRating;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.BatchPredictor;
 import com.silviuned.service.algorithms.Algorithm;
 import com.silviuned.service.data.DataManager;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 /**
  * Created by Silviu on 6/18/2017.
  * Reduces the RMSE, by shifting the predictions.
@@ -16,27 +13,65 @@ import java.util.Map;
  */
 public class ItemBasedCorrector {
 
-    private Map<Integer, Double> movieAveragePrediction = new HashMap<>();
+    private final RatingMatrix ratings;
+
+    // Correction of every movie of the training data, by movie ordinal.
+    private final double[] movieCorrections;
 
     public ItemBasedCorrector(DataManager dataManager, Algorithm algorithm) {
-        for (Map.Entry<Integer, List<UserRating>> entry : dataManager.getData().entrySet()) {
-            int movieId = entry.getKey();
-            double ratingMean = dataManager.getAverageRating(movieId);
-            double predictionMean = 0;
-            int count = 0;
-            for (UserRating userRating : entry.getValue()) {
-                double prediction = algorithm.predictRating(movieId, userRating.getUserId());
-                predictionMean += prediction;
-                count++;
+        this(dataManager, getCorrections(dataManager, getPredictionSums(dataManager.getRatings(), algorithm)));
+    }
+
+    // Restores a corrector from its corrections (see getMovieCorrections).
+    public ItemBasedCorrector(DataManager dataManager, double[] movieCorrections) {
+        this.ratings = dataManager.getRatings();
+        this.movieCorrections = movieCorrections;
+    }
+
+    // Fits the corrector out of the sums of the predictions of every movie's training ratings (by movie ordinal),
+    // summed in the movie-major order.
+    public static ItemBasedCorrector fit(DataManager dataManager, double[] predictionSums) {
+        return new ItemBasedCorrector(dataManager, getCorrections(dataManager, predictionSums));
+    }
+
+    private static double[] getPredictionSums(RatingMatrix ratings, Algorithm algorithm) {
+        // The predictions of a movie come in one or more consecutive batches.
+        double[] predictionSums = new double[ratings.getNrMovies()];
+        BatchPredictor.forEachBatch(algorithm, ratings, (m, from, to, predictions) -> {
+            double sum = predictionSums[m];
+            for (int k = 0; k < to - from; k++) {
+                sum += predictions[k];
             }
-            predictionMean /= count;
-            movieAveragePrediction.put(movieId, ratingMean - predictionMean);
+            predictionSums[m] = sum;
+        });
+        return predictionSums;
+    }
+
+    private static double[] getCorrections(DataManager dataManager, double[] predictionSums) {
+        RatingMatrix ratings = dataManager.getRatings();
+        double[] result = new double[ratings.getNrMovies()];
+        for (int m = 0; m < ratings.getNrMovies(); m++) {
+            double ratingMean = dataManager.getAverageRating(ratings.getMovieId(m));
+            double predictionMean = predictionSums[m] / ratings.getMovieRatingCount(m);
+            result[m] = ratingMean - predictionMean;
         }
+        return result;
+    }
+
+    public double[] getMovieCorrections() {
+        return movieCorrections;
+    }
+
+    // The correction of the movie's predictions (0 for a movie that isn't in the training data).
+    public double getCorrection(int movieId) {
+        int movie = ratings.getMovieOrdinal(movieId);
+        return movie != -1 ? movieCorrections[movie] : 0;
     }
 
     public double correct(int movieId, double prediction) {
-        if (movieAveragePrediction.containsKey(movieId)) {
-            return prediction + movieAveragePrediction.get(movieId);
+        int movie = ratings.getMovieOrdinal(movieId);
+        if (movie != -1) {
+            return prediction + movieCorrections[movie];
         } else {
             return prediction;
         }
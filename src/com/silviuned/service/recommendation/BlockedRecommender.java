@@ -0,0 +1,166 @@
+package com.silviuned.service.recommendation;
+
+import com.silviuned.model.RatingLog;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.utils.TopNHeap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Top-N search over blocks of similar movies (blocked maximum inner product search).
+ *
+ * The movies are laid out in an order chosen by the subclass (usually {@link #treeOrder}), and cut in blocks of
+ * BLOCK_SIZE movies. For a user,
+ * the subclass provides an upper bound of the scores of every block, built from the per-block extremes of the
+ * movie factors. The blocks are visited from the highest bound down, and a block is skipped when its bound can't
+ * beat the n-th best score found so far. Since the bounds are never below the real scores, the result is the
+ * same as the one of the exhaustive search.
+ *
+ * The scores are the models' predictions before the [0, 5] truncation (which would make the best movies tie);
+ * the recommendations hold the truncated predictions.
+ */
+public abstract class BlockedRecommender implements Recommender {
+
+    protected static final int BLOCK_SIZE = 32;
+
+    protected final RatingMatrix ratings;
+    private final RatingLog addedRatings;
+
+    // movieOrder[position] = movie ordinal. Block b holds the positions [b * BLOCK_SIZE, (b + 1) * BLOCK_SIZE).
+    protected final int[] movieOrder;
+    protected final int nrBlocks;
+
+    // Used for the users who are not in the training data.
+    private final Recommender fallback;
+
+    protected BlockedRecommender(Algorithm algorithm, int[] movieOrder) {
+        this.ratings = algorithm.getDataManager().getRatings();
+        this.addedRatings = algorithm.getDataManager().getAddedRatings();
+        this.movieOrder = movieOrder;
+        this.nrBlocks = (movieOrder.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.fallback = new ExhaustiveRecommender(algorithm);
+    }
+
+    // Scores the movies for a single user. Created for every request, so it can hold the user's factors.
+    protected interface UserScorer {
+
+        // Upper bound of the scores of the block's movies.
+        double bound(int block);
+
+        // Score of the movie found at the position.
+        double score(int position);
+    }
+
+    protected abstract UserScorer getScorer(int user);
+
+    @Override
+    public List<Recommendation> recommend(int userId, int n) {
+        int user = ratings.getUserOrdinal(userId);
+        if (user == -1) {
+            return fallback.recommend(userId, n);
+        }
+
+        BitSet rated = new BitSet(ratings.getNrMovies());
+        for (int j = ratings.getUserStart(user); j < ratings.getUserEnd(user); j++) {
+            rated.set(ratings.getUserMovie(j));
+        }
+        for (int i = addedRatings.getUserHead(user); i != -1; i = addedRatings.getNextOfUser(i)) {
+            rated.set(addedRatings.getMovie(i));
+        }
+
+        UserScorer scorer = getScorer(user);
+        double[] bounds = new double[nrBlocks];
+        for (int b = 0; b < nrBlocks; b++) {
+            bounds[b] = scorer.bound(b);
+        }
+
+        TopNHeap heap = new TopNHeap(Math.max(n, 0));
+        for (int b : sortByBound(bounds)) {
+            if (bounds[b] < heap.threshold()) {
+                continue;
+            }
+            for (int position = b * BLOCK_SIZE, end = Math.min(position + BLOCK_SIZE, movieOrder.length); position < end; position++) {
+                int movie = movieOrder[position];
+                if (!rated.get(movie)) {
+                    heap.offer(scorer.score(position), movie);
+                }
+            }
+        }
+        return Recommendation.fromHeap(heap, ratings);
+    }
+
+    // Returns the blocks ordered by (approximately) decreasing bound. The order only affects how soon the
+    // threshold rises, so the bounds are rounded to floats to pack them with the block in a single sortable key.
+    private static int[] sortByBound(double[] bounds) {
+        long[] keys = new long[bounds.length];
+        for (int b = 0; b < bounds.length; b++) {
+            int bits = Float.floatToIntBits((float) -bounds[b]);
+            // Flips the float's bits so that the signed ints compare like the floats.
+            int sortable = bits >= 0 ? bits : bits ^ Integer.MAX_VALUE;
+            keys[b] = ((long) sortable << 32) | b;
+        }
+        Arrays.sort(keys);
+
+        int[] result = new int[bounds.length];
+        for (int k = 0; k < keys.length; k++) {
+            result[k] = (int) keys[k];
+        }
+        return result;
+    }
+
+    // Value of a movie (ordinal) along one of the model's dimensions (a feature, a group...).
+    protected interface MovieValues {
+
+        double get(int dimension, int movie);
+    }
+
+    // Lays the movies out like the leaves of a k-d tree: the movies are split in two halves along the dimension
+    // with the widest range, recursively, until the halves fit in a block. Neighbouring movies end up in the
+    // same block, which keeps the per-block extremes (and so the bounds) tight.
+    protected static int[] treeOrder(int nrMovies, int nrDimensions, MovieValues values) {
+        int[] result = new int[nrMovies];
+        for (int m = 0; m < nrMovies; m++) {
+            result[m] = m;
+        }
+        split(result, 0, nrMovies, nrDimensions, values);
+        return result;
+    }
+
+    // Orders the movies [from, to) of the array. The halves are cut at a multiple of the block size.
+    private static void split(int[] movies, int from, int to, int nrDimensions, MovieValues values) {
+        if (to - from <= BLOCK_SIZE || nrDimensions == 0) {
+            return;
+        }
+
+        int widestDimension = 0;
+        double widestRange = -1;
+        for (int d = 0; d < nrDimensions; d++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int k = from; k < to; k++) {
+                double value = values.get(d, movies[k]);
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            if (max - min > widestRange) {
+                widestRange = max - min;
+                widestDimension = d;
+            }
+        }
+
+        int dimension = widestDimension;
+        int[] sorted = Arrays.stream(movies, from, to).boxed()
+                .sorted(Comparator.comparingDouble(m -> values.get(dimension, m)))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        System.arraycopy(sorted, 0, movies, from, sorted.length);
+
+        int middle = from + ((to - from) / 2 + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+        split(movies, from, middle, nrDimensions, values);
+        split(movies, middle, to, nrDimensions, values);
+    }
+}
@@ -0,0 +1,72 @@
+package com.silviuned.service.recommendation;
+
+import com.silviuned.service.algorithms.EmAlgorithm;
+
+/**
+ * Pruned top-N search for a trained {@link EmAlgorithm}.
+ *
+ * The blocks are the leaves of a k-d tree over the movies' group probabilities. The group
+ * means of a user are never negative, so the score of a block's movie is at most the sum over the groups of the
+ * block's highest probability times the user's mean. The probabilities (and the bounds) are copied when the
+ * recommender is created, so it has to be recreated after the model is trained further.
+ */
+public class EmRecommender extends BlockedRecommender {
+
+    private final EmAlgorithm algorithm;
+    private final int nrGroups;
+
+    // movieProbabilities[position * nrGroups + g]: the probabilities of a movie are contiguous.
+    private final double[] movieProbabilities;
+
+    // Highest probability of every group over the movies of a block: blockMax[block * nrGroups + g].
+    private final double[] blockMax;
+
+    public EmRecommender(EmAlgorithm algorithm) {
+        super(algorithm, treeOrder(algorithm.getDataManager().getNrMovies(), algorithm.getNrGroups(),
+                (g, m) -> algorithm.getGroupProbability(m, g)));
+        this.algorithm = algorithm;
+        this.nrGroups = algorithm.getNrGroups();
+
+        movieProbabilities = new double[movieOrder.length * nrGroups];
+        blockMax = new double[nrBlocks * nrGroups];
+        for (int position = 0; position < movieOrder.length; position++) {
+            int blockOffset = position / BLOCK_SIZE * nrGroups;
+            for (int g = 0; g < nrGroups; g++) {
+                double value = algorithm.getGroupProbability(movieOrder[position], g);
+                movieProbabilities[position * nrGroups + g] = value;
+                blockMax[blockOffset + g] = Math.max(blockMax[blockOffset + g], value);
+            }
+        }
+    }
+
+    @Override
+    protected UserScorer getScorer(int user) {
+        double[] userMeans = new double[nrGroups];
+        for (int g = 0; g < nrGroups; g++) {
+            userMeans[g] = algorithm.getGroupMean(user, g);
+        }
+
+        return new UserScorer() {
+            @Override
+            public double bound(int block) {
+                int offset = block * nrGroups;
+                double result = 0;
+                for (int g = 0; g < nrGroups; g++) {
+                    result += blockMax[offset + g] * userMeans[g];
+                }
+                return result;
+            }
+
+            // Same sum, in the same order, as EmAlgorithm's prediction.
+            @Override
+            public double score(int position) {
+                int offset = position * nrGroups;
+                double result = 0;
+                for (int g = 0; g < nrGroups; g++) {
+                    result += movieProbabilities[offset + g] * userMeans[g];
+                }
+                return result;
+            }
+        };
+    }
+}
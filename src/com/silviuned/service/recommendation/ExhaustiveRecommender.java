@@ -0,0 +1,65 @@
+package com.silviuned.service.recommendation;
+
+import com.silviuned.model.RatingLog;
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.utils.TopNHeap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Scores every movie for the user with the batched prediction API, and keeps the best unrated ones (in the matrix
+ * or among the added ratings).
+ * Works with any algorithm; it's also the reference the pruned recommenders are checked against.
+ */
+public class ExhaustiveRecommender implements Recommender {
+
+    private final Algorithm algorithm;
+    private final RatingMatrix ratings;
+    private final RatingLog addedRatings;
+    private final int[] movieIds;
+
+    public ExhaustiveRecommender(Algorithm algorithm) {
+        this.algorithm = algorithm;
+        this.ratings = algorithm.getDataManager().getRatings();
+        this.addedRatings = algorithm.getDataManager().getAddedRatings();
+        movieIds = new int[ratings.getNrMovies()];
+        for (int m = 0; m < movieIds.length; m++) {
+            movieIds[m] = ratings.getMovieId(m);
+        }
+    }
+
+    @Override
+    public List<Recommendation> recommend(int userId, int n) {
+        int[] userIds = new int[movieIds.length];
+        Arrays.fill(userIds, userId);
+        double[] predictions = new double[movieIds.length];
+        algorithm.predictRatings(movieIds, userIds, predictions);
+
+        // The user's movies are sorted by ordinal, like the candidates.
+        int user = ratings.getUserOrdinal(userId);
+        int next = user != -1 ? ratings.getUserStart(user) : 0;
+        int end = user != -1 ? ratings.getUserEnd(user) : 0;
+        // The movies the user rated after loading (see DataManager.addRating) aren't in the matrix.
+        BitSet added = new BitSet();
+        for (int i = user != -1 ? addedRatings.getUserHead(user) : -1; i != -1; i = addedRatings.getNextOfUser(i)) {
+            added.set(addedRatings.getMovie(i));
+        }
+
+        TopNHeap heap = new TopNHeap(Math.max(n, 0));
+        for (int m = 0; m < movieIds.length; m++) {
+            if (next < end && ratings.getUserMovie(next) == m) {
+                next++;
+                continue;
+            }
+            if (added.get(m)) {
+                continue;
+            }
+            heap.offer(predictions[m], m);
+        }
+        return Recommendation.fromHeap(heap, ratings);
+    }
+}
+
@@ -0,0 +1,48 @@
+package com.silviuned.service.recommendation;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.postProcessing.PredictionTruncator;
+import com.silviuned.utils.TopNHeap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recommended movie, with the rating predicted for the user.
+ */
+public class Recommendation {
+
+    private final int movieId;
+    private final double predictedRating;
+
+    public Recommendation(int movieId, double predictedRating) {
+        this.movieId = movieId;
+        this.predictedRating = predictedRating;
+    }
+
+    public int getMovieId() {
+        return movieId;
+    }
+
+    public double getPredictedRating() {
+        return predictedRating;
+    }
+
+    // Empties a heap of (score, movie ordinal) candidates into a list of recommendations, best first. The scores
+    // are truncated to ratings.
+    static List<Recommendation> fromHeap(TopNHeap heap, RatingMatrix ratings) {
+        double[] scores = new double[heap.size()];
+        int[] movies = new int[heap.size()];
+        heap.drain(scores, movies);
+        List<Recommendation> result = new ArrayList<>(movies.length);
+        for (int k = 0; k < movies.length; k++) {
+            result.add(new Recommendation(ratings.getMovieId(movies[k]), PredictionTruncator.truncate(scores[k])));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return movieId + ": " + predictedRating;
+    }
+}
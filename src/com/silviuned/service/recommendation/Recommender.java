@@ -0,0 +1,29 @@
+package com.silviuned.service.recommendation;
+
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.algorithms.EmAlgorithm;
+import com.silviuned.service.algorithms.SvdAlgorithm;
+
+import java.util.List;
+
+/**
+ * Recommends the movies with the highest predicted ratings that the user hasn't rated yet.
+ * Implementations are thread safe: any nr of threads can ask for recommendations concurrently.
+ */
+public interface Recommender {
+
+    // Returns at most n movies the user didn't rate (in the training data or among the added ratings), best first.
+    List<Recommendation> recommend(int userId, int n);
+
+    // Returns a recommender for the trained algorithm. SVD and EM models get a pruned search;
+    // any other algorithm is scored exhaustively.
+    static Recommender create(Algorithm algorithm) {
+        if (algorithm instanceof SvdAlgorithm) {
+            return new SvdRecommender((SvdAlgorithm) algorithm);
+        } else if (algorithm instanceof EmAlgorithm) {
+            return new EmRecommender((EmAlgorithm) algorithm);
+        } else {
+            return new ExhaustiveRecommender(algorithm);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.silviuned.service.recommendation;
+
+import com.silviuned.service.algorithms.SvdAlgorithm;
+
+import java.util.Arrays;
+
+/**
+ * Pruned top-N search for a trained {@link SvdAlgorithm}.
+ *
+ * The blocks are the leaves of a k-d tree over the movie factors. A feature's contribution is non decreasing in the product of the
+ * movie and user values, so for a user value x the block's contribution is at most that of x * max (x >= 0) or
+ * x * min (x < 0) of the block's movie values. The movie factors (and the bounds) are copied when the recommender
+ * is created, so it has to be recreated after the model is trained further.
+ */
+public class SvdRecommender extends BlockedRecommender {
+
+    private final SvdAlgorithm algorithm;
+    private final int nrFeatures;
+
+    // movieFactors[position * nrFeatures + f]: the factors of a movie are contiguous.
+    private final double[] movieFactors;
+
+    // Extremes of every feature over the movies of a block: blockMax[block * nrFeatures + f].
+    private final double[] blockMax;
+    private final double[] blockMin;
+
+    public SvdRecommender(SvdAlgorithm algorithm) {
+        super(algorithm, treeOrder(algorithm.getDataManager().getNrMovies(), algorithm.getNrFeatures(),
+                algorithm::getMovieFeature));
+        this.algorithm = algorithm;
+        this.nrFeatures = algorithm.getNrFeatures();
+
+        movieFactors = new double[movieOrder.length * nrFeatures];
+        blockMax = new double[nrBlocks * nrFeatures];
+        blockMin = new double[nrBlocks * nrFeatures];
+        Arrays.fill(blockMax, Double.NEGATIVE_INFINITY);
+        Arrays.fill(blockMin, Double.POSITIVE_INFINITY);
+        for (int position = 0; position < movieOrder.length; position++) {
+            int blockOffset = position / BLOCK_SIZE * nrFeatures;
+            for (int f = 0; f < nrFeatures; f++) {
+                double value = algorithm.getMovieFeature(f, movieOrder[position]);
+                movieFactors[position * nrFeatures + f] = value;
+                blockMax[blockOffset + f] = Math.max(blockMax[blockOffset + f], value);
+                blockMin[blockOffset + f] = Math.min(blockMin[blockOffset + f], value);
+            }
+        }
+    }
+
+    @Override
+    protected UserScorer getScorer(int user) {
+        double[] userFactors = new double[nrFeatures];
+        for (int f = 0; f < nrFeatures; f++) {
+            userFactors[f] = algorithm.getUserFeature(f, user);
+        }
+
+        return new UserScorer() {
+            @Override
+            public double bound(int block) {
+                int offset = block * nrFeatures;
+                double result = 0;
+                for (int f = 0; f < nrFeatures; f++) {
+                    double userFactor = userFactors[f];
+                    double movieFactor = userFactor >= 0 ? blockMax[offset + f] : blockMin[offset + f];
+                    result += algorithm.getFeatureContribution(f, movieFactor * userFactor);
+                }
+                return result;
+            }
+
+            // Same sum, in the same order, as SvdAlgorithm's prediction of an unrated pair.
+            @Override
+            public double score(int position) {
+                int offset = position * nrFeatures;
+                double result = 0;
+                for (int f = 0; f < nrFeatures; f++) {
+                    result += algorithm.getFeatureContribution(f, movieFactors[offset + f] * userFactors[f]);
+                }
+                return result;
+            }
+        };
+    }
+}
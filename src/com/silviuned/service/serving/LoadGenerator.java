@@ -0,0 +1,149 @@
+package com.silviuned.service.serving;
+
+import com.silviuned.service.metrics.LatencyHistogram;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends prediction requests to a ScoringServer from nrConnections connections, for a given duration, and measures
+ * the throughput and the latencies. Every connection sends pipelineDepth requests (random pairs out of the given
+ * ones), waits for their responses, and starts over: a request's latency is the time between the flush of its
+ * group and the arrival of its response.
+ *
+ * The load is closed: a slow response delays the next requests instead of queuing them, so when the server is
+ * saturated, the latencies are lower than the ones a fixed arrival rate would see.
+ */
+public class LoadGenerator {
+
+    public static class Result {
+
+        private final long nrRequests;
+        private final long nrErrors;
+        private final double seconds;
+        private final LatencyHistogram latencies;
+
+        private Result(long nrRequests, long nrErrors, double seconds, LatencyHistogram latencies) {
+            this.nrRequests = nrRequests;
+            this.nrErrors = nrErrors;
+            this.seconds = seconds;
+            this.latencies = latencies;
+        }
+
+        public long getNrRequests() {
+            return nrRequests;
+        }
+
+        // Nr of "error" responses.
+        public long getNrErrors() {
+            return nrErrors;
+        }
+
+        public double getSeconds() {
+            return seconds;
+        }
+
+        // Requests per second.
+        public double getQps() {
+            return nrRequests / seconds;
+        }
+
+        // In nanoseconds.
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int[] movieIds;
+    private final int[] userIds;
+
+    // The requests are drawn from the (movieIds[k], userIds[k]) pairs.
+    public LoadGenerator(String host, int port, int[] movieIds, int[] userIds) {
+        this.host = host;
+        this.port = port;
+        this.movieIds = movieIds;
+        this.userIds = userIds;
+    }
+
+    public Result run(int nrConnections, int pipelineDepth, long durationMillis, long seed) {
+        LatencyHistogram latencies = new LatencyHistogram();
+        LongAdder nrErrors = new LongAdder();
+        long startTime = System.nanoTime();
+        long endTime = startTime + durationMillis * 1_000_000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(nrConnections);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int c = 0; c < nrConnections; c++) {
+                Random random = new Random(seed + c);
+                tasks.add(() -> {
+                    sendRequests(random, pipelineDepth, endTime, latencies, nrErrors);
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return new Result(latencies.getCount(), nrErrors.sum(), seconds, latencies);
+    }
+
+    // The requests of a connection, until endTime.
+    private void sendRequests(Random random, int pipelineDepth, long endTime, LatencyHistogram latencies,
+                              LongAdder nrErrors) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+             BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+                     StandardCharsets.US_ASCII));
+             Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                     StandardCharsets.US_ASCII))) {
+            channel.socket().setTcpNoDelay(true);
+            while (System.nanoTime() < endTime) {
+                for (int r = 0; r < pipelineDepth; r++) {
+                    int k = random.nextInt(movieIds.length);
+                    writer.write(movieIds[k] + " " + userIds[k] + "\n");
+                }
+                writer.flush();
+                long sendTime = System.nanoTime();
+
+                for (int r = 0; r < pipelineDepth; r++) {
+                    String response = reader.readLine();
+                    if (response == null) {
+                        throw new IOException("Connection closed by the server");
+                    }
+                    latencies.record(System.nanoTime() - sendTime);
+                    if (response.startsWith("error")) {
+                        nrErrors.increment();
+                    }
+                }
+            }
+        }
+    }
+}
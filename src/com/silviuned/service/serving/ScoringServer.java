@@ -0,0 +1,186 @@
+package com.silviuned.service.serving;
+
+import com.silviuned.service.metrics.Metrics;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serves the predictions of a ScoringSnapshot over a line protocol (ASCII, one response line per request line,
+ * in order):
+ *
+ * <movieId> <userId>   ->  the predicted rating
+ * version              ->  <snapshot version> <algorithm name>
+ * anything else        ->  error <message>
+ *
+ * Every connection is served by its own thread. The requests a client pipelines are batched: all the pairs
+ * already received on the connection (up to MAX_BATCH_SIZE) are scored by one predictRatings call, then their
+ * responses are flushed together.
+ *
+ * The snapshot is held by an AtomicReference, read once per batch: swap publishes a new snapshot without pausing
+ * the requests (the batches being scored finish with the previous one). Scoring takes no locks.
+ */
+public class ScoringServer implements Closeable {
+
+    public static final int MAX_BATCH_SIZE = 1024;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final AtomicReference<ScoringSnapshot> snapshot;
+    private final ServerSocketChannel server;
+    // One thread per connection (platform threads: no virtual threads before Java 21).
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "scoring-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<SocketChannel> openChannels = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+
+    // Listens on the port (0 for any free port) and starts accepting connections.
+    public ScoringServer(ScoringSnapshot snapshot, int port) throws IOException {
+        this.snapshot = new AtomicReference<>(snapshot);
+        this.server = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+        this.acceptor = new Thread(this::acceptConnections, "scoring-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public ScoringSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    // Publishes the snapshot for the next batches, and returns the previous one.
+    public ScoringSnapshot swap(ScoringSnapshot next) {
+        return snapshot.getAndSet(next);
+    }
+
+    private void acceptConnections() {
+        try {
+            while (true) {
+                SocketChannel channel = server.accept();
+                openChannels.add(channel);
+                connections.execute(() -> serve(channel));
+            }
+        } catch (ClosedChannelException e) {
+            // The server was closed.
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (channel;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+                     StandardCharsets.US_ASCII), BUFFER_SIZE);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                     StandardCharsets.US_ASCII), BUFFER_SIZE)) {
+            channel.socket().setTcpNoDelay(true);
+            Batch batch = new Batch(writer);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // The lines already received are handled before the responses are flushed.
+                do {
+                    batch.handle(line);
+                } while (reader.ready() && (line = reader.readLine()) != null);
+                batch.score();
+                writer.flush();
+            }
+        } catch (IOException e) {
+            // The client went away.
+        } finally {
+            openChannels.remove(channel);
+        }
+    }
+
+    // The pairs of a connection waiting to be scored. The other requests are answered right away (after the
+    // pending pairs, so the responses stay in order).
+    private class Batch {
+
+        private final Writer writer;
+        private final int[] movieIds = new int[MAX_BATCH_SIZE];
+        private final int[] userIds = new int[MAX_BATCH_SIZE];
+        private final double[] predictions = new double[MAX_BATCH_SIZE];
+        private int size;
+
+        private Batch(Writer writer) {
+            this.writer = writer;
+        }
+
+        private void handle(String line) throws IOException {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length == 2) {
+                try {
+                    movieIds[size] = Integer.parseInt(fields[0]);
+                    userIds[size] = Integer.parseInt(fields[1]);
+                } catch (NumberFormatException e) {
+                    respond("error invalid ids: " + line);
+                    return;
+                }
+                size++;
+                if (size == MAX_BATCH_SIZE) {
+                    score();
+                }
+            } else if (fields.length == 1 && fields[0].equals("version")) {
+                ScoringSnapshot current = snapshot.get();
+                respond(current.getVersion() + " " + current.getAlgorithmName());
+            } else {
+                respond("error unknown request: " + line);
+            }
+        }
+
+        private void respond(String response) throws IOException {
+            score();
+            writer.write(response);
+            writer.write('\n');
+        }
+
+        // Scores the pending pairs with the current snapshot, and writes their responses.
+        private void score() throws IOException {
+            if (size == 0) {
+                return;
+            }
+            long startTime = Metrics.ENABLED ? System.nanoTime() : 0;
+            snapshot.get().predictRatings(movieIds, userIds, predictions, size);
+            if (Metrics.ENABLED) {
+                Metrics.histogram("serving.batch").record(System.nanoTime() - startTime);
+                Metrics.counter("serving.requests").add(size);
+            }
+            for (int k = 0; k < size; k++) {
+                writer.write(Double.toString(predictions[k]));
+                writer.write('\n');
+            }
+            size = 0;
+        }
+    }
+
+    // Stops accepting connections and closes the open ones.
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (SocketChannel channel : openChannels) {
+            channel.close();
+        }
+        connections.shutdown();
+    }
+}
@@ -0,0 +1,106 @@
+package com.silviuned.service.serving;
+
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.algorithms.ModelFile;
+import com.silviuned.service.data.DataManager;
+import com.silviuned.service.postProcessing.GlobalBiasCorrector;
+import com.silviuned.service.postProcessing.ItemBasedCorrector;
+import com.silviuned.service.postProcessing.PredictionTruncator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An immutable copy of a trained model, safe to score from any number of threads.
+ *
+ * The trained algorithm can't be shared with the scoring threads as it is: training, update and
+ * DataManager.addRating write the fields its predictions read, with no ordering guarantee for the readers.
+ * freeze makes a private copy instead: the model (and its correctors) go through a model file (see ModelFile),
+ * and are loaded back against a copy of the data manager (see DataManager.copy). Nothing else references the
+ * copy, and the snapshot only exposes the predictions, so it's never written again: once the snapshot is
+ * published (e.g. through an AtomicReference, see ScoringServer), the reads need no locks. The original model
+ * can go on training meanwhile.
+ *
+ * The predictions are the ones of the model, with the correctors when they're given (as EvaluationPipeline applies them).
+ */
+public class ScoringSnapshot {
+
+    private static final AtomicLong nextVersion = new AtomicLong(1);
+
+    private final Algorithm algorithm;
+    private final ItemBasedCorrector itemBasedCorrector;
+    private final GlobalBiasCorrector globalBiasCorrector;
+    private final long version;
+
+    private ScoringSnapshot(Algorithm algorithm, ItemBasedCorrector itemBasedCorrector,
+                            GlobalBiasCorrector globalBiasCorrector) {
+        this.algorithm = algorithm;
+        this.itemBasedCorrector = itemBasedCorrector;
+        this.globalBiasCorrector = globalBiasCorrector;
+        this.version = nextVersion.getAndIncrement();
+    }
+
+    public static ScoringSnapshot freeze(Algorithm algorithm) throws IOException {
+        return freeze(algorithm, null, null);
+    }
+
+    // The correctors are optional (null). Costs a save and a load of the model, through a temporary file.
+    // Must not run concurrently with the training or the updates of the algorithm.
+    public static ScoringSnapshot freeze(Algorithm algorithm, ItemBasedCorrector itemBasedCorrector,
+                                         GlobalBiasCorrector globalBiasCorrector) throws IOException {
+        Path file = Files.createTempFile("scoring", ".model");
+        try {
+            new ModelFile(algorithm, itemBasedCorrector, globalBiasCorrector)
+                    .save(file, ModelFile.Precision.FLOAT64, true);
+            ModelFile copy = ModelFile.load(file, algorithm.getDataManager().copy());
+            return new ScoringSnapshot(copy.getAlgorithm(), copy.getItemBasedCorrector(), copy.getGlobalBiasCorrector());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Loads a saved model (and its correctors) straight into a snapshot: it's loaded against a copy of the data
+    // manager, so nothing else references it, as if it were frozen.
+    public static ScoringSnapshot load(Path modelFile, DataManager dm) throws IOException {
+        ModelFile model = ModelFile.load(modelFile, dm.copy());
+        return new ScoringSnapshot(model.getAlgorithm(), model.getItemBasedCorrector(), model.getGlobalBiasCorrector());
+    }
+
+    // Increasing with the creation order.
+    public long getVersion() {
+        return version;
+    }
+
+    public String getAlgorithmName() {
+        return algorithm.getClass().getSimpleName();
+    }
+
+    public double predictRating(int movieId, int userId) {
+        return correct(movieId, algorithm.predictRating(movieId, userId));
+    }
+
+    // Predicts the first n (movieIds[k], userIds[k]) pairs into out[k], through the batched predictions of the model.
+    public void predictRatings(int[] movieIds, int[] userIds, double[] out, int n) {
+        algorithm.predictRatings(movieIds, userIds, out, n);
+        if (itemBasedCorrector != null || globalBiasCorrector != null) {
+            for (int k = 0; k < n; k++) {
+                out[k] = correct(movieIds[k], out[k]);
+            }
+        }
+    }
+
+    private double correct(int movieId, double prediction) {
+        if (itemBasedCorrector == null && globalBiasCorrector == null) {
+            return prediction;
+        }
+        if (itemBasedCorrector != null) {
+            prediction += itemBasedCorrector.getCorrection(movieId);
+        }
+        if (globalBiasCorrector != null) {
+            prediction = globalBiasCorrector.correct(prediction);
+        }
+        return PredictionTruncator.truncate(prediction);
+    }
+}
@@ -0,0 +1,97 @@
+package com.silviuned.service.tuning;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the results of a sweep (see {@link SweepRunner#getLeaderboard()}), one trial per row or object, ranked.
+ * The error is the one Main prints: the mean of the squared errors, with the post processors. The rmse is its
+ * square root.
+ */
+public class Leaderboard {
+
+    // One row per trial, with a column per parameter name (empty when the trial's algorithm doesn't have it).
+    public static void writeCsv(List<SweepRunner.Trial> trials, Path file) throws IOException {
+        List<String> parameterNames = new ArrayList<>();
+        for (SweepRunner.Trial trial : trials) {
+            for (String name : trial.getParameters().keySet()) {
+                if (!parameterNames.contains(name)) {
+                    parameterNames.add(name);
+                }
+            }
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writer.write("rank,algorithm,rmse,error,budget,converged,stopped,trainingSeconds");
+            for (String name : parameterNames) {
+                writer.write("," + name);
+            }
+            writer.newLine();
+
+            for (int rank = 0; rank < trials.size(); rank++) {
+                SweepRunner.Trial trial = trials.get(rank);
+                writer.write((rank + 1) + "," + trial.getName() + "," + Math.sqrt(trial.getError()) + ","
+                        + trial.getError() + "," + trial.getBudget() + "," + trial.isConverged() + ","
+                        + trial.isStopped() + "," + trial.getTrainingSeconds());
+                for (String name : parameterNames) {
+                    Object value = trial.getParameters().get(name);
+                    writer.write("," + (value != null ? value : ""));
+                }
+                writer.newLine();
+            }
+        }
+    }
+
+    // An array of objects, with the parameters in a nested object. The errors of untrained trials are null.
+    public static void writeJson(List<SweepRunner.Trial> trials, Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writer.write("[");
+            for (int rank = 0; rank < trials.size(); rank++) {
+                SweepRunner.Trial trial = trials.get(rank);
+                writer.write(rank == 0 ? "\n" : ",\n");
+                writer.write("  {\"rank\": " + (rank + 1)
+                        + ", \"algorithm\": " + toJson(trial.getName())
+                        + ", \"rmse\": " + toJson(Math.sqrt(trial.getError()))
+                        + ", \"error\": " + toJson(trial.getError())
+                        + ", \"budget\": " + trial.getBudget()
+                        + ", \"converged\": " + trial.isConverged()
+                        + ", \"stopped\": " + trial.isStopped()
+                        + ", \"trainingSeconds\": " + toJson(trial.getTrainingSeconds())
+                        + ", \"parameters\": {");
+                boolean first = true;
+                for (Map.Entry<String, Object> parameter : trial.getParameters().entrySet()) {
+                    writer.write((first ? "" : ", ") + toJson(parameter.getKey()) + ": " + toJson(parameter.getValue()));
+                    first = false;
+                }
+                writer.write("}}");
+            }
+            writer.write("\n]\n");
+        }
+    }
+
+    private static String toJson(Object value) {
+        if (value instanceof Double) {
+            double number = (Double) value;
+            return Double.isNaN(number) || Double.isInfinite(number) ? "null" : Double.toString(number);
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        StringBuilder result = new StringBuilder("\"");
+        for (char c : String.valueOf(value).toCharArray()) {
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+}
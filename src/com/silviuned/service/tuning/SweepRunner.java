@@ -0,0 +1,273 @@
+package com.silviuned.service.tuning;
+
+import com.silviuned.model.RatingMatrix;
+import com.silviuned.service.EvaluationPipeline;
+import com.silviuned.service.algorithms.Algorithm;
+import com.silviuned.service.algorithms.EmAlgorithm;
+import com.silviuned.service.algorithms.EmConfig;
+import com.silviuned.service.algorithms.SvdAlgorithm;
+import com.silviuned.service.algorithms.SvdConfig;
+import com.silviuned.service.data.DataManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A hyperparameter sweep: trains many SVD and EM configurations concurrently, and ranks them by their error on
+ * validation data, measured like Main does (with the post processors, see {@link EvaluationPipeline}). All the
+ * trials share the same data manager, which is only read while training (no ratings should be added during a
+ * sweep). Each trial trains on a single thread, and nrThreads trials run at once; every trial holds its own model
+ * (the SVD ones also hold a float per training rating).
+ *
+ * run trains every trial until it converges. runSuccessiveHalving trains every trial for a small budget (features
+ * for SVD, iterations for EM), keeps the best 1 / reductionFactor of every family (SVD and EM are halved apart, as
+ * their budgets aren't comparable: an EM model with few iterations isn't behind an SVD one with as many features),
+ * multiplies the budget by reductionFactor and goes on with the kept ones, until a single one of every family is
+ * left, which is then trained until it converges. The models of the stopped trials are dropped, but their results
+ * are kept.
+ */
+public class SweepRunner {
+
+    // By error, the trials that weren't evaluated last.
+    private static final Comparator<Trial> BY_ERROR = Comparator.comparingDouble(
+            trial -> Double.isNaN(trial.error) ? Double.POSITIVE_INFINITY : trial.error);
+
+    private final DataManager dm;
+    private final RatingMatrix validationData;
+    private final int nrThreads;
+    private final List<Trial> trials = new ArrayList<>();
+
+    public SweepRunner(DataManager dm, RatingMatrix validationData, int nrThreads) {
+        if (nrThreads < 1) {
+            throw new IllegalArgumentException("nrThreads must be positive: " + nrThreads);
+        }
+        this.dm = dm;
+        this.validationData = validationData;
+        this.nrThreads = nrThreads;
+    }
+
+    public Trial addSvd(SvdConfig config) {
+        Trial result = new SvdTrial(config);
+        trials.add(result);
+        return result;
+    }
+
+    public Trial addEm(EmConfig config) {
+        Trial result = new EmTrial(config);
+        trials.add(result);
+        return result;
+    }
+
+    // A configuration and its results so far.
+    public abstract static class Trial {
+
+        private final String name;
+        private final Map<String, Object> parameters;
+
+        Algorithm algorithm;
+        private int budget;
+        private boolean converged;
+        private boolean stopped;
+        private double error = Double.NaN;
+        private long trainingNanos;
+
+        private Trial(String name, Map<String, Object> parameters) {
+            this.name = name;
+            this.parameters = parameters;
+        }
+
+        // Trains at most maxSteps more budget units (creating the model first if needed).
+        // Returns true when training converged.
+        abstract boolean trainSteps(int maxSteps);
+
+        // Budget units trained so far.
+        abstract int getProgress();
+
+        // Trains the model until the total budget is reached (or it converges), then measures its error.
+        private void trainAndEvaluate(int totalBudget, DataManager dm, RatingMatrix validationData) {
+            if (converged || stopped || (algorithm != null && budget >= totalBudget)) {
+                return;
+            }
+            long startTime = System.nanoTime();
+            converged = trainSteps(totalBudget - budget);
+            budget = getProgress();
+            trainingNanos += System.nanoTime() - startTime;
+            // A pipeline per evaluation, as the trials are evaluated concurrently. It holds no threads (the
+            // single-threaded passes run on the caller's, see SharedPools), so there's nothing to shut down.
+            error = new EvaluationPipeline(dm, validationData, 1).evaluate(Collections.singletonList(algorithm), true)
+                    .get(0).getRmse();
+        }
+
+        // Stops the trial, and drops its model.
+        private void stop() {
+            stopped = true;
+            algorithm = null;
+        }
+
+        // "svd" or "em".
+        public String getName() {
+            return name;
+        }
+
+        public Map<String, Object> getParameters() {
+            return parameters;
+        }
+
+        // The trained model, or null if the trial was stopped.
+        public Algorithm getAlgorithm() {
+            return algorithm;
+        }
+
+        // Nr of features (SVD) or iterations (EM) trained.
+        public int getBudget() {
+            return budget;
+        }
+
+        public boolean isConverged() {
+            return converged;
+        }
+
+        // Whether the trial was stopped by successive halving.
+        public boolean isStopped() {
+            return stopped;
+        }
+
+        // The error on the validation data, measured like EvaluationPipeline's (NaN until the trial is trained).
+        public double getError() {
+            return error;
+        }
+
+        public double getTrainingSeconds() {
+            return trainingNanos / 1e9;
+        }
+    }
+
+    private class SvdTrial extends Trial {
+
+        private final SvdConfig config;
+
+        private SvdTrial(SvdConfig config) {
+            super("svd", config.getParameters());
+            this.config = config;
+        }
+
+        @Override
+        boolean trainSteps(int maxSteps) {
+            if (algorithm == null) {
+                algorithm = new SvdAlgorithm(dm, 1, config);
+            }
+            return ((SvdAlgorithm) algorithm).trainFeatures(maxSteps);
+        }
+
+        @Override
+        int getProgress() {
+            return ((SvdAlgorithm) algorithm).getNrFeatures();
+        }
+    }
+
+    private class EmTrial extends Trial {
+
+        private final EmConfig config;
+
+        private EmTrial(EmConfig config) {
+            super("em", config.getParameters());
+            this.config = config;
+        }
+
+        @Override
+        boolean trainSteps(int maxSteps) {
+            if (algorithm == null) {
+                algorithm = new EmAlgorithm(dm, 1, config);
+            }
+            return ((EmAlgorithm) algorithm).trainIterations(maxSteps);
+        }
+
+        @Override
+        int getProgress() {
+            return ((EmAlgorithm) algorithm).getNrIterations();
+        }
+    }
+
+    // Trains every trial until it converges. Returns the leaderboard.
+    public List<Trial> run() {
+        trainAndEvaluate(trials, Integer.MAX_VALUE);
+        return getLeaderboard();
+    }
+
+    // Successive halving of every family, starting with minBudget features or iterations per trial. Returns the
+    // leaderboard.
+    public List<Trial> runSuccessiveHalving(int minBudget, int reductionFactor) {
+        if (minBudget < 1 || reductionFactor < 2) {
+            throw new IllegalArgumentException("Invalid successive halving: minBudget " + minBudget
+                    + ", reductionFactor " + reductionFactor);
+        }
+        // The trials of every family (by name), in the order they were added.
+        Map<String, List<Trial>> families = new LinkedHashMap<>();
+        for (Trial trial : trials) {
+            families.computeIfAbsent(trial.getName(), name -> new ArrayList<>()).add(trial);
+        }
+        long budget = minBudget;
+        while (families.values().stream().anyMatch(family -> family.size() > 1)) {
+            trainAndEvaluate(remaining(families), (int) Math.min(budget, Integer.MAX_VALUE));
+            for (List<Trial> family : families.values()) {
+                family.sort(BY_ERROR);
+                int nrKept = Math.max(1, family.size() / reductionFactor);
+                for (Trial trial : family.subList(nrKept, family.size())) {
+                    trial.stop();
+                }
+                family.subList(nrKept, family.size()).clear();
+            }
+            budget *= reductionFactor;
+        }
+        trainAndEvaluate(remaining(families), Integer.MAX_VALUE);
+        return getLeaderboard();
+    }
+
+    private static List<Trial> remaining(Map<String, List<Trial>> families) {
+        List<Trial> result = new ArrayList<>();
+        for (List<Trial> family : families.values()) {
+            result.addAll(family);
+        }
+        return result;
+    }
+
+    // All the trials, by increasing error.
+    public List<Trial> getLeaderboard() {
+        List<Trial> result = new ArrayList<>(trials);
+        result.sort(BY_ERROR);
+        return result;
+    }
+
+    // Trains and evaluates the trials on nrThreads threads, one task per trial, and waits for all of them.
+    private void trainAndEvaluate(List<Trial> trials, int totalBudget) {
+        ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>(trials.size());
+            for (Trial trial : trials) {
+                tasks.add(() -> {
+                    trial.trainAndEvaluate(totalBudget, dm, validationData);
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.silviuned.utils;
+
+/**
+ * Solves small symmetric positive definite systems (A x = b), such as the normal equations of a ridge regression.
+ */
+public class Cholesky {
+
+    // Solves A x = b for the n x n row-major matrix a, in place. Only the lower triangle of a is read; it's
+    // overwritten by the Cholesky factor, and b by the solution. Returns false (a and b are then undefined)
+    // if a isn't positive definite.
+    public static boolean solve(double[] a, double[] b, int n) {
+        for (int j = 0; j < n; j++) {
+            double diagonal = a[j * n + j];
+            for (int k = 0; k < j; k++) {
+                diagonal -= a[j * n + k] * a[j * n + k];
+            }
+            if (diagonal <= 0) {
+                return false;
+            }
+            diagonal = Math.sqrt(diagonal);
+            a[j * n + j] = diagonal;
+
+            for (int i = j + 1; i < n; i++) {
+                double sum = a[i * n + j];
+                for (int k = 0; k < j; k++) {
+                    sum -= a[i * n + k] * a[j * n + k];
+                }
+                a[i * n + j] = sum / diagonal;
+            }
+        }
+
+        // L y = b, then L^T x = y.
+        for (int i = 0; i < n; i++) {
+            double sum = b[i];
+            for (int k = 0; k < i; k++) {
+                sum -= a[i * n + k] * b[k];
+            }
+            b[i] = sum / a[i * n + i];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = b[i];
+            for (int k = i + 1; k < n; k++) {
+                sum -= a[k * n + i] * b[k];
+            }
+            b[i] = sum / a[i * n + i];
+        }
+        return true;
+    }
+}
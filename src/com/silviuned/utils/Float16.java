@@ -0,0 +1,65 @@
+package com.silviuned.utils;
+
+/**
+ * Conversions between floats and IEEE 754 half precision values (stored in shorts).
+ * Rounds to the nearest half (ties to even); overflows become infinities and NaNs stay NaNs.
+ */
+public class Float16 {
+
+    public static short fromFloat(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (exponent == 0xFF) {
+            // Infinity or NaN (keeping a non zero mantissa for NaN).
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        }
+
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1F) {
+            return (short) (sign | 0x7C00);
+        }
+        if (halfExponent <= 0) {
+            // Subnormal half (or zero): shifts the mantissa, with its implicit leading 1, into place.
+            if (halfExponent < -10) {
+                return (short) sign;
+            }
+            mantissa |= 0x800000;
+            int shift = 14 - halfExponent;
+            int result = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int half = 1 << (shift - 1);
+            if (remainder > half || (remainder == half && (result & 1) != 0)) {
+                result++;
+            }
+            return (short) (sign | result);
+        }
+
+        int result = (halfExponent << 10) | (mantissa >> 13);
+        int remainder = mantissa & 0x1FFF;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (result & 1) != 0)) {
+            // May carry into the exponent, which is still the correctly rounded value (up to infinity).
+            result++;
+        }
+        return (short) (sign | result);
+    }
+
+    public static float toFloat(short value) {
+        int bits = value & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            // Zero or subnormal: mantissa * 2^-24.
+            float result = mantissa * 0x1p-24f;
+            return sign != 0 ? -result : result;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
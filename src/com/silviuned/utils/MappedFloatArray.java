@@ -0,0 +1,58 @@
+package com.silviuned.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A zero initialized float array backed by a memory mapped file, for arrays that shouldn't live on the heap.
+ * The operating system pages it in and out as needed. The file is mapped in segments, since a single mapping is
+ * limited to 2 GB.
+ */
+public class MappedFloatArray implements Closeable {
+
+    // 2^28 floats (1 GB) per segment.
+    private static final int SEGMENT_SHIFT = 28;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final FileChannel channel;
+    private final FloatBuffer[] segments;
+    private final int length;
+
+    // Creates (or truncates) the file.
+    public MappedFloatArray(Path file, int length) throws IOException {
+        this.length = length;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        int nrSegments = (int) (((long) length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        segments = new FloatBuffer[nrSegments];
+        for (int s = 0; s < nrSegments; s++) {
+            long start = (long) s << SEGMENT_SHIFT;
+            long size = Math.min(1L << SEGMENT_SHIFT, length - start);
+            segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, 4 * start, 4 * size)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public float get(int index) {
+        return segments[index >>> SEGMENT_SHIFT].get(index & SEGMENT_MASK);
+    }
+
+    public void set(int index, float value) {
+        segments[index >>> SEGMENT_SHIFT].put(index & SEGMENT_MASK, value);
+    }
+
+    // Closes the file. The mappings stay valid until they're garbage collected.
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,86 @@
+package com.silviuned.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Sequentially maps the sections written by a {@link SectionWriter} and copies them into arrays.
+ */
+public class SectionReader {
+
+    private static final int MAX_MAPPING_SIZE = 1 << 28;
+
+    private final FileChannel channel;
+    private long position;
+
+    public SectionReader(FileChannel channel, int headerSize) {
+        this.channel = channel;
+        this.position = headerSize;
+    }
+
+    // CRC32 of everything that follows the header.
+    public static long checksum(FileChannel channel, int headerSize) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = channel.size();
+        for (long position = headerSize; position < size; position += MAX_MAPPING_SIZE) {
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPING_SIZE, size - position)));
+        }
+        return crc.getValue();
+    }
+
+    // The checksum a header stores: a CRC32 of the header's fields (its bytes from fieldsOffset to its limit) and
+    // of the sections' checksum, so that a change to either one is caught. The header's position is left as is.
+    public static long headerChecksum(ByteBuffer header, int fieldsOffset, long sectionsChecksum) {
+        CRC32 crc = new CRC32();
+        crc.update(header.duplicate().position(fieldsOffset));
+        crc.update(ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(0, sectionsChecksum));
+        return crc.getValue();
+    }
+
+    // Maps the next section (of the provided size) and skips its alignment padding.
+    public ByteBuffer map(long bytes) throws IOException {
+        ByteBuffer result = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(ByteOrder.LITTLE_ENDIAN);
+        position += (bytes + 7) / 8 * 8;
+        return result;
+    }
+
+    // Skips the next section (of the provided size) and returns its position in the file.
+    public long skip(long bytes) {
+        long result = position;
+        position += (bytes + 7) / 8 * 8;
+        return result;
+    }
+
+    public byte[] getBytes(int n) throws IOException {
+        byte[] result = new byte[n];
+        map(n).get(result);
+        return result;
+    }
+
+    public short[] getShorts(int n) throws IOException {
+        short[] result = new short[n];
+        map(2L * n).asShortBuffer().get(result);
+        return result;
+    }
+
+    public int[] getInts(int n) throws IOException {
+        int[] result = new int[n];
+        map(4L * n).asIntBuffer().get(result);
+        return result;
+    }
+
+    public float[] getFloats(int n) throws IOException {
+        float[] result = new float[n];
+        map(4L * n).asFloatBuffer().get(result);
+        return result;
+    }
+
+    public double[] getDoubles(int n) throws IOException {
+        double[] result = new double[n];
+        map(8L * n).asDoubleBuffer().get(result);
+        return result;
+    }
+}
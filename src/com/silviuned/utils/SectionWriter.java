@@ -0,0 +1,115 @@
+package com.silviuned.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Sequentially writes the sections of a binary file (little endian) after a fixed size header, keeping track of
+ * their CRC32. The header itself is written by the caller once the checksum is known.
+ */
+public class SectionWriter {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+    private long position;
+
+    public SectionWriter(FileChannel channel, int headerSize) {
+        this.channel = channel;
+        this.position = headerSize;
+    }
+
+    public void putByte(int value) throws IOException {
+        ensureRemaining(1);
+        buffer.put((byte) value);
+    }
+
+    public void putShort(int value) throws IOException {
+        ensureRemaining(2);
+        buffer.putShort((short) value);
+    }
+
+    public void putInt(int value) throws IOException {
+        ensureRemaining(4);
+        buffer.putInt(value);
+    }
+
+    public void putFloat(float value) throws IOException {
+        ensureRemaining(4);
+        buffer.putFloat(value);
+    }
+
+    public void putDouble(double value) throws IOException {
+        ensureRemaining(8);
+        buffer.putDouble(value);
+    }
+
+    // Writes a whole section, followed by the alignment padding.
+    public void putBytes(byte[] values) throws IOException {
+        for (byte value : values) {
+            putByte(value);
+        }
+        align();
+    }
+
+    public void putShorts(short[] values) throws IOException {
+        for (short value : values) {
+            putShort(value);
+        }
+        align();
+    }
+
+    public void putInts(int[] values) throws IOException {
+        for (int value : values) {
+            putInt(value);
+        }
+        align();
+    }
+
+    public void putFloats(float[] values) throws IOException {
+        for (float value : values) {
+            putFloat(value);
+        }
+        align();
+    }
+
+    public void putDoubles(double[] values) throws IOException {
+        for (double value : values) {
+            putDouble(value);
+        }
+        align();
+    }
+
+    // Pads the current section to a multiple of 8 bytes.
+    public void align() throws IOException {
+        while ((position + buffer.position()) % 8 != 0) {
+            putByte(0);
+        }
+    }
+
+    // Writes the buffered data. Must be called once all the sections were added.
+    public void flush() throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+
+    // CRC32 of everything written so far (after flush).
+    public long getChecksum() {
+        return crc.getValue();
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.silviuned.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * The fork/join pools which the multi-threaded algorithms run their parallel loops on: one per nr of threads,
+ * created on first use and shared by all the instances, so that creating (or loading) a model starts no threads
+ * and there's nothing to close. The workers of a ForkJoinPool are daemon threads, and they exit once idle.
+ */
+public class SharedPools {
+
+    private static final Map<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
+    private SharedPools() {}
+
+    public static ForkJoinPool get(int nrThreads) {
+        if (nrThreads < 1) {
+            throw new IllegalArgumentException("nrThreads must be positive: " + nrThreads);
+        }
+        return pools.computeIfAbsent(nrThreads, ForkJoinPool::new);
+    }
+
+    // Runs the action for every ordinal in [0, n) on the pool of nrThreads threads, and waits for all of them.
+    // With a single thread, the action runs on the caller's thread (so concurrent callers don't queue on one pool).
+    public static void forEach(int nrThreads, int n, IntConsumer action) {
+        if (nrThreads == 1) {
+            for (int i = 0; i < n; i++) {
+                action.accept(i);
+            }
+            return;
+        }
+        try {
+            get(nrThreads).submit(() -> IntStream.range(0, n).parallel().forEach(action)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -7,6 +7,6 @@ public class SigmoidFunction {
 
     // Calculates the value of the sigmoid function for the specified input.
     public static double eval(double x) {
-        return 1.0 / (1 + Math.pow(Math.E, -x)) - 0.5;
+        return 1.0 / (1 + Math.exp(-x)) - 0.5;
     }
 }
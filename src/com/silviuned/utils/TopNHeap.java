@@ -0,0 +1,95 @@
+package com.silviuned.utils;
+
+/**
+ * Bounded min-heap keeping the best n (score, item) candidates (e.g. movie ordinals, or vector positions).
+ * Higher scores are better, and equal scores are ordered by item (lower first), so the kept set doesn't depend
+ * on the order of the candidates.
+ */
+public class TopNHeap {
+
+    private final double[] scores;
+    private final int[] items;
+    private int size;
+
+    public TopNHeap(int capacity) {
+        scores = new double[capacity];
+        items = new int[capacity];
+    }
+
+    // Score a candidate has to reach to be kept (-infinity while the heap isn't full, +infinity if it can't hold
+    // any candidate).
+    public double threshold() {
+        if (scores.length == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return size < scores.length ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+    public void offer(double score, int item) {
+        if (size < scores.length) {
+            scores[size] = score;
+            items[size] = item;
+            siftUp(size++);
+        } else if (size > 0 && isBetter(score, item, 0)) {
+            scores[0] = score;
+            items[0] = item;
+            siftDown(0);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Empties the heap into the arrays (of at least size() elements), best first.
+    public void drain(double[] sortedScores, int[] sortedItems) {
+        for (int k = size - 1; k >= 0; k--) {
+            sortedScores[k] = scores[0];
+            sortedItems[k] = items[0];
+            size--;
+            scores[0] = scores[size];
+            items[0] = items[size];
+            siftDown(0);
+        }
+    }
+
+    private boolean isBetter(double score, int item, int position) {
+        return score > scores[position] || (score == scores[position] && item < items[position]);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!isBetter(scores[parent], items[parent], position)) {
+                break;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int worst = position;
+            for (int child = 2 * position + 1; child <= 2 * position + 2 && child < size; child++) {
+                if (isBetter(scores[worst], items[worst], child)) {
+                    worst = child;
+                }
+            }
+            if (worst == position) {
+                return;
+            }
+            swap(position, worst);
+            position = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+        int item = items[i];
+        items[i] = items[j];
+        items[j] = item;
+    }
+}